@@ -0,0 +1,141 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of ByteBuffers in power-of-two size classes, so that code receiving
+ * a stream of messages reuses the same few buffers instead of allocating one
+ * per message. Requests larger than the biggest class are allocated on the
+ * spot and dropped on release.
+ *
+ * Direct buffers, the default, are filled by the kernel in place by
+ * {@link RpmsgSocket#read(ByteBuffer)}.
+ */
+public final class RpmsgBufferPool {
+    /** smallest size class, 64 bytes */
+    private static final int MIN_SHIFT = 6;
+
+    /** biggest size class of the shared pool */
+    public static final int DEFAULT_MAX_POOLED_SIZE = 64 * 1024;
+    /** buffers kept per size class by the shared pool */
+    public static final int DEFAULT_MAX_PER_CLASS = 16;
+
+    private static RpmsgBufferPool sDefault;
+
+    private final boolean direct;
+    private final int maxPerClass;
+    private final int maxPooledSize;
+    private final ArrayDeque<ByteBuffer>[] classes;
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxPooledSize biggest size class, rounded up to a power of two
+     * @param maxPerClass idle buffers kept per size class, surplus ones are
+     * left to the garbage collector
+     * @param direct true to allocate direct buffers
+     */
+    @SuppressWarnings("unchecked")
+    public RpmsgBufferPool(int maxPooledSize, int maxPerClass, boolean direct) {
+        if (maxPooledSize < 1 || maxPooledSize > 1 << 30 || maxPerClass < 0) {
+            throw new IllegalArgumentException("invalid pool limits");
+        }
+        int shift = shiftFor(maxPooledSize);
+        this.direct = direct;
+        this.maxPerClass = maxPerClass;
+        this.maxPooledSize = 1 << shift;
+        this.classes = new ArrayDeque[shift - MIN_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Returns the process-wide pool of direct buffers.
+     */
+    public static synchronized @NonNull RpmsgBufferPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new RpmsgBufferPool(DEFAULT_MAX_POOLED_SIZE, DEFAULT_MAX_PER_CLASS, true);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Takes a buffer from the pool. Its position is 0 and its limit is
+     * {@code size}; the capacity may be larger and the content is undefined.
+     *
+     * @param size bytes needed
+     * @return a buffer to hand back through {@link #release} when done
+     */
+    public @NonNull ByteBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size " + size);
+        }
+        if (size > maxPooledSize) {
+            return allocate(size);
+        }
+
+        int shift = shiftFor(size);
+        ArrayDeque<ByteBuffer> free = classes[shift - MIN_SHIFT];
+        ByteBuffer buffer;
+        synchronized (free) {
+            buffer = free.pollFirst();
+        }
+        if (buffer == null) {
+            buffer = allocate(1 << shift);
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire}. The caller must not
+     * touch it afterwards. Buffers that do not come from a size class of this
+     * pool are ignored.
+     */
+    public void release(@NonNull ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() != direct || buffer.isReadOnly()
+                || capacity > maxPooledSize || capacity < 1 << MIN_SHIFT
+                || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+
+        ArrayDeque<ByteBuffer> free = classes[shiftFor(capacity) - MIN_SHIFT];
+        synchronized (free) {
+            if (free.size() < maxPerClass) {
+                free.addFirst(buffer);
+            }
+        }
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private static int shiftFor(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return MIN_SHIFT;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import java.io.IOException;
+import java.net.SocketOptions;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Grows SO_SNDBUF and SO_RCVBUF of one socket from its observed traffic,
+ * in the spirit of TCP receive buffer auto-tuning. Every interval it
+ * compares the bytes moved with the current buffer size:
+ *
+ * - the send buffer doubles when writers spent a noticeable share of the
+ *   interval blocked and more than a buffer's worth went out, the buffer
+ *   being what throttles them;
+ * - the receive buffer doubles when more than two buffers' worth came in
+ *   and most reads came back full, so data was waiting for the reader.
+ *
+ * Buffers only grow, up to the configured maximum or until the kernel stops
+ * honouring larger sizes. Runs on the shared flush timer and stops itself
+ * once the socket is closed.
+ */
+/* package */ final class RpmsgBufferTuner implements Runnable {
+    /** sampling interval */
+    /* package */ static final long INTERVAL_MILLIS = 200;
+    /** share of the interval writers must have been blocked for */
+    private static final double BLOCKED_SHARE = 0.1;
+
+    private final RpmsgSocketImpl impl;
+    private final int maxSize;
+    private ScheduledFuture<?> future;
+
+    private RpmsgSocketMetrics last;
+    private long lastNanos;
+    private boolean sendCapped;
+    private boolean receiveCapped;
+
+    /* package */ RpmsgBufferTuner(RpmsgSocketImpl impl, int maxSize) {
+        this.impl = impl;
+        this.maxSize = maxSize;
+    }
+
+    /* package */ synchronized void start() {
+        last = impl.getMetrics();
+        lastNanos = System.nanoTime();
+        future = RpmsgSocketImpl.getFlushTimer().scheduleAtFixedRate(this,
+                INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /* package */ synchronized void stop() {
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    @Override
+    public synchronized void run() {
+        if (future == null) {
+            return;
+        }
+        if (impl.getFileDescriptor() == null || (sendCapped && receiveCapped)) {
+            stop();
+            return;
+        }
+
+        RpmsgSocketMetrics now = impl.getMetrics();
+        long nanos = System.nanoTime();
+        long elapsed = nanos - lastNanos;
+        long written = now.getBytesWritten() - last.getBytesWritten();
+        long blocked = now.getWriteBlockedNanos() - last.getWriteBlockedNanos();
+        long read = now.getBytesRead() - last.getBytesRead();
+        long readCalls = now.getReadCalls() - last.getReadCalls();
+        long shortReads = now.getShortReads() - last.getShortReads();
+        last = now;
+        lastNanos = nanos;
+
+        try {
+            if (!sendCapped && blocked >= elapsed * BLOCKED_SHARE
+                    && written > getSize(SocketOptions.SO_SNDBUF)) {
+                sendCapped = !grow(SocketOptions.SO_SNDBUF);
+            }
+            if (!receiveCapped && readCalls > 0 && shortReads * 2 < readCalls
+                    && read > 2L * getSize(SocketOptions.SO_RCVBUF)) {
+                receiveCapped = !grow(SocketOptions.SO_RCVBUF);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Closed under us, or the option is not supported.
+            stop();
+        }
+    }
+
+    private int getSize(int option) throws IOException {
+        return (Integer) impl.getOption(option);
+    }
+
+    /**
+     * Doubles a buffer, capped at maxSize.
+     *
+     * @return false if it could not grow any further
+     */
+    private boolean grow(int option) throws IOException {
+        int current = getSize(option);
+        if (current >= maxSize) {
+            return false;
+        }
+        // Linux reports twice the size that was set, asking for the reported
+        // size doubles the buffer.
+        int next = (int) Math.min(2L * current, maxSize);
+        impl.setOption(option, Integer.valueOf(next / 2));
+        return getSize(option) > current;
+    }
+}
@@ -0,0 +1,412 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+ * A pool of connected stream {@link RpmsgSocket}s keyed by remote
+ * {@link RpmsgSocketAddress}. Borrowing an idle connection skips socket
+ * creation, address conversion and the endpoint handshake with the remote
+ * core that a fresh {@link RpmsgSocket#connect} costs.
+ *
+ * Connections are checked on borrow: one that has been closed, hung up or
+ * has unread data left over from a previous user is discarded. Idle
+ * connections are evicted after the idle timeout, on any pool access for
+ * the same endpoint or through {@link #evictIdle()}.
+ */
+public class RpmsgConnectionPool implements Closeable {
+    private final int maxIdlePerEndpoint;
+    private final int maxPerEndpoint;
+    private final long idleTimeoutMillis;
+    private final RpmsgTransport transport;
+
+    private final HashMap<RpmsgSocketAddress, Endpoint> endpoints = new HashMap<>();
+    /** borrowed connections and the endpoint they belong to */
+    private final IdentityHashMap<RpmsgSocket, RpmsgSocketAddress> leased =
+            new IdentityHashMap<>();
+    private boolean closed;
+
+    private static final class Endpoint {
+        /** most recently released first, so the warmest connection is reused */
+        final ArrayDeque<IdleConnection> idle = new ArrayDeque<>();
+        /** borrowed connections plus connections being established */
+        int active;
+    }
+
+    private static final class IdleConnection {
+        final RpmsgSocket socket;
+        final long idleSince;
+
+        IdleConnection(RpmsgSocket socket, long idleSince) {
+            this.socket = socket;
+            this.idleSince = idleSince;
+        }
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxIdlePerEndpoint idle connections kept per endpoint, surplus
+     * ones are closed on release
+     * @param maxPerEndpoint connections, idle and borrowed, allowed per
+     * endpoint; {@link #acquire} waits when the limit is reached
+     * @param idleTimeoutMillis idle connections older than this are closed,
+     * 0 to keep them until the pool is closed
+     */
+    public RpmsgConnectionPool(int maxIdlePerEndpoint, int maxPerEndpoint,
+            long idleTimeoutMillis) {
+        this(maxIdlePerEndpoint, maxPerEndpoint, idleTimeoutMillis,
+                RpmsgTransport.getDefault());
+    }
+
+    /**
+     * Creates a pool whose connections use the given transport.
+     *
+     * @param maxIdlePerEndpoint idle connections kept per endpoint, surplus
+     * ones are closed on release
+     * @param maxPerEndpoint connections, idle and borrowed, allowed per
+     * endpoint; {@link #acquire} waits when the limit is reached
+     * @param idleTimeoutMillis idle connections older than this are closed,
+     * 0 to keep them until the pool is closed
+     * @param transport socket family of the pooled connections
+     */
+    public RpmsgConnectionPool(int maxIdlePerEndpoint, int maxPerEndpoint,
+            long idleTimeoutMillis, @NonNull RpmsgTransport transport) {
+        if (maxIdlePerEndpoint < 0 || maxPerEndpoint < 1 || idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("invalid pool limits");
+        }
+        this.maxIdlePerEndpoint = Math.min(maxIdlePerEndpoint, maxPerEndpoint);
+        this.maxPerEndpoint = maxPerEndpoint;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.transport = transport;
+    }
+
+    /**
+     * Borrows a connection to {@code address}, waiting as long as needed for
+     * one to be released if the endpoint is at its limit.
+     *
+     * @param address remote endpoint
+     * @return a connected stream socket, to be handed back through
+     * {@link #release} or {@link #invalidate}
+     * @throws IOException if a new connection cannot be established
+     */
+    public RpmsgSocket acquire(@NonNull RpmsgSocketAddress address) throws IOException {
+        return acquire(address, 0);
+    }
+
+    /**
+     * Borrows a connection to {@code address}.
+     *
+     * @param address remote endpoint
+     * @param timeoutMillis how long to wait for a connection to be released
+     * when the endpoint is at its limit, 0 to wait indefinitely
+     * @return a connected stream socket, to be handed back through
+     * {@link #release} or {@link #invalidate}
+     * @throws IOException if the wait times out or a new connection cannot
+     * be established
+     */
+    public RpmsgSocket acquire(@NonNull RpmsgSocketAddress address, long timeoutMillis)
+            throws IOException {
+        ArrayList<RpmsgSocket> toClose = new ArrayList<>();
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        Endpoint endpoint;
+
+        try {
+            synchronized (this) {
+                while (true) {
+                    ensureOpen();
+                    endpoint = getEndpoint(address);
+                    evictExpired(endpoint, SystemClock.uptimeMillis(), toClose);
+
+                    IdleConnection conn;
+                    while ((conn = endpoint.idle.pollFirst()) != null) {
+                        if (isHealthy(conn.socket)) {
+                            endpoint.active++;
+                            leased.put(conn.socket, address);
+                            return conn.socket;
+                        }
+                        toClose.add(conn.socket);
+                    }
+
+                    if (endpoint.active < maxPerEndpoint) {
+                        // Reserve the slot, connect outside the lock.
+                        endpoint.active++;
+                        break;
+                    }
+
+                    long remaining = 0;
+                    if (timeoutMillis != 0) {
+                        remaining = deadline - SystemClock.uptimeMillis();
+                        if (remaining <= 0) {
+                            throw new IOException("connection pool exhausted for " + address);
+                        }
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted waiting for " + address);
+                    }
+                }
+            }
+        } finally {
+            closeAll(toClose);
+        }
+
+        RpmsgSocket socket = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM, transport);
+        try {
+            socket.connect(address);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                endpoint.active--;
+                notifyAll();
+            }
+            closeQuietly(socket);
+            throw e;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                endpoint.active--;
+                notifyAll();
+                closeQuietly(socket);
+                throw new IOException("connection pool closed");
+            }
+            leased.put(socket, address);
+        }
+        return socket;
+    }
+
+    /**
+     * Hands a borrowed connection back to the pool for reuse. The caller must
+     * have consumed everything the peer sent, or the connection is discarded
+     * on the next borrow. SO_TIMEOUT is reset to 0; a connection left
+     * non-blocking, corked, coalescing or with a send queue is closed rather
+     * than handed to the next borrower in that state.
+     *
+     * @param socket a connection obtained from {@link #acquire}
+     */
+    public void release(@NonNull RpmsgSocket socket) {
+        boolean reusable = resetOptions(socket);
+        RpmsgSocket toClose = null;
+        synchronized (this) {
+            RpmsgSocketAddress address = leased.remove(socket);
+            if (address == null) {
+                throw new IllegalArgumentException("socket not borrowed from this pool");
+            }
+            Endpoint endpoint = endpoints.get(address);
+            endpoint.active--;
+
+            if (closed || !reusable || socket.isClosed()
+                    || endpoint.idle.size() >= maxIdlePerEndpoint) {
+                toClose = socket;
+            } else {
+                endpoint.idle.addFirst(new IdleConnection(socket, SystemClock.uptimeMillis()));
+            }
+            notifyAll();
+        }
+        if (toClose != null) {
+            closeQuietly(toClose);
+        }
+    }
+
+    /**
+     * Closes a borrowed connection that must not be reused, for instance
+     * after an I/O error or a protocol violation.
+     *
+     * @param socket a connection obtained from {@link #acquire}
+     */
+    public void invalidate(@NonNull RpmsgSocket socket) {
+        synchronized (this) {
+            RpmsgSocketAddress address = leased.remove(socket);
+            if (address == null) {
+                throw new IllegalArgumentException("socket not borrowed from this pool");
+            }
+            endpoints.get(address).active--;
+            notifyAll();
+        }
+        closeQuietly(socket);
+    }
+
+    /**
+     * Closes every idle connection that has exceeded the idle timeout.
+     */
+    public void evictIdle() {
+        ArrayList<RpmsgSocket> toClose = new ArrayList<>();
+        synchronized (this) {
+            long now = SystemClock.uptimeMillis();
+            Iterator<Endpoint> it = endpoints.values().iterator();
+            while (it.hasNext()) {
+                Endpoint endpoint = it.next();
+                evictExpired(endpoint, now, toClose);
+                if (endpoint.idle.isEmpty() && endpoint.active == 0) {
+                    it.remove();
+                }
+            }
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Returns the number of idle connections to {@code address}.
+     */
+    public synchronized int getIdleCount(@NonNull RpmsgSocketAddress address) {
+        Endpoint endpoint = endpoints.get(address);
+        return endpoint == null ? 0 : endpoint.idle.size();
+    }
+
+    /**
+     * Returns the number of borrowed connections to {@code address}.
+     */
+    public synchronized int getActiveCount(@NonNull RpmsgSocketAddress address) {
+        Endpoint endpoint = endpoints.get(address);
+        return endpoint == null ? 0 : endpoint.active;
+    }
+
+    /**
+     * Closes every idle connection. Borrowed connections are closed when
+     * they are released.
+     */
+    @Override
+    public void close() {
+        ArrayList<RpmsgSocket> toClose = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Endpoint endpoint : endpoints.values()) {
+                for (IdleConnection conn : endpoint.idle) {
+                    toClose.add(conn.socket);
+                }
+                endpoint.idle.clear();
+            }
+            notifyAll();
+        }
+        closeAll(toClose);
+    }
+
+    private Endpoint getEndpoint(RpmsgSocketAddress address) {
+        Endpoint endpoint = endpoints.get(address);
+        if (endpoint == null) {
+            endpoint = new Endpoint();
+            endpoints.put(address, endpoint);
+        }
+        return endpoint;
+    }
+
+    private void evictExpired(Endpoint endpoint, long now, ArrayList<RpmsgSocket> toClose) {
+        if (idleTimeoutMillis == 0) {
+            return;
+        }
+        // Oldest connections sit at the tail.
+        IdleConnection conn;
+        while ((conn = endpoint.idle.peekLast()) != null
+                && now - conn.idleSince >= idleTimeoutMillis) {
+            endpoint.idle.pollLast();
+            toClose.add(conn.socket);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("connection pool closed");
+        }
+    }
+
+    /**
+     * Puts SO_TIMEOUT back to its default so the next borrower does not
+     * inherit it. Modes that would change how the next borrower's I/O
+     * behaves are not undone; such a connection is not reused.
+     *
+     * @return false if the connection must be closed rather than pooled
+     */
+    private static boolean resetOptions(RpmsgSocket socket) {
+        try {
+            RpmsgSocketImpl impl = socket.getImpl();
+            if (!impl.isBlocking() || impl.isCorked() || impl.getWriteBufferSize() != 0
+                    || impl.getSendQueue() != null) {
+                return false;
+            }
+            if (socket.getSoTimeout() != 0) {
+                socket.setSoTimeout(0);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A pooled connection is healthy if its fd is open and neither hung up,
+     * in error, nor readable, and nothing is left in its read-ahead buffer.
+     * Data waiting on an idle connection would be mistaken for the reply to
+     * the next request.
+     */
+    private static boolean isHealthy(RpmsgSocket socket) {
+        FileDescriptor fd = socket.getFileDescriptor();
+        if (fd == null) {
+            return false;
+        }
+
+        try {
+            if (socket.getInputStream().available() > 0) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        StructPollfd pollfd = new StructPollfd();
+        pollfd.fd = fd;
+        pollfd.events = (short) OsConstants.POLLIN;
+        try {
+            if (Os.poll(new StructPollfd[] { pollfd }, 0) == 0) {
+                return true;
+            }
+        } catch (ErrnoException e) {
+            return false;
+        }
+        return false;
+    }
+
+    private static void closeAll(ArrayList<RpmsgSocket> sockets) {
+        for (int i = 0; i < sockets.size(); i++) {
+            closeQuietly(sockets.get(i));
+        }
+    }
+
+    private static void closeQuietly(RpmsgSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A single thread multiplexing rpmsg channels through a {@link RpmsgSelector}.
+ * Readiness events are dispatched to the {@link Callback} attached to each
+ * key, and tasks submitted through {@link #execute} or {@link #schedule} run
+ * on the same thread between selections, so state owned by the loop needs no
+ * locking.
+ */
+public final class RpmsgEventLoop implements Executor {
+    private static final String TAG = "RpmsgEventLoop";
+
+    /**
+     * Receives the readiness events of a key registered through
+     * {@link #register}. Always called on the loop thread.
+     */
+    /* package */ interface Callback {
+        /**
+         * @param key the key, its readyOps() tell which operations are ready
+         */
+        void onReady(RpmsgSelectionKey key);
+    }
+
+    /**
+     * A task scheduled through {@link #schedule}.
+     */
+    /* package */ static final class Timer implements Comparable<Timer> {
+        private final Runnable task;
+        private final long deadline;
+        /** breaks ties between equal deadlines, set on the loop thread */
+        private long sequence;
+        private volatile boolean cancelled;
+
+        private Timer(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keeps the task from running if it has not started yet. May be
+         * called from any thread.
+         */
+        /* package */ void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final RpmsgSelector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /** pending timers, only touched on the loop thread */
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private long timerSequence;
+    private final Thread thread;
+    private volatile boolean shutdown;
+
+    /**
+     * Creates and starts an event loop.
+     *
+     * @param name name of the loop thread
+     * @param stackSize requested stack size of the loop thread, 0 for the default
+     * @throws IOException if the selector cannot be opened
+     */
+    /* package */ RpmsgEventLoop(String name, long stackSize) throws IOException {
+        selector = RpmsgSelector.open();
+        thread = new Thread(null, this::run, name, stackSize);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the loop thread. Tasks run in submission order.
+     *
+     * @param task the task to run
+     * @throws RejectedExecutionException if the loop has been shut down
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("event loop shut down");
+        }
+        tasks.add(task);
+        // A shutdown racing with the add may have done its final drain
+        // already. Whoever removes the task decides: the loop runs it, or
+        // it is rejected here, it is never left behind.
+        if (shutdown && tasks.remove(task)) {
+            throw new RejectedExecutionException("event loop shut down");
+        }
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task on the loop thread once {@code delayMillis} have elapsed.
+     * Timers fire in deadline order, after the readiness events of the same
+     * selection.
+     *
+     * @param task the task to run
+     * @param delayMillis delay from now
+     * @return a handle to cancel the task with
+     * @throws RejectedExecutionException if the loop has been shut down
+     */
+    /* package */ Timer schedule(Runnable task, long delayMillis) {
+        Timer timer = new Timer(task, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+        if (inEventLoop()) {
+            addTimer(timer);
+        } else {
+            execute(() -> addTimer(timer));
+        }
+        return timer;
+    }
+
+    private void addTimer(Timer timer) {
+        timer.sequence = timerSequence++;
+        timers.add(timer);
+    }
+
+    /**
+     * Tells whether the calling thread is the loop thread.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Registers a channel with this loop's selector. Must be called on the
+     * loop thread.
+     *
+     * @param channel non-blocking channel to register
+     * @param ops interest set
+     * @param callback receives the readiness events
+     * @return the key
+     * @throws IOException
+     */
+    /* package */ RpmsgSelectionKey register(RpmsgSelectableChannel channel, int ops,
+            Callback callback) throws IOException {
+        if (!inEventLoop()) {
+            throw new IllegalStateException("not on the event loop thread");
+        }
+        return channel.register(selector, ops, callback);
+    }
+
+    /**
+     * Registers a bare file descriptor with this loop's selector, for fds
+     * not wrapped in a channel. Must be called on the loop thread, the
+     * caller cancels the key before closing the fd.
+     *
+     * @param fd non-blocking file descriptor to register
+     * @param ops interest set
+     * @param callback receives the readiness events
+     * @return the key
+     * @throws IOException
+     */
+    /* package */ RpmsgSelectionKey register(FileDescriptor fd, int ops, Callback callback)
+            throws IOException {
+        if (!inEventLoop()) {
+            throw new IllegalStateException("not on the event loop thread");
+        }
+        return selector.register(null, fd, ops, callback);
+    }
+
+    /**
+     * Stops the loop once the tasks already submitted have run, and closes
+     * its selector. Registered channels stay open.
+     */
+    public void shutdown() {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Tells whether {@link #shutdown} has been called.
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    private void run() {
+        try {
+            while (!shutdown) {
+                runTasks();
+                if (shutdown) {
+                    break;
+                }
+                long timeout = nextTimerDelay();
+                if (timeout < 0) {
+                    selector.select();
+                } else if (timeout == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                processSelectedKeys();
+                runTimers();
+            }
+            runTasks();
+        } catch (Throwable t) {
+            Log.e(TAG, "event loop " + thread.getName() + " died", t);
+            shutdown = true;
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Exception in event loop task", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the time until the next timer fires, or -1 if there is none.
+     */
+    private long nextTimerDelay() {
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.cancelled) {
+            timers.poll();
+        }
+        if (timer == null) {
+            return -1;
+        }
+        return Math.max(0, timer.deadline - SystemClock.uptimeMillis());
+    }
+
+    private void runTimers() {
+        long now = SystemClock.uptimeMillis();
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.deadline <= now) {
+            timers.poll();
+            if (timer.cancelled) {
+                continue;
+            }
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Exception in event loop timer", e);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<RpmsgSelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            RpmsgSelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            Object att = key.attachment();
+            if (att instanceof Callback) {
+                try {
+                    ((Callback) att).onReady(key);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Exception in event loop callback", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed group of {@link RpmsgEventLoop} threads. Connections are spread
+ * over the loops round robin, each connection then stays on its loop for its
+ * whole life.
+ */
+public class RpmsgEventLoopGroup implements Closeable {
+    private static final AtomicInteger sGroupCount = new AtomicInteger();
+
+    private final RpmsgEventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates a group with the given number of loop threads, each with
+     * the default stack size.
+     *
+     * @param nThreads number of loops, at least 1
+     * @throws IOException if a selector cannot be opened
+     */
+    public RpmsgEventLoopGroup(int nThreads) throws IOException {
+        this(nThreads, 0);
+    }
+
+    /**
+     * Creates a group with the given number of loop threads.
+     *
+     * @param nThreads number of loops, at least 1
+     * @param stackSize requested stack size of each loop thread in bytes, 0 for
+     * the default. Handlers run on these threads, so keep them shallow.
+     * @throws IOException if a selector cannot be opened
+     */
+    public RpmsgEventLoopGroup(int nThreads, long stackSize) throws IOException {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("nThreads < 1");
+        }
+
+        int group = sGroupCount.incrementAndGet();
+        loops = new RpmsgEventLoop[nThreads];
+        try {
+            for (int i = 0; i < nThreads; i++) {
+                loops[i] = new RpmsgEventLoop("RpmsgEventLoop-" + group + "-" + i, stackSize);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the next loop in round robin order.
+     */
+    public RpmsgEventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Returns the number of loops in this group.
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    /**
+     * Shuts down every loop of the group.
+     */
+    @Override
+    public void close() {
+        for (RpmsgEventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+}
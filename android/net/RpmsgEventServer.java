@@ -0,0 +1,381 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An event driven server around {@link RpmsgServerSocket}. Connections are
+ * accepted and served by the loops of a {@link RpmsgEventLoopGroup}, so any
+ * number of clients is handled by a small, fixed number of threads instead
+ * of one thread per connection.
+ *
+ * All {@link Handler} methods for a given connection are called on the loop
+ * that owns it, one at a time. They must not block.
+ */
+public class RpmsgEventServer implements Closeable {
+    private static final String TAG = "RpmsgEventServer";
+
+    /** first pause after a failed accept, doubled on each further failure */
+    private static final long ACCEPT_BACKOFF_MIN_MILLIS = 100;
+    /** longest pause after a failed accept */
+    private static final long ACCEPT_BACKOFF_MAX_MILLIS = 2000;
+
+    /**
+     * Receives the events of the connections of a {@link RpmsgEventServer}.
+     * An IOException or RuntimeException thrown from a handler method closes
+     * the connection.
+     */
+    public interface Handler {
+        /**
+         * Called once a connection has been accepted and registered. Its
+         * interest set is {@link RpmsgSelectionKey#OP_READ}.
+         *
+         * @param connection the new connection
+         */
+        void onAccepted(@NonNull Connection connection) throws IOException;
+
+        /**
+         * Called when the connection can be read without blocking, or has
+         * reached end of stream.
+         *
+         * @param connection the readable connection
+         */
+        void onReadable(@NonNull Connection connection) throws IOException;
+
+        /**
+         * Called when the connection can be written without blocking and
+         * {@link RpmsgSelectionKey#OP_WRITE} is in its interest set.
+         *
+         * @param connection the writable connection
+         */
+        default void onWritable(@NonNull Connection connection) throws IOException {
+            connection.setInterestOps(connection.getInterestOps() & ~RpmsgSelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Called once after the connection has been closed, whether by the
+         * handler, the server or because of an error.
+         *
+         * @param connection the closed connection
+         * @param cause the exception that closed it, or null
+         */
+        default void onClosed(@NonNull Connection connection, IOException cause) {
+        }
+    }
+
+    /**
+     * A connection accepted by a {@link RpmsgEventServer}. Its channel is
+     * non-blocking and owned by a single event loop.
+     */
+    public final class Connection implements RpmsgEventLoop.Callback {
+        private final RpmsgSocketChannel channel;
+        private final RpmsgEventLoop loop;
+        private RpmsgSelectionKey key;
+        private Object attachment;
+        private boolean closed;
+
+        private Connection(RpmsgSocketChannel channel, RpmsgEventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        /**
+         * Returns the non-blocking channel of this connection.
+         */
+        public RpmsgSocketChannel channel() {
+            return channel;
+        }
+
+        /**
+         * Returns the loop serving this connection. Use it to run work that
+         * touches the connection from other threads.
+         */
+        public RpmsgEventLoop eventLoop() {
+            return loop;
+        }
+
+        /**
+         * Returns the current interest set, 0 once the connection is closed.
+         * Must be called on the loop thread.
+         */
+        public int getInterestOps() {
+            return closed ? 0 : key.interestOps();
+        }
+
+        /**
+         * Replaces the interest set, typically to add
+         * {@link RpmsgSelectionKey#OP_WRITE} while output is pending.
+         * Must be called on the loop thread.
+         *
+         * @param ops combination of OP_READ and OP_WRITE
+         */
+        public void setInterestOps(int ops) {
+            if (!closed) {
+                key.interestOps(ops);
+            }
+        }
+
+        /**
+         * Attaches per-connection state.
+         */
+        public void attach(Object ob) {
+            attachment = ob;
+        }
+
+        /**
+         * Retrieves the state attached through {@link #attach}.
+         */
+        public Object attachment() {
+            return attachment;
+        }
+
+        /**
+         * Closes the connection. May be called from any thread, the handler's
+         * {@link Handler#onClosed} runs on the loop thread.
+         */
+        public void close() {
+            runOnLoop(loop, () -> closeOnLoop(null));
+        }
+
+        private void register() {
+            try {
+                key = loop.register(channel, RpmsgSelectionKey.OP_READ, this);
+                handler.onAccepted(this);
+            } catch (IOException e) {
+                closeOnLoop(e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Exception in onAccepted", e);
+                closeOnLoop(null);
+            }
+        }
+
+        @Override
+        public void onReady(RpmsgSelectionKey readyKey) {
+            try {
+                if (readyKey.isReadable()) {
+                    handler.onReadable(this);
+                }
+                if (!closed && readyKey.isValid() && readyKey.isWritable()) {
+                    handler.onWritable(this);
+                }
+            } catch (IOException e) {
+                closeOnLoop(e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Exception in connection handler", e);
+                closeOnLoop(null);
+            }
+        }
+
+        private void closeOnLoop(IOException cause) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignored
+            }
+            try {
+                handler.onClosed(this, cause);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Exception in onClosed", e);
+            }
+        }
+    }
+
+    private final RpmsgServerSocketChannel serverChannel;
+    private final RpmsgEventLoopGroup group;
+    private final RpmsgEventLoop acceptLoop;
+    private final Handler handler;
+    private final Set<Connection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private volatile boolean closed;
+
+    /** key of the server channel, only touched on the accept loop */
+    private RpmsgSelectionKey acceptKey;
+    /** current pause after a failed accept, 0 while accepting works */
+    private long acceptBackoffMillis;
+    /** number of failed accepts, for tests */
+    private volatile int acceptFailures;
+
+    /**
+     * Creates a server listening at the specified name and starts accepting
+     * connections on the loops of {@code group}.
+     *
+     * @param name for the socket name
+     * @param group loops that accept and serve the connections; not closed
+     * by {@link #close()} so it can be shared between servers
+     * @param handler receives the connection events
+     * @throws IOException
+     */
+    public RpmsgEventServer(@NonNull String name, @NonNull RpmsgEventLoopGroup group,
+            @NonNull Handler handler) throws IOException {
+        this(RpmsgServerSocketChannel.open(name), group, handler);
+    }
+
+    /* package */ RpmsgEventServer(RpmsgServerSocketChannel serverChannel,
+            RpmsgEventLoopGroup group, Handler handler) throws IOException {
+        this.group = group;
+        this.handler = handler;
+        this.serverChannel = serverChannel;
+        try {
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+
+        acceptLoop = group.next();
+        acceptLoop.execute(() -> {
+            try {
+                acceptKey = acceptLoop.register(serverChannel, RpmsgSelectionKey.OP_ACCEPT,
+                        key -> acceptPending());
+            } catch (IOException e) {
+                Log.e(TAG, "cannot register server socket "
+                        + serverChannel.socket().getRpmsgSocketAddress(), e);
+            }
+        });
+    }
+
+    /**
+     * Obtains the address the server is listening at.
+     */
+    public RpmsgSocketAddress getRpmsgSocketAddress() {
+        return serverChannel.socket().getRpmsgSocketAddress();
+    }
+
+    /**
+     * Returns the number of open connections.
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /* package */ int getAcceptFailures() {
+        return acceptFailures;
+    }
+
+    private void acceptPending() {
+        while (!closed) {
+            RpmsgSocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                pauseAccepting(e);
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            acceptBackoffMillis = 0;
+
+            try {
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                Log.e(TAG, "cannot make connection non-blocking", e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // ignored
+                }
+                continue;
+            }
+
+            RpmsgEventLoop loop = group.next();
+            Connection connection = new Connection(channel, loop);
+            connections.add(connection);
+            runOnLoop(loop, connection::register);
+        }
+    }
+
+    /**
+     * Drops OP_ACCEPT for a while after accept failed. The pending connection
+     * keeps the server socket readable, so errors such as EMFILE would
+     * otherwise wake the loop over and over until descriptors are freed.
+     */
+    private void pauseAccepting(IOException e) {
+        acceptFailures++;
+        acceptBackoffMillis = acceptBackoffMillis == 0 ? ACCEPT_BACKOFF_MIN_MILLIS
+                : Math.min(acceptBackoffMillis * 2, ACCEPT_BACKOFF_MAX_MILLIS);
+        Log.e(TAG, "accept failed, retrying in " + acceptBackoffMillis + "ms", e);
+        if (acceptKey == null || !acceptKey.isValid()) {
+            return;
+        }
+        acceptKey.interestOps(0);
+        acceptLoop.schedule(() -> {
+            if (!closed && acceptKey.isValid()) {
+                acceptKey.interestOps(RpmsgSelectionKey.OP_ACCEPT);
+            }
+        }, acceptBackoffMillis);
+    }
+
+    /**
+     * Runs the task on the loop, or right away if the loop is the calling
+     * thread or has already been shut down and so is not using the task's
+     * state any more.
+     */
+    private static void runOnLoop(RpmsgEventLoop loop, Runnable task) {
+        if (loop.inEventLoop() || loop.isShutdown()) {
+            task.run();
+            return;
+        }
+        try {
+            loop.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Stops accepting and closes every open connection. The loop group is
+     * left running.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        runOnLoop(acceptLoop, () -> {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        });
+
+        ArrayList<Connection> open = new ArrayList<>(connections);
+        for (int i = 0; i < open.size(); i++) {
+            open.get(i).close();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Length-prefixed message framing over a blocking stream {@link RpmsgSocket}.
+ * Every frame is an unsigned length field of 1, 2 or 4 bytes followed by
+ * that many payload bytes.
+ *
+ * Reads go through a receive buffer, so a run of small frames costs one
+ * read(2) rather than two per frame, and a large payload is scattered
+ * straight into its pooled buffer together with the next frame's header.
+ * Writes gather the header and the payload into a single writev(2).
+ *
+ * One thread may read while another writes; concurrent readers or
+ * concurrent writers are serialized so that frames never interleave.
+ */
+public final class RpmsgFrameCodec {
+    /** default largest accepted payload */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+    /** default receive buffer size */
+    private static final int RECEIVE_BUFFER_SIZE = 8192;
+
+    private final RpmsgSocket socket;
+    private final int lengthFieldSize;
+    private final int maxFrameSize;
+    private final RpmsgBufferPool pool;
+
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    /** bytes received past the last frame, kept in read mode; readLock */
+    private final ByteBuffer receive;
+    /** readLock */
+    private final ByteBuffer[] scatter = new ByteBuffer[2];
+    /** writeLock */
+    private final ByteBuffer header;
+    /** writeLock */
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    private final LongAdder framesRead = new LongAdder();
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder payloadBytesRead = new LongAdder();
+    private final LongAdder payloadBytesWritten = new LongAdder();
+    private final LongAdder readCalls = new LongAdder();
+    private final LongAdder oversizedFrames = new LongAdder();
+    private volatile int largestFrameRead;
+
+    /**
+     * Creates a codec with a 4-byte big-endian length field, frames up to
+     * {@link #DEFAULT_MAX_FRAME_SIZE} and the shared buffer pool.
+     *
+     * @param socket connected stream socket
+     */
+    public RpmsgFrameCodec(@NonNull RpmsgSocket socket) {
+        this(socket, 4, ByteOrder.BIG_ENDIAN, DEFAULT_MAX_FRAME_SIZE,
+                RpmsgBufferPool.getDefault());
+    }
+
+    /**
+     * Creates a codec.
+     *
+     * @param socket connected stream socket, in blocking mode
+     * @param lengthFieldSize size of the length prefix, 1, 2 or 4
+     * @param order byte order of the length prefix
+     * @param maxFrameSize largest payload accepted in either direction
+     * @param pool where received payloads are allocated from
+     */
+    public RpmsgFrameCodec(@NonNull RpmsgSocket socket, int lengthFieldSize,
+            @NonNull ByteOrder order, int maxFrameSize, @NonNull RpmsgBufferPool pool) {
+        if (lengthFieldSize != 1 && lengthFieldSize != 2 && lengthFieldSize != 4) {
+            throw new IllegalArgumentException("length field must be 1, 2 or 4 bytes");
+        }
+        long fieldMax = lengthFieldSize == 4
+                ? Integer.MAX_VALUE : (1L << (8 * lengthFieldSize)) - 1;
+        if (maxFrameSize < 0 || maxFrameSize > fieldMax) {
+            throw new IllegalArgumentException("max frame size " + maxFrameSize
+                    + " does not fit a " + lengthFieldSize + "-byte length field");
+        }
+        this.socket = socket;
+        this.lengthFieldSize = lengthFieldSize;
+        this.maxFrameSize = maxFrameSize;
+        this.pool = pool;
+
+        receive = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE).order(order);
+        receive.limit(0);
+        header = ByteBuffer.allocate(lengthFieldSize).order(order);
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @return the payload, position 0 and limit its length, taken from the
+     * pool; hand it back through {@link #release} when done. null when the
+     * peer closed the stream between frames.
+     * @throws EOFException if the stream ends inside a frame
+     * @throws ProtocolException if the frame is larger than the maximum
+     * frame size; the stream cannot be resynchronized after this
+     * @throws IOException if the read fails
+     */
+    public @Nullable ByteBuffer readFrame() throws IOException {
+        synchronized (readLock) {
+            if (!fill(lengthFieldSize)) {
+                return null;
+            }
+
+            long length;
+            switch (lengthFieldSize) {
+                case 1:
+                    length = receive.get() & 0xff;
+                    break;
+                case 2:
+                    length = receive.getShort() & 0xffff;
+                    break;
+                default:
+                    length = receive.getInt() & 0xffffffffL;
+                    break;
+            }
+            if (length > maxFrameSize) {
+                oversizedFrames.increment();
+                throw new ProtocolException("frame of " + length + " bytes exceeds "
+                        + maxFrameSize);
+            }
+
+            int size = (int) length;
+            ByteBuffer frame = pool.acquire(size);
+            try {
+                if (receive.remaining() >= size) {
+                    int limit = receive.limit();
+                    receive.limit(receive.position() + size);
+                    frame.put(receive);
+                    receive.limit(limit);
+                } else {
+                    frame.put(receive);
+                    readRemaining(frame);
+                }
+            } catch (IOException | RuntimeException e) {
+                pool.release(frame);
+                throw e;
+            }
+            frame.flip();
+
+            framesRead.increment();
+            payloadBytesRead.add(size);
+            if (size > largestFrameRead) {
+                largestFrameRead = size;
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of {@code payload} as one frame, header
+     * and payload together in a single gathering write when the socket
+     * takes it all at once.
+     *
+     * @param payload frame content, its position is advanced to its limit
+     * @throws IllegalArgumentException if the payload is larger than the
+     * maximum frame size
+     * @throws IOException if the write fails
+     */
+    public void writeFrame(@NonNull ByteBuffer payload) throws IOException {
+        int size = payload.remaining();
+        if (size > maxFrameSize) {
+            oversizedFrames.increment();
+            throw new IllegalArgumentException("frame of " + size + " bytes exceeds "
+                    + maxFrameSize);
+        }
+
+        synchronized (writeLock) {
+            header.clear();
+            switch (lengthFieldSize) {
+                case 1:
+                    header.put((byte) size);
+                    break;
+                case 2:
+                    header.putShort((short) size);
+                    break;
+                default:
+                    header.putInt(size);
+                    break;
+            }
+            header.flip();
+
+            gather[0] = header;
+            gather[1] = payload;
+            try {
+                while (payload.hasRemaining() || header.hasRemaining()) {
+                    socket.write(gather, 0, 2);
+                }
+            } finally {
+                gather[1] = null;
+            }
+        }
+        framesWritten.increment();
+        payloadBytesWritten.add(size);
+    }
+
+    /**
+     * Writes {@code len} bytes of {@code b} as one frame.
+     *
+     * @see #writeFrame(ByteBuffer)
+     */
+    public void writeFrame(@NonNull byte[] b, int off, int len) throws IOException {
+        writeFrame(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Hands a buffer returned by {@link #readFrame} back to the pool.
+     */
+    public void release(@NonNull ByteBuffer frame) {
+        pool.release(frame);
+    }
+
+    /**
+     * Returns the socket frames are read from and written to.
+     */
+    public @NonNull RpmsgSocket getSocket() {
+        return socket;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    public long getFramesRead() {
+        return framesRead.sum();
+    }
+
+    public long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    /** payload bytes only, length fields are not counted */
+    public long getPayloadBytesRead() {
+        return payloadBytesRead.sum();
+    }
+
+    /** payload bytes only, length fields are not counted */
+    public long getPayloadBytesWritten() {
+        return payloadBytesWritten.sum();
+    }
+
+    /**
+     * Returns the number of socket reads issued, to compare against
+     * {@link #getFramesRead()}.
+     */
+    public long getReadCalls() {
+        return readCalls.sum();
+    }
+
+    /**
+     * Returns the number of frames refused for exceeding the maximum frame
+     * size, received or sent.
+     */
+    public long getOversizedFrames() {
+        return oversizedFrames.sum();
+    }
+
+    public int getLargestFrameRead() {
+        return largestFrameRead;
+    }
+
+    /**
+     * Makes at least {@code min} bytes available in the receive buffer.
+     *
+     * @return false if the stream ended with nothing buffered
+     */
+    private boolean fill(int min) throws IOException {
+        if (receive.remaining() >= min) {
+            return true;
+        }
+
+        receive.compact();
+        try {
+            while (receive.position() < min) {
+                long count = read(receive);
+                if (count < 0) {
+                    if (receive.position() == 0) {
+                        return false;
+                    }
+                    throw new EOFException("stream ended inside a frame header");
+                }
+            }
+        } finally {
+            receive.flip();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the rest of {@code frame} from the socket once the receive buffer
+     * is drained, scattering whatever follows into the receive buffer.
+     */
+    private void readRemaining(ByteBuffer frame) throws IOException {
+        receive.clear();
+        scatter[0] = frame;
+        scatter[1] = receive;
+        try {
+            while (frame.hasRemaining()) {
+                if (socket.read(scatter, 0, 2) < 0) {
+                    throw new EOFException("stream ended inside a frame");
+                }
+                readCalls.increment();
+            }
+        } finally {
+            scatter[0] = null;
+            receive.flip();
+        }
+    }
+
+    private long read(ByteBuffer dst) throws IOException {
+        long count = socket.read(dst);
+        if (count >= 0) {
+            readCalls.increment();
+        }
+        return count;
+    }
+}
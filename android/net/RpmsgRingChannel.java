@@ -0,0 +1,589 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * A bidirectional byte stream carried through shared memory instead of
+ * socket buffers. Each direction is a single-producer single-consumer ring
+ * in a region mapped by both peers; a connected stream {@link RpmsgSocket},
+ * the doorbell, only carries one-byte wakeups, sent when the other side
+ * went to sleep on an empty or full ring. A steady stream therefore moves
+ * without any syscall, and never through socket buffers.
+ *
+ * One side creates the region with {@link #create}, hands
+ * {@link #getSharedMemory()} to the peer out of band, and the peer maps it
+ * with {@link #attach}. Where the doorbell can pass descriptors,
+ * {@link #open} and {@link #accept} do the hand over through it. The
+ * streams and buffer methods mirror those of {@link RpmsgSocket}; one
+ * thread may read while another writes.
+ *
+ * By default the region is a sealed memfd, which only peers on the same
+ * core can map. To talk to a remote core, create the channel with
+ * {@link #create(RpmsgSocket, FileDescriptor, int)} on a region both cores
+ * can reach, such as a shared memory carveout exposed through a device
+ * node, and have the peer attach to the same region.
+ */
+public final class RpmsgRingChannel implements Closeable {
+    /** smallest ring capacity */
+    public static final int MIN_CAPACITY = 4096;
+    /** largest ring capacity */
+    public static final int MAX_CAPACITY = 1 << 28;
+
+    /** matches RING_HEADER_SIZE in the native code */
+    private static final int RING_HEADER_SIZE = 256;
+    /** high word flag of native_read and native_write results */
+    private static final long WAKE_PEER = 1L << 32;
+    private static final int RING_CLOSED = -1;
+    private static final byte DOORBELL = 1;
+    /** handshake sent by open(), the region size */
+    private static final int HELLO_SIZE = 8;
+
+    private final RpmsgSocket doorbell;
+    private final InputStream doorbellIn;
+    private final OutputStream doorbellOut;
+    private final FileDescriptor shm;
+    private final int capacity;
+    /** ring this side produces into, the other one it consumes */
+    private final int txRing;
+    private final int rxRing;
+
+    /** null once closed; read under the monitor of the direction using it */
+    private ByteBuffer map;
+    private final Object readMonitor = new Object();
+    private final Object writeMonitor = new Object();
+
+    /** guards pumping, see awaitDoorbell */
+    private final Object doorbellLock = new Object();
+    private boolean pumping;
+    private final byte[] doorbellBuffer = new byte[64];
+    private volatile boolean peerGone;
+    private volatile boolean closed;
+
+    private final RingInputStream inputStream = new RingInputStream();
+    private final RingOutputStream outputStream = new RingOutputStream();
+
+    static {
+        System.loadLibrary("cpc_extension_jni");
+    }
+
+    private static native FileDescriptor native_create_shared(String name, long size)
+            throws IOException;
+    private static native ByteBuffer native_map(FileDescriptor fd, long size,
+            boolean sealedOnly) throws IOException;
+    private static native void native_unmap(ByteBuffer map);
+    private static native void native_init(ByteBuffer map, int capacity);
+    private static native int native_capacity(ByteBuffer map);
+    private static native long native_write(ByteBuffer map, int ring, int capacity,
+            Object b, int off, int len) throws IOException;
+    private static native long native_read(ByteBuffer map, int ring, int capacity,
+            Object b, int off, int len) throws IOException;
+    private static native boolean native_prepare_wait(ByteBuffer map, int ring,
+            int capacity, boolean producer);
+    private static native void native_close(ByteBuffer map, int ring, int capacity,
+            boolean producer);
+
+    private RpmsgRingChannel(RpmsgSocket doorbell, FileDescriptor shm, ByteBuffer map,
+            int capacity, boolean creator) throws IOException {
+        this.doorbell = doorbell;
+        this.doorbellIn = doorbell.getInputStream();
+        this.doorbellOut = doorbell.getOutputStream();
+        this.shm = shm;
+        this.map = map;
+        this.capacity = capacity;
+        this.txRing = creator ? 0 : 1;
+        this.rxRing = creator ? 1 : 0;
+    }
+
+    /**
+     * Creates a shared region holding two rings of {@code capacity} bytes
+     * and a channel writing to the first one.
+     *
+     * @param doorbell connected stream socket to the peer; the channel
+     * takes it over and closes it on {@link #close()}
+     * @param capacity bytes per direction, a power of two between
+     * {@link #MIN_CAPACITY} and {@link #MAX_CAPACITY}
+     * @return the channel, once the peer has attached to
+     * {@link #getSharedMemory()}
+     * @throws IOException if the region cannot be created or mapped
+     */
+    public static @NonNull RpmsgRingChannel create(@NonNull RpmsgSocket doorbell,
+            int capacity) throws IOException {
+        if (capacity < MIN_CAPACITY || capacity > MAX_CAPACITY
+                || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("invalid ring capacity " + capacity);
+        }
+
+        FileDescriptor shm = native_create_shared("rpmsg-ring", regionSize(capacity));
+        try {
+            return create(doorbell, shm, capacity);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(shm);
+            throw e;
+        }
+    }
+
+    /**
+     * Lays out two rings of {@code capacity} bytes in a region provided by
+     * the caller, such as a carveout shared with a remote core, and returns
+     * a channel writing to the first one. Whatever the region held is
+     * overwritten. A memfd must be sealed against shrinking and growing;
+     * other regions cannot be sealed, and the caller vouches that no peer
+     * resizes them.
+     *
+     * @param doorbell connected stream socket to the peer; the channel
+     * takes it over and closes it on {@link #close()}
+     * @param region descriptor of at least {@link #regionSize} bytes of
+     * memory both peers can map; the channel takes it over on success
+     * @param capacity bytes per direction, a power of two between
+     * {@link #MIN_CAPACITY} and {@link #MAX_CAPACITY}
+     * @return the channel, once the peer has attached to the region
+     * @throws IOException if the region cannot be mapped or is too small
+     */
+    public static @NonNull RpmsgRingChannel create(@NonNull RpmsgSocket doorbell,
+            @NonNull FileDescriptor region, int capacity) throws IOException {
+        if (capacity < MIN_CAPACITY || capacity > MAX_CAPACITY
+                || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("invalid ring capacity " + capacity);
+        }
+
+        ByteBuffer map = native_map(region, regionSize(capacity), false);
+        try {
+            native_init(map, capacity);
+            return new RpmsgRingChannel(doorbell, region, map, capacity, true);
+        } catch (IOException | RuntimeException e) {
+            native_unmap(map);
+            throw e;
+        }
+    }
+
+    /**
+     * Maps a region created by the peer with {@link #create} and returns the
+     * channel writing to its second ring.
+     *
+     * @param doorbell connected stream socket to the peer that created the
+     * region; the channel takes it over and closes it on {@link #close()}
+     * @param shm the peer's {@link #getSharedMemory()}, or the same shared
+     * region it was created on; the channel takes it over
+     * @param size size of the region in bytes
+     * @throws IOException if the region cannot be mapped, is a memfd not
+     * sealed against resizing or is not a ring region
+     */
+    public static @NonNull RpmsgRingChannel attach(@NonNull RpmsgSocket doorbell,
+            @NonNull FileDescriptor shm, long size) throws IOException {
+        return attach(doorbell, shm, size, false);
+    }
+
+    private static RpmsgRingChannel attach(RpmsgSocket doorbell, FileDescriptor shm,
+            long size, boolean sealedOnly) throws IOException {
+        if (size < regionSize(MIN_CAPACITY) || size > regionSize(MAX_CAPACITY)) {
+            throw new IOException("invalid ring region size " + size);
+        }
+        ByteBuffer map = native_map(shm, size, sealedOnly);
+        int capacity = native_capacity(map);
+        if (capacity < MIN_CAPACITY || capacity > MAX_CAPACITY) {
+            native_unmap(map);
+            throw new IOException("not an rpmsg ring region");
+        }
+        return new RpmsgRingChannel(doorbell, shm, map, capacity, false);
+    }
+
+    /**
+     * Creates a region as {@link #create} does and hands it to the peer
+     * over the doorbell itself, which must run on a transport that
+     * {@link RpmsgTransport#canPassFileDescriptors() can pass descriptors}.
+     * The peer calls {@link #accept} on its end of the doorbell.
+     *
+     * @param doorbell connected stream socket to the peer
+     * @param capacity bytes per direction
+     * @throws IOException if the region cannot be created or sent
+     */
+    public static @NonNull RpmsgRingChannel open(@NonNull RpmsgSocket doorbell, int capacity)
+            throws IOException {
+        RpmsgRingChannel channel = create(doorbell, capacity);
+        try {
+            byte[] hello = new byte[HELLO_SIZE];
+            ByteBuffer.wrap(hello).putLong(regionSize(capacity));
+            doorbell.setFileDescriptorsForSend(new FileDescriptor[] { channel.shm });
+            channel.doorbellOut.write(hello);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Receives the region the peer created with {@link #open} and attaches
+     * to it. Whatever descriptor arrives must be a sealed memfd; a peer
+     * cannot make this side map an arbitrary file or device.
+     *
+     * @param doorbell connected stream socket to the peer
+     * @throws IOException if no region arrives, it is not a sealed memfd or
+     * it cannot be mapped
+     */
+    public static @NonNull RpmsgRingChannel accept(@NonNull RpmsgSocket doorbell)
+            throws IOException {
+        InputStream in = doorbell.getInputStream();
+        byte[] hello = new byte[HELLO_SIZE];
+        FileDescriptor shm = null;
+        int received = 0;
+        try {
+            while (received < HELLO_SIZE) {
+                int count = in.read(hello, received, HELLO_SIZE - received);
+                if (count < 0) {
+                    throw new EOFException("doorbell closed during handshake");
+                }
+                received += count;
+                FileDescriptor[] fds = doorbell.getAncillaryFileDescriptors();
+                if (fds != null) {
+                    for (FileDescriptor fd : fds) {
+                        if (shm == null) {
+                            shm = fd;
+                        } else {
+                            closeQuietly(fd);
+                        }
+                    }
+                }
+            }
+            if (shm == null) {
+                throw new IOException("no ring region received");
+            }
+            return attach(doorbell, shm, ByteBuffer.wrap(hello).getLong(), true);
+        } catch (IOException | RuntimeException e) {
+            if (shm != null) {
+                closeQuietly(shm);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the size of a region holding two rings of {@code capacity}
+     * bytes, to pass to {@link #attach} alongside the descriptor.
+     */
+    public static long regionSize(int capacity) {
+        return 2L * (RING_HEADER_SIZE + capacity);
+    }
+
+    /**
+     * Returns the descriptor of the shared region, to be handed to the
+     * peer. It stays owned by this channel.
+     */
+    public @NonNull FileDescriptor getSharedMemory() {
+        return shm;
+    }
+
+    /**
+     * Returns the ring capacity of each direction in bytes.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the socket carrying the wakeups.
+     */
+    public @NonNull RpmsgSocket getDoorbell() {
+        return doorbell;
+    }
+
+    public @NonNull InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public @NonNull OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Reads into the remaining space of {@code dst}, waiting until at least
+     * one byte is available.
+     *
+     * @return number of bytes read, or -1 once the peer closed and the ring
+     * is drained
+     * @throws IOException if the channel is closed
+     */
+    public int read(@NonNull ByteBuffer dst) throws IOException {
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        int pos = dst.position();
+        int count;
+        if (dst.isDirect()) {
+            count = read(dst, pos, dst.remaining());
+        } else {
+            count = read(dst.array(), dst.arrayOffset() + pos, dst.remaining());
+        }
+        if (count > 0) {
+            dst.position(pos + count);
+        }
+        return count;
+    }
+
+    /**
+     * Writes all remaining bytes of {@code src}, waiting for the peer to
+     * make room as needed.
+     *
+     * @return number of bytes written
+     * @throws IOException if the channel or the peer is closed
+     */
+    public int write(@NonNull ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        if (src.isDirect()) {
+            write(src, src.position(), len);
+        } else if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), len);
+        } else {
+            byte[] b = new byte[len];
+            src.duplicate().get(b);
+            write(b, 0, len);
+        }
+        src.position(src.position() + len);
+        return len;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the channel and its doorbell. The peer reads what was written
+     * before, then end of stream; its writes fail.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (doorbellLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        ByteBuffer m = map;
+        if (m != null) {
+            native_close(m, txRing, capacity, true);
+            native_close(m, rxRing, capacity, false);
+            try {
+                ring();
+            } catch (IOException e) {
+                // The peer is gone already.
+            }
+        }
+
+        // Wakes a thread pumping the doorbell, then waits for every reader
+        // and writer to leave the region before it goes away.
+        try {
+            doorbell.shutdownInput();
+        } catch (IOException e) {
+            // not connected anymore
+        }
+        doorbell.close();
+        synchronized (readMonitor) {
+            synchronized (writeMonitor) {
+                if (map != null) {
+                    native_unmap(map);
+                    map = null;
+                }
+            }
+        }
+        closeQuietly(shm);
+    }
+
+    /**
+     * Reads up to len bytes into b, a byte[] or direct ByteBuffer.
+     */
+    private int read(Object b, int off, int len) throws IOException {
+        checkBounds(b, off, len);
+        if (len == 0) {
+            return 0;
+        }
+
+        synchronized (readMonitor) {
+            boolean lastPass = false;
+            while (true) {
+                long result = native_read(checkOpen(), rxRing, capacity, b, off, len);
+                if (result == RING_CLOSED) {
+                    return -1;
+                }
+                if ((result & WAKE_PEER) != 0) {
+                    ring();
+                }
+                int count = (int) result;
+                if (count > 0) {
+                    return count;
+                }
+                if (lastPass) {
+                    // The peer vanished without closing its end, and what
+                    // it wrote before has been drained.
+                    return -1;
+                }
+                lastPass = !awaitDoorbell(false);
+            }
+        }
+    }
+
+    /**
+     * Writes all len bytes of b, a byte[] or direct ByteBuffer.
+     */
+    private void write(Object b, int off, int len) throws IOException {
+        checkBounds(b, off, len);
+
+        synchronized (writeMonitor) {
+            while (len > 0) {
+                long result = native_write(checkOpen(), txRing, capacity, b, off, len);
+                if (result == RING_CLOSED) {
+                    throw new SocketException("Broken pipe");
+                }
+                if ((result & WAKE_PEER) != 0) {
+                    ring();
+                }
+                int count = (int) result;
+                off += count;
+                len -= count;
+                if (count == 0 && !awaitDoorbell(true)) {
+                    throw new SocketException("Broken pipe");
+                }
+            }
+        }
+    }
+
+    private ByteBuffer checkOpen() throws IOException {
+        ByteBuffer m = map;
+        if (closed || m == null) {
+            throw new SocketException("Socket closed");
+        }
+        return m;
+    }
+
+    private static void checkBounds(Object b, int off, int len) {
+        int size = b instanceof byte[] ? ((byte[]) b).length : ((ByteBuffer) b).capacity();
+        if (off < 0 || len < 0 || off > size - len) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    private void ring() throws IOException {
+        doorbellOut.write(DOORBELL);
+    }
+
+    /**
+     * Sleeps until the peer rings or the ring becomes ready. The reader and
+     * the writer of this side share the doorbell socket, so one of them at a
+     * time reads it while the other waits on doorbellLock; every wakeup is
+     * passed on to both and each rechecks its own ring.
+     *
+     * @param producer true to wait for space, false to wait for data
+     * @return false if the doorbell hit end of stream, the peer is gone
+     */
+    private boolean awaitDoorbell(boolean producer) throws IOException {
+        ByteBuffer m = checkOpen();
+        while (!native_prepare_wait(m, producer ? txRing : rxRing, capacity, producer)) {
+            synchronized (doorbellLock) {
+                if (peerGone || closed) {
+                    return !peerGone;
+                }
+                if (pumping) {
+                    try {
+                        doorbellLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    continue;
+                }
+                pumping = true;
+            }
+
+            try {
+                if (doorbellIn.read(doorbellBuffer, 0, doorbellBuffer.length) < 0) {
+                    peerGone = true;
+                }
+            } finally {
+                synchronized (doorbellLock) {
+                    pumping = false;
+                    doorbellLock.notifyAll();
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void closeQuietly(FileDescriptor fd) {
+        try {
+            Os.close(fd);
+        } catch (ErrnoException e) {
+            // nothing left to release
+        }
+    }
+
+    private class RingInputStream extends InputStream {
+        /** {@inheritDoc} */
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = RpmsgRingChannel.this.read(b, 0, 1);
+            return count <= 0 ? -1 : b[0] & 0xff;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return RpmsgRingChannel.this.read(b, off, len);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() throws IOException {
+            RpmsgRingChannel.this.close();
+        }
+    }
+
+    private class RingOutputStream extends OutputStream {
+        /** {@inheritDoc} */
+        @Override
+        public void write(int b) throws IOException {
+            RpmsgRingChannel.this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            RpmsgRingChannel.this.write(b, off, len);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() throws IOException {
+            RpmsgRingChannel.this.close();
+        }
+    }
+}
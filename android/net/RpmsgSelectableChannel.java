@@ -0,0 +1,184 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.util.ArrayList;
+
+/**
+ * Base class for the rpmsg channels that can be multiplexed through a
+ * {@link RpmsgSelector}. The interface here is not entirely unlike that of
+ * java.nio.channels.SelectableChannel, but AF_RPMSG file descriptors cannot
+ * be registered with a java.nio.channels.Selector, so the two are not
+ * interchangeable.
+ */
+public abstract class RpmsgSelectableChannel implements Channel {
+    /** keys registered for this channel, one per selector */
+    private final ArrayList<RpmsgSelectionKey> keys = new ArrayList<>();
+
+    /* package */ RpmsgSelectableChannel() {
+    }
+
+    /**
+     * Returns the socket implementation backing this channel, creating
+     * it if needed.
+     */
+    /* package */ abstract RpmsgSocketImpl getImpl() throws IOException;
+
+    /**
+     * Returns the operations supported by this channel, a combination of
+     * the {@code RpmsgSelectionKey.OP_*} bits.
+     *
+     * @return valid operation set
+     */
+    public abstract int validOps();
+
+    /**
+     * Adjusts the blocking mode of this channel. A channel must be
+     * non-blocking to be registered with a selector.
+     *
+     * @param block true to make the channel blocking
+     * @return this channel
+     * @throws IOException
+     */
+    public RpmsgSelectableChannel configureBlocking(boolean block) throws IOException {
+        synchronized (keys) {
+            if (block && !keys.isEmpty()) {
+                throw new IllegalBlockingModeException();
+            }
+            getImpl().setBlocking(block);
+        }
+        return this;
+    }
+
+    /**
+     * Tells whether every I/O operation on this channel will block.
+     *
+     * @return true if the channel is in blocking mode
+     */
+    public boolean isBlocking() {
+        try {
+            return getImpl().isBlocking();
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Registers this channel with the given selector.
+     *
+     * @param sel the selector to register with
+     * @param ops interest set, a combination of {@code RpmsgSelectionKey.OP_*} bits
+     * @param att attachment for the resulting key, may be null
+     * @return the key for this channel and selector
+     * @throws IOException
+     */
+    public RpmsgSelectionKey register(RpmsgSelector sel, int ops, Object att)
+            throws IOException {
+        if ((ops & ~validOps()) != 0) {
+            throw new IllegalArgumentException("invalid ops: " + ops);
+        }
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+
+        synchronized (keys) {
+            if (getImpl().isBlocking()) {
+                throw new IllegalBlockingModeException();
+            }
+
+            RpmsgSelectionKey key = findKey(sel);
+            if (key != null) {
+                key.interestOps(ops);
+                key.attach(att);
+                return key;
+            }
+
+            key = sel.register(this, getImpl().getFileDescriptor(), ops, att);
+            keys.add(key);
+            return key;
+        }
+    }
+
+    /**
+     * Retrieves the key representing this channel's registration with
+     * the given selector.
+     *
+     * @param sel the selector
+     * @return the key, or null if this channel is not registered with it
+     */
+    public RpmsgSelectionKey keyFor(RpmsgSelector sel) {
+        synchronized (keys) {
+            return findKey(sel);
+        }
+    }
+
+    /**
+     * Tells whether this channel is registered with any selector.
+     *
+     * @return true if at least one valid key exists
+     */
+    public boolean isRegistered() {
+        synchronized (keys) {
+            return !keys.isEmpty();
+        }
+    }
+
+    private RpmsgSelectionKey findKey(RpmsgSelector sel) {
+        for (int i = 0; i < keys.size(); i++) {
+            RpmsgSelectionKey key = keys.get(i);
+            if (key.selector() == sel && key.isValid()) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /* package */ void removeKey(RpmsgSelectionKey key) {
+        synchronized (keys) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Closes this channel, cancelling all of its keys first so that no
+     * selector keeps polling a stale file descriptor.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        ArrayList<RpmsgSelectionKey> toCancel;
+        synchronized (keys) {
+            toCancel = new ArrayList<>(keys);
+        }
+        for (int i = 0; i < toCancel.size(); i++) {
+            toCancel.get(i).cancel();
+        }
+        implCloseChannel();
+    }
+
+    /**
+     * Closes the underlying socket.
+     *
+     * @throws IOException
+     */
+    /* package */ abstract void implCloseChannel() throws IOException;
+}
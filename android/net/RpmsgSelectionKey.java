@@ -0,0 +1,186 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import java.io.FileDescriptor;
+import java.nio.channels.CancelledKeyException;
+
+/**
+ * A token representing the registration of a {@link RpmsgSelectableChannel}
+ * with a {@link RpmsgSelector}. The operation bits have the same values as
+ * those of java.nio.channels.SelectionKey.
+ */
+public final class RpmsgSelectionKey {
+    /** Operation-set bit for read operations. */
+    public static final int OP_READ = 1 << 0;
+    /** Operation-set bit for write operations. */
+    public static final int OP_WRITE = 1 << 2;
+    /** Operation-set bit for socket-connect operations. */
+    public static final int OP_CONNECT = 1 << 3;
+    /** Operation-set bit for socket-accept operations. */
+    public static final int OP_ACCEPT = 1 << 4;
+
+    private final RpmsgSelector selector;
+    private final RpmsgSelectableChannel channel;
+    private final FileDescriptor fd;
+    /** identifies this key in the epoll data of the selector */
+    /* package */ final int token;
+
+    /** read directly by the selector, which must not throw for a key cancelled meanwhile */
+    /* package */ volatile int interestOps;
+    private volatile Object attachment;
+    private volatile boolean valid = true;
+    /** only touched by the selecting thread */
+    /* package */ int readyOps;
+
+    /* package */ RpmsgSelectionKey(RpmsgSelector selector, RpmsgSelectableChannel channel,
+            FileDescriptor fd, int token, int ops, Object att) {
+        this.selector = selector;
+        this.channel = channel;
+        this.fd = fd;
+        this.token = token;
+        this.interestOps = ops;
+        this.attachment = att;
+    }
+
+    /**
+     * Returns the channel for which this key was created, or null for
+     * keys on a bare file descriptor.
+     */
+    public RpmsgSelectableChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Returns the selector for which this key was created.
+     */
+    public RpmsgSelector selector() {
+        return selector;
+    }
+
+    /* package */ FileDescriptor getFileDescriptor() {
+        return fd;
+    }
+
+    /**
+     * Tells whether this key is valid, that is neither cancelled nor
+     * belonging to a closed channel or selector.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Requests that the registration of this key's channel with its
+     * selector be cancelled.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (!valid) {
+                return;
+            }
+            valid = false;
+        }
+        selector.cancel(this);
+        if (channel != null) {
+            channel.removeKey(this);
+        }
+    }
+
+    /* package */ void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Retrieves this key's interest set.
+     */
+    public int interestOps() {
+        ensureValid();
+        return interestOps;
+    }
+
+    /**
+     * Sets this key's interest set. Takes effect immediately, even for a
+     * select already in progress on another thread.
+     *
+     * @param ops the new interest set
+     * @return this key
+     */
+    public RpmsgSelectionKey interestOps(int ops) {
+        ensureValid();
+        if (channel != null && (ops & ~channel.validOps()) != 0) {
+            throw new IllegalArgumentException("invalid ops: " + ops);
+        }
+        synchronized (this) {
+            if (interestOps != ops) {
+                interestOps = ops;
+                selector.update(this);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Retrieves the operations found ready by the last selection that
+     * added this key to the selected-key set.
+     */
+    public int readyOps() {
+        ensureValid();
+        return readyOps;
+    }
+
+    public boolean isReadable() {
+        return (readyOps() & OP_READ) != 0;
+    }
+
+    public boolean isWritable() {
+        return (readyOps() & OP_WRITE) != 0;
+    }
+
+    public boolean isConnectable() {
+        return (readyOps() & OP_CONNECT) != 0;
+    }
+
+    public boolean isAcceptable() {
+        return (readyOps() & OP_ACCEPT) != 0;
+    }
+
+    /**
+     * Attaches the given object to this key.
+     *
+     * @param ob the object to attach, may be null
+     * @return the previously attached object, if any
+     */
+    public Object attach(Object ob) {
+        Object old = attachment;
+        attachment = ob;
+        return old;
+    }
+
+    /**
+     * Retrieves the current attachment.
+     */
+    public Object attachment() {
+        return attachment;
+    }
+
+    private void ensureValid() {
+        if (!valid) {
+            throw new CancelledKeyException();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.SparseArray;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A multiplexor of {@link RpmsgSelectableChannel} objects backed by epoll.
+ * The interface here is not entirely unlike that of java.nio.channels.Selector:
+ * keys are added to the selected-key set by {@link #select} and stay there
+ * until the caller removes them.
+ *
+ * Keys may be registered, modified and cancelled from any thread, the change
+ * is applied to the epoll set right away. Selection itself must be performed
+ * by one thread at a time.
+ */
+public class RpmsgSelector implements Closeable {
+    /** maximum number of events fetched by one epoll_wait */
+    private static final int MAX_EVENTS = 64;
+    /** token reserved for the wakeup pipe */
+    private static final int WAKEUP_TOKEN = 0;
+
+    /** values of the EPOLL_CTL_* constants from <sys/epoll.h> */
+    private static final int EPOLL_CTL_ADD = 1;
+    private static final int EPOLL_CTL_DEL = 2;
+    private static final int EPOLL_CTL_MOD = 3;
+
+    private final FileDescriptor epfd;
+    private final FileDescriptor wakeupReadFd;
+    private final FileDescriptor wakeupWriteFd;
+
+    /** registered keys by token, guarded by itself */
+    private final SparseArray<RpmsgSelectionKey> keys = new SparseArray<>();
+    private int nextToken = WAKEUP_TOKEN + 1;
+
+    private final HashSet<RpmsgSelectionKey> selectedKeys = new HashSet<>();
+    private final int[] readyTokens = new int[MAX_EVENTS];
+    private final int[] readyEvents = new int[MAX_EVENTS];
+    private final byte[] drainBuffer = new byte[64];
+    /** held by the selecting thread, close waits for it to be released */
+    private final Object selectLock = new Object();
+
+    private volatile boolean closed;
+
+    static {
+        System.loadLibrary("cpc_extension_jni");
+    }
+
+    private static native FileDescriptor native_create() throws IOException;
+    private static native void native_ctl(FileDescriptor epfd, int op,
+            FileDescriptor fd, int events, int token) throws IOException;
+    private static native int native_wait(FileDescriptor epfd, int[] tokens,
+            int[] events, int timeout) throws IOException;
+
+    private RpmsgSelector() throws IOException {
+        epfd = native_create();
+        try {
+            FileDescriptor[] pipe = Os.pipe2(OsConstants.O_CLOEXEC | OsConstants.O_NONBLOCK);
+            wakeupReadFd = pipe[0];
+            wakeupWriteFd = pipe[1];
+        } catch (ErrnoException e) {
+            closeQuietly(epfd);
+            throw e.rethrowAsIOException();
+        }
+        native_ctl(epfd, EPOLL_CTL_ADD, wakeupReadFd, OsConstants.POLLIN, WAKEUP_TOKEN);
+    }
+
+    /**
+     * Opens a selector.
+     *
+     * @return a new selector
+     * @throws IOException
+     */
+    public static RpmsgSelector open() throws IOException {
+        return new RpmsgSelector();
+    }
+
+    /**
+     * Tells whether this selector is open.
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Returns this selector's key set. The set is a snapshot and is not
+     * updated by later registrations.
+     */
+    public Set<RpmsgSelectionKey> keys() {
+        ensureOpen();
+        HashSet<RpmsgSelectionKey> result = new HashSet<>();
+        synchronized (keys) {
+            for (int i = 0; i < keys.size(); i++) {
+                result.add(keys.valueAt(i));
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Returns this selector's selected-key set. Keys may be removed from
+     * it but not added. It must only be used by the selecting thread.
+     */
+    public Set<RpmsgSelectionKey> selectedKeys() {
+        ensureOpen();
+        return selectedKeys;
+    }
+
+    /**
+     * Selects keys whose channels are ready, without blocking.
+     *
+     * @return number of keys whose ready set was updated
+     * @throws IOException
+     */
+    public int selectNow() throws IOException {
+        return doSelect(0);
+    }
+
+    /**
+     * Selects keys whose channels are ready, blocking until at least one
+     * is, {@link #wakeup()} is called or the timeout expires.
+     *
+     * @param timeout milliseconds to wait, 0 to wait indefinitely
+     * @return number of keys whose ready set was updated
+     * @throws IOException
+     */
+    public int select(long timeout) throws IOException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("negative timeout");
+        }
+        return doSelect(timeout == 0 ? -1 : (int) Math.min(timeout, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Selects keys whose channels are ready, blocking until at least one
+     * is or {@link #wakeup()} is called.
+     *
+     * @return number of keys whose ready set was updated
+     * @throws IOException
+     */
+    public int select() throws IOException {
+        return doSelect(-1);
+    }
+
+    private int doSelect(int timeout) throws IOException {
+        synchronized (selectLock) {
+            ensureOpen();
+            return processReady(native_wait(epfd, readyTokens, readyEvents, timeout));
+        }
+    }
+
+    private int processReady(int count) {
+        int updated = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (readyTokens[i] == WAKEUP_TOKEN) {
+                drainWakeup();
+                continue;
+            }
+
+            RpmsgSelectionKey key;
+            synchronized (keys) {
+                key = keys.get(readyTokens[i]);
+            }
+            if (key == null || !key.isValid()) {
+                continue;
+            }
+
+            // The field, not interestOps(): another thread may cancel the
+            // key right after the check above.
+            int ready = translateReadyOps(readyEvents[i], key.interestOps);
+            if (ready == 0) {
+                continue;
+            }
+            if (selectedKeys.add(key)) {
+                key.readyOps = ready;
+                updated++;
+            } else if ((key.readyOps | ready) != key.readyOps) {
+                key.readyOps |= ready;
+                updated++;
+            }
+        }
+
+        return updated;
+    }
+
+    /**
+     * Causes the first selection operation that has not yet returned to
+     * return immediately, or the next one if none is in progress.
+     *
+     * @return this selector
+     */
+    public RpmsgSelector wakeup() {
+        if (closed) {
+            return this;
+        }
+        signalWakeup();
+        return this;
+    }
+
+    private void signalWakeup() {
+        try {
+            Os.write(wakeupWriteFd, new byte[1], 0, 1);
+        } catch (ErrnoException | IOException e) {
+            // EAGAIN means a wakeup is already pending.
+        }
+    }
+
+    private void drainWakeup() {
+        try {
+            while (Os.read(wakeupReadFd, drainBuffer, 0, drainBuffer.length) > 0) {
+            }
+        } catch (ErrnoException | IOException e) {
+            // EAGAIN, the pipe is empty.
+        }
+    }
+
+    /**
+     * Closes this selector. A selection in progress is woken up and has
+     * returned before the epoll fd is released. Its keys are invalidated,
+     * but the channels stay open.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        ArrayList<RpmsgSelectionKey> toInvalidate = new ArrayList<>();
+        synchronized (keys) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (int i = 0; i < keys.size(); i++) {
+                toInvalidate.add(keys.valueAt(i));
+            }
+            keys.clear();
+        }
+
+        // Kick the selecting thread out of epoll_wait, the fds must not be
+        // closed or reused under it.
+        signalWakeup();
+        synchronized (selectLock) {
+            for (int i = 0; i < toInvalidate.size(); i++) {
+                RpmsgSelectionKey key = toInvalidate.get(i);
+                key.invalidate();
+                if (key.channel() != null) {
+                    key.channel().removeKey(key);
+                }
+            }
+            selectedKeys.clear();
+
+            closeQuietly(wakeupWriteFd);
+            closeQuietly(wakeupReadFd);
+            closeQuietly(epfd);
+        }
+    }
+
+    /* package */ RpmsgSelectionKey register(RpmsgSelectableChannel channel,
+            FileDescriptor fd, int ops, Object att) throws IOException {
+        RpmsgSelectionKey key;
+        synchronized (keys) {
+            ensureOpen();
+            int token = nextToken;
+            while (token == WAKEUP_TOKEN || keys.get(token) != null) {
+                token++;
+            }
+            nextToken = token + 1;
+
+            key = new RpmsgSelectionKey(this, channel, fd, token, ops, att);
+            native_ctl(epfd, EPOLL_CTL_ADD, fd, translateInterestOps(ops), token);
+            keys.put(token, key);
+        }
+        return key;
+    }
+
+    /* package */ void update(RpmsgSelectionKey key) {
+        synchronized (keys) {
+            if (closed || keys.get(key.token) != key) {
+                return;
+            }
+            try {
+                native_ctl(epfd, EPOLL_CTL_MOD, key.getFileDescriptor(),
+                        translateInterestOps(key.interestOps), key.token);
+            } catch (IOException e) {
+                // The fd has been closed under us, the key is going away.
+            }
+        }
+    }
+
+    /* package */ void cancel(RpmsgSelectionKey key) {
+        synchronized (keys) {
+            if (closed || keys.get(key.token) != key) {
+                return;
+            }
+            keys.remove(key.token);
+            try {
+                native_ctl(epfd, EPOLL_CTL_DEL, key.getFileDescriptor(), 0, key.token);
+            } catch (IOException e) {
+                // Closing the fd already removed it from the epoll set.
+            }
+        }
+    }
+
+    private static int translateInterestOps(int ops) {
+        int events = 0;
+        if ((ops & (RpmsgSelectionKey.OP_READ | RpmsgSelectionKey.OP_ACCEPT)) != 0) {
+            events |= OsConstants.POLLIN;
+        }
+        if ((ops & (RpmsgSelectionKey.OP_WRITE | RpmsgSelectionKey.OP_CONNECT)) != 0) {
+            events |= OsConstants.POLLOUT;
+        }
+        return events;
+    }
+
+    private static int translateReadyOps(int events, int interest) {
+        // Errors and hangups wake every interested party, the following
+        // read, write or finishConnect reports what actually happened.
+        if ((events & (OsConstants.POLLERR | OsConstants.POLLHUP)) != 0) {
+            return interest;
+        }
+        int ready = 0;
+        if ((events & OsConstants.POLLIN) != 0) {
+            ready |= interest & (RpmsgSelectionKey.OP_READ | RpmsgSelectionKey.OP_ACCEPT);
+        }
+        if ((events & OsConstants.POLLOUT) != 0) {
+            ready |= interest & (RpmsgSelectionKey.OP_WRITE | RpmsgSelectionKey.OP_CONNECT);
+        }
+        return ready;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new ClosedSelectorException();
+        }
+    }
+
+    private static void closeQuietly(FileDescriptor fd) {
+        try {
+            Os.close(fd);
+        } catch (ErrnoException e) {
+            // ignored
+        }
+    }
+}
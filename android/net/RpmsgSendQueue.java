@@ -0,0 +1,531 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A multi-producer send queue in front of one socket. Producers enqueue
+ * frames into a lock-free queue and return at once; a single writer drains
+ * it, gathering up to {@link RpmsgSocketImpl#MAX_IOV} stream frames into one
+ * writev(2), so producers never block in the kernel nor on writeMonitor.
+ *
+ * Frames from one producer go out in order and are never interleaved with
+ * other frames. On a datagram socket every frame is sent as its own
+ * datagram. A write error fails every pending {@link #flush()} and is
+ * rethrown by the next {@link #enqueue} call.
+ *
+ * Obtained through {@link RpmsgSocket#setSendQueueEnabled}; while enabled the
+ * socket's output stream writes go through the queue too.
+ *
+ * The queue never blocks producers by itself. Once the bytes pending
+ * exceed the high water mark it turns unwritable, and back writable when
+ * the writer has brought them down to the low water mark; producers learn
+ * about it through {@link #isWritable()}, a {@link WritabilityListener} or
+ * by waiting in {@link #awaitWritable}.
+ *
+ * Drains run on a shared pool of daemon threads that grows with the number
+ * of queues writing at the same time, so a process with many busy queues
+ * pays one thread for each of them.
+ */
+public final class RpmsgSendQueue {
+    /** default bytes pending at which the queue turns writable again */
+    public static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+    /** default bytes pending above which the queue turns unwritable */
+    public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
+    /** how long close() waits for queued frames to be written */
+    private static final long CLOSE_DRAIN_MILLIS = 1000;
+
+    /**
+     * writer threads, each queue has at most one drain running. Unbounded on
+     * purpose: a drain blocks in the kernel while its socket is full, so a
+     * fixed pool would let one slow peer stall the queues of every other
+     * socket. The cost is one thread per queue with frames in flight, idle
+     * threads exit after 30 seconds.
+     */
+    private static ThreadPoolExecutor sWriters;
+
+    private final RpmsgSocketImpl impl;
+    private final boolean datagram;
+    private final ConcurrentLinkedQueue<Frame> queue = new ConcurrentLinkedQueue<>();
+    /** true while a drain is scheduled or running */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicInteger pendingFrames = new AtomicInteger();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    /** writer thread only */
+    private final ByteBuffer[] batch = new ByteBuffer[RpmsgSocketImpl.MAX_IOV];
+    private volatile IOException error;
+    private volatile boolean closed;
+
+    private volatile long lowWaterMark = DEFAULT_LOW_WATER_MARK;
+    private volatile long highWaterMark = DEFAULT_HIGH_WATER_MARK;
+    /** flipped only by updateWritability, waiters in awaitWritable wait on it */
+    private final AtomicBoolean unwritable = new AtomicBoolean();
+    private volatile WritabilityListener listener;
+    private volatile Executor listenerExecutor;
+
+    /**
+     * Told when the queue crosses its water marks.
+     */
+    public interface WritabilityListener {
+        /**
+         * @param queue the queue that changed
+         * @param writable false once the high water mark is exceeded, true
+         * once the pending bytes are back down to the low water mark
+         */
+        void onWritabilityChanged(@NonNull RpmsgSendQueue queue, boolean writable);
+    }
+
+    /**
+     * A queued frame, or a flush marker when data is null.
+     */
+    private static final class Frame {
+        final ByteBuffer data;
+        final CompletableFuture<Void> done;
+
+        Frame(ByteBuffer data) {
+            this.data = data;
+            this.done = null;
+        }
+
+        Frame(CompletableFuture<Void> done) {
+            this.data = null;
+            this.done = done;
+        }
+    }
+
+    /* package */ RpmsgSendQueue(RpmsgSocketImpl impl, boolean datagram) {
+        this.impl = impl;
+        this.datagram = datagram;
+    }
+
+    private static synchronized ThreadPoolExecutor getWriters() {
+        if (sWriters == null) {
+            AtomicInteger count = new AtomicInteger();
+            sWriters = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), r -> {
+                        Thread t = new Thread(r, "RpmsgSendQueue-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+        return sWriters;
+    }
+
+    /**
+     * Queues the remaining bytes of {@code frame} without copying them. The
+     * caller hands the buffer over and must not touch it afterwards.
+     *
+     * @param frame bytes to send
+     * @throws IOException if an earlier write failed or the queue is closed
+     * @throws IllegalArgumentException if {@code frame} is empty and this
+     * queue sends datagrams, see {@link RpmsgSocket#send(ByteBuffer)}
+     */
+    public void enqueue(@NonNull ByteBuffer frame) throws IOException {
+        checkOpen();
+        int len = frame.remaining();
+        if (len == 0) {
+            if (datagram) {
+                throw new IllegalArgumentException("empty datagram");
+            }
+            return;
+        }
+        pendingFrames.incrementAndGet();
+        pendingBytes.addAndGet(len);
+        queue.offer(new Frame(frame));
+        updateWritability();
+        schedule();
+    }
+
+    /**
+     * Queues a copy of {@code len} bytes of {@code b}.
+     *
+     * @throws IOException if an earlier write failed or the queue is closed
+     * @throws IllegalArgumentException if {@code len} is 0 and this queue
+     * sends datagrams
+     */
+    public void enqueue(@NonNull byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        byte[] copy = new byte[len];
+        System.arraycopy(b, off, copy, 0, len);
+        enqueue(ByteBuffer.wrap(copy));
+    }
+
+    /**
+     * Waits until every frame queued before this call has been written.
+     *
+     * @throws IOException if a write failed, or on interrupt
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.offer(new Frame(done));
+        schedule();
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sets the water marks driving {@link #isWritable()}.
+     *
+     * @param low pending bytes at which the queue turns writable again
+     * @param high pending bytes above which the queue turns unwritable,
+     * greater than {@code low}
+     */
+    public void setWaterMarks(long low, long high) {
+        if (low < 0 || high <= low) {
+            throw new IllegalArgumentException("invalid water marks " + low + "/" + high);
+        }
+        lowWaterMark = low;
+        highWaterMark = high;
+        updateWritability();
+    }
+
+    public long getLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Returns false while the pending bytes are above the high water mark
+     * and have not yet come back down to the low one.
+     */
+    public boolean isWritable() {
+        return !unwritable.get();
+    }
+
+    /**
+     * Sets the listener told about writability changes. Without an executor
+     * it is called on the writer thread or a producer thread; calls can
+     * overlap when the queue flips quickly, so {@link #isWritable()} has the
+     * final word.
+     *
+     * @param executor where to call the listener, null to call it directly
+     * @param listener the listener, null to remove it
+     */
+    public void setWritabilityListener(@Nullable Executor executor,
+            @Nullable WritabilityListener listener) {
+        this.listenerExecutor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * Waits until the queue is writable, for producers that prefer
+     * blocking to growing the queue without bound.
+     *
+     * @param timeoutMillis how long to wait, 0 to wait indefinitely
+     * @return true if writable, false on timeout
+     * @throws IOException if a write failed or the queue is closed, or on
+     * interrupt
+     */
+    public boolean awaitWritable(long timeoutMillis) throws IOException {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        synchronized (unwritable) {
+            while (unwritable.get()) {
+                checkOpen();
+                long remaining = 0;
+                if (timeoutMillis != 0) {
+                    remaining = deadline - SystemClock.uptimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                }
+                try {
+                    unwritable.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        checkOpen();
+        return true;
+    }
+
+    /**
+     * Returns the number of frames queued and not yet written.
+     */
+    public int getPendingFrames() {
+        return pendingFrames.get();
+    }
+
+    /**
+     * Returns the number of bytes queued and not yet written.
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Stops accepting frames and gives the writer a short while to write
+     * out what is queued; frames still queued after that are dropped.
+     */
+    /* package */ void close() {
+        close(new SocketException("Socket closed"));
+    }
+
+    /**
+     * Closes the queue as {@link #close()} does. Later calls, and producers
+     * waiting in {@link #awaitWritable(long)}, fail with {@code reason}.
+     */
+    /* package */ void close(IOException reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.offer(new Frame(done));
+        schedule();
+        try {
+            done.get(CLOSE_DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Dropped, the socket is going away.
+        }
+        fail(reason);
+    }
+
+    private void checkOpen() throws IOException {
+        IOException e = error;
+        if (e != null) {
+            throw e;
+        }
+        if (closed) {
+            throw new SocketException("Socket closed");
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            getWriters().execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                IOException e = error;
+                if (e != null) {
+                    fail(e);
+                    scheduled.set(false);
+                    return;
+                }
+                int n = collectBatch();
+                if (n == 0) {
+                    scheduled.set(false);
+                    // A producer may have enqueued after the last poll but
+                    // seen scheduled still set, pick its frame up.
+                    if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                writeBatch(n);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(asIOException(e));
+            scheduled.set(false);
+        }
+    }
+
+    /**
+     * Moves frames from the queue into batch, stopping before a flush marker
+     * once the batch holds data so that the marker completes after it.
+     *
+     * @return number of frames in batch
+     */
+    private int collectBatch() {
+        int n = 0;
+        int max = datagram ? 1 : batch.length;
+        Frame frame;
+        while (n < max && (frame = queue.peek()) != null) {
+            if (frame.data == null) {
+                if (n > 0) {
+                    break;
+                }
+                queue.poll();
+                frame.done.complete(null);
+                continue;
+            }
+            queue.poll();
+            batch[n++] = frame.data;
+        }
+        return n;
+    }
+
+    private void writeBatch(int n) throws IOException {
+        long bytes = 0;
+        for (int i = 0; i < n; i++) {
+            bytes += batch[i].remaining();
+        }
+
+        try {
+            if (datagram) {
+                // enqueue refused empty datagrams, 0 means nothing was queued
+                while (impl.send(batch[0]) == 0) {
+                    awaitWritable();
+                }
+            } else {
+                int off = 0;
+                while (off < n) {
+                    if (impl.write(batch, off, n - off) == 0) {
+                        awaitWritable();
+                    }
+                    while (off < n && !batch[off].hasRemaining()) {
+                        off++;
+                    }
+                }
+            }
+        } finally {
+            for (int i = 0; i < n; i++) {
+                batch[i] = null;
+            }
+            // Written or dropped, the frames are no longer pending either way.
+            pendingFrames.addAndGet(-n);
+            pendingBytes.addAndGet(-bytes);
+            updateWritability();
+        }
+    }
+
+    /**
+     * Flips writability when the pending bytes crossed a water mark, and
+     * keeps checking after a flip in case a producer and the writer raced
+     * past both marks at once.
+     */
+    private void updateWritability() {
+        while (true) {
+            long pending = pendingBytes.get();
+            boolean writable;
+            if (!unwritable.get()) {
+                if (pending <= highWaterMark || !unwritable.compareAndSet(false, true)) {
+                    return;
+                }
+                writable = false;
+            } else {
+                if (pending > lowWaterMark || !unwritable.compareAndSet(true, false)) {
+                    return;
+                }
+                writable = true;
+                synchronized (unwritable) {
+                    unwritable.notifyAll();
+                }
+            }
+            notifyListener(writable);
+        }
+    }
+
+    private void notifyListener(boolean writable) {
+        WritabilityListener l = listener;
+        if (l == null) {
+            return;
+        }
+        Executor executor = listenerExecutor;
+        if (executor == null) {
+            l.onWritabilityChanged(this, writable);
+        } else {
+            executor.execute(() -> l.onWritabilityChanged(this, writable));
+        }
+    }
+
+    /**
+     * Waits for room in the send buffer when the socket has been made
+     * non-blocking under the queue.
+     */
+    private void awaitWritable() throws IOException {
+        FileDescriptor fd = impl.getFileDescriptor();
+        if (fd == null) {
+            throw new SocketException("Socket closed");
+        }
+        StructPollfd pollfd = new StructPollfd();
+        pollfd.fd = fd;
+        pollfd.events = (short) OsConstants.POLLOUT;
+        try {
+            Os.poll(new StructPollfd[] { pollfd }, -1);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EINTR) {
+                throw e.rethrowAsIOException();
+            }
+        }
+    }
+
+    /**
+     * Records the error and fails every flush waiting in the queue.
+     */
+    private void fail(IOException e) {
+        if (error == null) {
+            error = e;
+        }
+        Frame frame;
+        while ((frame = queue.poll()) != null) {
+            if (frame.data == null) {
+                frame.done.completeExceptionally(e);
+            } else {
+                pendingFrames.decrementAndGet();
+                pendingBytes.addAndGet(-frame.data.remaining());
+            }
+        }
+        updateWritability();
+        // Waiters rethrow the error.
+        synchronized (unwritable) {
+            unwritable.notifyAll();
+        }
+    }
+
+    private static IOException asIOException(Throwable t) {
+        if (t instanceof IOException) {
+            return (IOException) t;
+        }
+        return new IOException(t);
+    }
+}
@@ -41,9 +41,54 @@ public class RpmsgServerSocket implements Closeable {
      */
     public RpmsgServerSocket(String name) throws IOException
     {
-        impl = new RpmsgSocketImpl();
+        this(name, RpmsgTransport.getDefault());
+    }
 
-        impl.create(RpmsgSocket.SOCKET_STREAM);
+    /**
+     * Creates a new server socket of the given type listening at specified
+     * name. Rpmsg datagram sockets are connected, so a
+     * {@link RpmsgSocket#SOCKET_DGRAM} server accepts them like streams.
+     *
+     * @param name for the socket name
+     * @param sockType either {@link RpmsgSocket#SOCKET_DGRAM},
+     * {@link RpmsgSocket#SOCKET_STREAM}
+     * @throws IOException
+     */
+    public RpmsgServerSocket(String name, int sockType) throws IOException
+    {
+        this(name, sockType, RpmsgTransport.getDefault());
+    }
+
+    /**
+     * Creates a new server socket listening at specified name on the
+     * given transport.
+     *
+     * @param name for the socket name
+     * @param transport socket family, see {@link RpmsgTransport}
+     * @throws IOException
+     */
+    public RpmsgServerSocket(String name, RpmsgTransport transport) throws IOException
+    {
+        this(name, RpmsgSocket.SOCKET_STREAM, transport);
+    }
+
+    /**
+     * Creates a new server socket of the given type listening at specified
+     * name on the given transport. Rpmsg datagram sockets are connected, so
+     * a {@link RpmsgSocket#SOCKET_DGRAM} server accepts them like streams.
+     *
+     * @param name for the socket name
+     * @param sockType either {@link RpmsgSocket#SOCKET_DGRAM},
+     * {@link RpmsgSocket#SOCKET_STREAM}
+     * @param transport socket family, see {@link RpmsgTransport}
+     * @throws IOException
+     */
+    public RpmsgServerSocket(String name, int sockType, RpmsgTransport transport)
+            throws IOException
+    {
+        impl = new RpmsgSocketImpl(transport);
+
+        impl.create(sockType);
 
         rpmsgAddress = new RpmsgSocketAddress(name);
         impl.bind(rpmsgAddress);
@@ -64,7 +109,21 @@ public class RpmsgServerSocket implements Closeable {
      */
     public RpmsgServerSocket(FileDescriptor fd) throws IOException
     {
-        impl = new RpmsgSocketImpl(fd);
+        this(fd, RpmsgTransport.getDefault());
+    }
+
+    /**
+     * Create a RpmsgServerSocket from a file descriptor of the given
+     * transport that's already been created and bound. listen() will be
+     * called immediately on it. Accepted sockets use the same transport.
+     *
+     * @param fd bound file descriptor
+     * @param transport socket family of {@code fd}
+     * @throws IOException
+     */
+    public RpmsgServerSocket(FileDescriptor fd, RpmsgTransport transport) throws IOException
+    {
+        impl = new RpmsgSocketImpl(fd, transport);
         impl.listen(LISTEN_BACKLOG);
         rpmsgAddress = impl.getSockAddress();
     }
@@ -81,20 +140,48 @@ public class RpmsgServerSocket implements Closeable {
 
     /**
      * Accepts a new connection to the socket. Blocks until a new
-     * connection arrives.
+     * connection arrives, unless the socket has been made non-blocking
+     * through {@link RpmsgServerSocketChannel}.
      *
-     * @return a socket representing the new connection.
+     * @return a socket representing the new connection, or null if the
+     * socket is non-blocking and no connection is pending.
      * @throws IOException
      */
     public RpmsgSocket accept() throws IOException
     {
-        RpmsgSocketImpl acceptedImpl = new RpmsgSocketImpl();
+        RpmsgSocketImpl acceptedImpl = new RpmsgSocketImpl(impl.getTransport());
 
-        impl.accept(acceptedImpl);
+        if (!impl.accept(acceptedImpl)) {
+            return null;
+        }
+        if (impl.isPollerMode()) {
+            acceptedImpl.setPollerMode(true);
+        }
 
         return RpmsgSocket.createRpmsgSocketForAccept(acceptedImpl);
     }
 
+    /**
+     * Makes {@link #accept()} park on the shared poller instead of blocking
+     * in accept(2), see {@link RpmsgSocket#setPollerMode}. Accepted sockets
+     * start in poller mode too.
+     *
+     * @param enable true to park on the poller
+     * @throws IOException
+     */
+    public void setPollerMode(boolean enable) throws IOException
+    {
+        impl.setPollerMode(enable);
+    }
+
+    /**
+     * Tells whether the server socket is in poller mode.
+     */
+    public boolean isPollerMode()
+    {
+        return impl.isPollerMode();
+    }
+
     /**
      * Returns file descriptor or null if not yet open/already closed
      *
@@ -104,6 +191,17 @@ public class RpmsgServerSocket implements Closeable {
         return impl.getFileDescriptor();
     }
 
+    /**
+     * Returns the transport this server socket runs on.
+     */
+    public RpmsgTransport getTransport() {
+        return impl.getTransport();
+    }
+
+    /* package */ RpmsgSocketImpl getImpl() {
+        return impl;
+    }
+
     /**
      * Closes server socket.
      *
@@ -0,0 +1,96 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * A selectable channel for listening AF_RPMSG stream sockets. The interface
+ * here is not entirely unlike that of java.nio.channels.ServerSocketChannel.
+ */
+public class RpmsgServerSocketChannel extends RpmsgSelectableChannel {
+    private final RpmsgServerSocket socket;
+    private volatile boolean closed;
+
+    /* package */ RpmsgServerSocketChannel(RpmsgServerSocket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Opens a server socket channel listening at the specified name.
+     *
+     * @param name for the socket name
+     * @return a new, blocking channel
+     * @throws IOException
+     */
+    public static RpmsgServerSocketChannel open(@NonNull String name) throws IOException {
+        return new RpmsgServerSocketChannel(new RpmsgServerSocket(name));
+    }
+
+    /**
+     * Retrieves the server socket associated with this channel.
+     */
+    public RpmsgServerSocket socket() {
+        return socket;
+    }
+
+    @Override
+    /* package */ RpmsgSocketImpl getImpl() {
+        return socket.getImpl();
+    }
+
+    @Override
+    public int validOps() {
+        return RpmsgSelectionKey.OP_ACCEPT;
+    }
+
+    /**
+     * Accepts a connection made to this channel's socket. The returned
+     * channel is in blocking mode regardless of the mode of this one.
+     *
+     * @return the channel for the new connection, or null if this channel is
+     * non-blocking and no connection is pending
+     * @throws IOException
+     */
+    public RpmsgSocketChannel accept() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        RpmsgSocket accepted = socket.accept();
+        if (accepted == null) {
+            return null;
+        }
+        return new RpmsgSocketChannel(accepted);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    /* package */ void implCloseChannel() throws IOException {
+        if (!closed) {
+            closed = true;
+            socket.close();
+        }
+    }
+}
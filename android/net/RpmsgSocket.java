@@ -28,6 +28,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketOptions;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Creates a (non-server) socket in the Rpmsg-domain namespace. The interface
@@ -42,7 +46,12 @@ public class RpmsgSocket implements Closeable {
     private RpmsgSocketAddress address;
     private boolean isBound;
     private boolean isConnected;
+    /** true while an asynchronous or non-blocking connect is in progress */
+    private boolean isConnecting;
     private final int sockType;
+    /** write coalescing settings, applied when the buffer size changes */
+    private int writeFlushThreshold;
+    private long writeFlushDelayMillis;
 
     /** unknown socket type (used for constructor with existing file descriptor) */
     /* package */ static final int SOCKET_UNKNOWN = 0;
@@ -51,6 +60,9 @@ public class RpmsgSocket implements Closeable {
     /** Stream socket type */
     public static final int SOCKET_STREAM = 2;
 
+    /** chunk size of the FileChannel transfers */
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Creates a AF_RPMSG domain stream socket.
      */
@@ -67,6 +79,16 @@ public class RpmsgSocket implements Closeable {
         this(new RpmsgSocketImpl(), sockType);
     }
 
+    /**
+     * Creates a socket of the given type on the given transport.
+     *
+     * @param sockType either {@link #SOCKET_DGRAM}, {@link #SOCKET_STREAM}
+     * @param transport socket family, see {@link RpmsgTransport}
+     */
+    public RpmsgSocket(int sockType, @NonNull RpmsgTransport transport) {
+        this(new RpmsgSocketImpl(transport), sockType);
+    }
+
     private RpmsgSocket(RpmsgSocketImpl impl, int sockType) {
         this.impl = impl;
         this.sockType = sockType;
@@ -91,7 +113,23 @@ public class RpmsgSocket implements Closeable {
      * @hide
      */
     public RpmsgSocket(@NonNull FileDescriptor fd) {
-        this(new RpmsgSocketImpl(fd), SOCKET_UNKNOWN);
+        this(fd, RpmsgTransport.getDefault());
+    }
+
+    /**
+     * Creates a RpmsgSocket instance using the {@link FileDescriptor} for an
+     * already-connected stream socket of the given transport, for instance an
+     * AF_UNIX socket of the {@link RpmsgTransport#LOCAL} transport. The
+     * passed-in FileDescriptor is not managed by this class and must be closed
+     * by the caller.
+     *
+     * @param fd the filedescriptor to adopt
+     * @param transport socket family of {@code fd}
+     *
+     * @hide
+     */
+    public RpmsgSocket(@NonNull FileDescriptor fd, @NonNull RpmsgTransport transport) {
+        this(new RpmsgSocketImpl(fd, transport), SOCKET_UNKNOWN);
         setConnected();
     }
 
@@ -140,15 +178,164 @@ public class RpmsgSocket implements Closeable {
      * not exist.
      */
     public void connect(RpmsgSocketAddress endpoint) throws IOException {
+        connect(endpoint, 0);
+    }
+
+    /**
+     * Connects this socket to an endpoint, giving up after {@code timeout}
+     * milliseconds. On timeout the socket is closed, as the state of a
+     * half-finished connect is undefined.
+     *
+     * @param endpoint endpoint address
+     * @param timeout milliseconds to wait, 0 to wait indefinitely
+     * @throws SocketTimeoutException if the timeout expires first
+     * @throws IOException if socket is in invalid state or the address does
+     * not exist.
+     */
+    public void connect(RpmsgSocketAddress endpoint, int timeout)
+            throws IOException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+
         synchronized (this) {
-            if (isConnected) {
-                throw new IOException("already connected");
+            checkConnectable();
+            createIfNeeded();
+            isConnecting = true;
+        }
+
+        // Wait outside the monitor: a virtual thread parked by the poller
+        // while holding it would stay pinned to its carrier thread.
+        boolean connected = false;
+        try {
+            impl.connect(endpoint, timeout);
+            connected = true;
+        } catch (SocketTimeoutException e) {
+            close();
+            throw e;
+        } finally {
+            synchronized (this) {
+                isConnecting = false;
+                if (connected) {
+                    isConnected = true;
+                    isBound = true;
+                }
             }
+        }
+    }
 
-            createIfNeeded();
-            impl.connect(endpoint, 0);
+    /**
+     * Connects this socket to an endpoint without blocking the caller, so
+     * that many endpoints can be connected in parallel. The connection is
+     * completed by a shared poller thread; the socket must not be used for
+     * I/O until the future completes. On timeout the socket is closed.
+     *
+     * @param endpoint endpoint address
+     * @param timeout milliseconds to wait, 0 to wait indefinitely
+     * @return a future completed with this socket once connected, or
+     * exceptionally with {@link SocketTimeoutException} or the connect error
+     */
+    public CompletableFuture<RpmsgSocket> connectAsync(@NonNull RpmsgSocketAddress endpoint,
+            int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+
+        CompletableFuture<RpmsgSocket> result = new CompletableFuture<>();
+        CompletableFuture<Void> connect;
+        synchronized (this) {
+            try {
+                checkConnectable();
+                createIfNeeded();
+                connect = impl.connectAsync(endpoint, timeout);
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+                return result;
+            }
+            isConnecting = true;
+        }
+
+        connect.whenComplete((ignored, error) -> {
+            synchronized (this) {
+                isConnecting = false;
+                if (error == null) {
+                    isConnected = true;
+                    isBound = true;
+                }
+            }
+            if (error == null) {
+                result.complete(this);
+                return;
+            }
+            if (error instanceof SocketTimeoutException) {
+                try {
+                    close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+            result.completeExceptionally(error);
+        });
+        return result;
+    }
+
+    /**
+     * Starts a connect on a non-blocking socket, for RpmsgSocketChannel.
+     *
+     * @return true if connected immediately, false if {@link #finishConnect}
+     * must be called
+     */
+    /* package */ synchronized boolean startConnect(RpmsgSocketAddress endpoint)
+            throws IOException {
+        checkConnectable();
+        createIfNeeded();
+        if (impl.startConnect(endpoint)) {
             isConnected = true;
             isBound = true;
+            return true;
+        }
+        isConnecting = true;
+        return false;
+    }
+
+    /**
+     * Completes a connect started by {@link #startConnect}.
+     *
+     * @param timeout milliseconds to wait, 0 to only check, -1 to wait
+     * indefinitely
+     * @return true if connected, false if still in progress
+     */
+    /* package */ synchronized boolean finishConnect(int timeout) throws IOException {
+        if (isConnected) {
+            return true;
+        }
+        if (!isConnecting) {
+            throw new IOException("no connect in progress");
+        }
+        try {
+            if (!impl.finishConnect(timeout)) {
+                return false;
+            }
+        } catch (IOException e) {
+            isConnecting = false;
+            throw e;
+        }
+        isConnecting = false;
+        isConnected = true;
+        isBound = true;
+        return true;
+    }
+
+    /* package */ synchronized boolean isConnectionPending() {
+        return isConnecting;
+    }
+
+    private void checkConnectable() throws IOException {
+        if (isConnected) {
+            throw new IOException("already connected");
+        }
+        if (isConnecting) {
+            throw new IOException("connect already in progress");
         }
     }
 
@@ -206,6 +393,559 @@ public class RpmsgSocket implements Closeable {
         return impl.getOutputStream();
     }
 
+    /**
+     * Reads a sequence of bytes from this socket into the given buffer, with the
+     * semantics of {@link java.nio.channels.ReadableByteChannel#read}. A direct
+     * buffer is filled by the kernel in place, without the copy through a Java
+     * array that the stream returned by {@link #getInputStream()} incurs.
+     *
+     * @param dst buffer to read into
+     * @return number of bytes read, or -1 on end of stream
+     * @throws IOException if socket has been closed or cannot be created.
+     */
+    public int read(@NonNull ByteBuffer dst) throws IOException {
+        createIfNeeded();
+        return impl.read(dst);
+    }
+
+    /**
+     * Writes a sequence of bytes to this socket from the given buffer, with the
+     * semantics of {@link java.nio.channels.WritableByteChannel#write}. A direct
+     * buffer is handed to the kernel in place, without the copy through a Java
+     * array that the stream returned by {@link #getOutputStream()} incurs.
+     *
+     * @param src buffer to write from
+     * @return number of bytes written, which may be less than {@code src.remaining()}
+     * @throws IOException if socket has been closed or cannot be created.
+     */
+    public int write(@NonNull ByteBuffer src) throws IOException {
+        createIfNeeded();
+        impl.flushSendQueue();
+        return impl.write(src);
+    }
+
+    /**
+     * Reads a sequence of bytes from this socket into the given buffers with a
+     * single readv(2), with the semantics of
+     * {@link java.nio.channels.ScatteringByteChannel#read(ByteBuffer[])}.
+     *
+     * @param dsts buffers to read into, filled in order
+     * @return number of bytes read, or -1 on end of stream
+     * @throws IOException if socket has been closed or cannot be created.
+     */
+    public long read(@NonNull ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    /**
+     * Reads a sequence of bytes from this socket into a subsequence of the
+     * given buffers with a single readv(2).
+     *
+     * @param dsts buffers to read into, filled in order
+     * @param offset index of the first buffer to use
+     * @param length number of buffers to use, at most 1024
+     * @return number of bytes read, 0 if the buffers have no space left, or
+     * -1 on end of stream
+     * @throws IOException if socket has been closed or cannot be created.
+     */
+    public long read(@NonNull ByteBuffer[] dsts, int offset, int length) throws IOException {
+        createIfNeeded();
+        return impl.read(dsts, offset, length);
+    }
+
+    /**
+     * Writes a sequence of bytes to this socket from the given buffers with a
+     * single writev(2), with the semantics of
+     * {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[])}. A
+     * header and a body kept in separate buffers go out without being
+     * concatenated first, and as one message on a {@link #SOCKET_DGRAM} socket.
+     *
+     * @param srcs buffers to write from, in order
+     * @return number of bytes written, which may be less than the total remaining
+     * @throws IOException if socket has been closed or cannot be created.
+     */
+    public long write(@NonNull ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Writes a sequence of bytes to this socket from a subsequence of the
+     * given buffers with a single writev(2).
+     *
+     * @param srcs buffers to write from, in order
+     * @param offset index of the first buffer to use
+     * @param length number of buffers to use, at most 1024
+     * @return number of bytes written, which may be less than the total remaining
+     * @throws IOException if socket has been closed or cannot be created.
+     */
+    public long write(@NonNull ByteBuffer[] srcs, int offset, int length) throws IOException {
+        createIfNeeded();
+        // Here rather than in the impl, the queue's writer goes through it.
+        impl.flushSendQueue();
+        return impl.write(srcs, offset, length);
+    }
+
+    /**
+     * Enqueues a set of file descriptors to send to the peer. The queue is
+     * one deep, and the descriptors are sent with the next write to the
+     * output stream; they are duplicated by the kernel, so the caller may
+     * close its own once the write returns. A memfd or ashmem region handed
+     * over this way lets the peer map a large buffer instead of receiving it
+     * byte by byte. Not combined with the send queue, which bypasses it.
+     *
+     * @param fds non-null; file descriptors to send
+     * @throws IOException if the transport cannot pass descriptors, see
+     * {@link RpmsgTransport#canPassFileDescriptors()}
+     */
+    public void setFileDescriptorsForSend(@NonNull FileDescriptor[] fds) throws IOException {
+        checkStream();
+        impl.setFileDescriptorsForSend(fds);
+    }
+
+    /**
+     * Retrieves the file descriptors that a peer has sent through ancillary
+     * messages, along with the bytes returned by the reads from the input
+     * stream, {@link #read(ByteBuffer)} and {@link #read(ByteBuffer[])} since
+     * the last call. {@link #receive} and {@link #transferTo} do not pick up
+     * descriptors; the kernel discards those attached to the bytes they
+     * read. Sets arriving in between are kept in
+     * order, none is dropped; afterwards this returns null until a new set
+     * arrives. The caller owns the returned descriptors and must close them.
+     *
+     * @return null or file descriptor array
+     * @throws IOException
+     */
+    public FileDescriptor[] getAncillaryFileDescriptors() throws IOException {
+        createIfNeeded();
+        return impl.getAncillaryFileDescriptors();
+    }
+
+    /**
+     * Sends {@code count} bytes of a file, starting at {@code position},
+     * without the data passing through the Java heap. The kernel moves it
+     * with sendfile(2) where the socket supports that, otherwise a native
+     * loop copies it in large chunks. The file offset of {@code src} is left
+     * unchanged.
+     *
+     * @param src file to send, open for reading
+     * @param position file offset of the first byte to send
+     * @param count number of bytes to send
+     * @return number of bytes sent, less than {@code count} if the file ends
+     * first, a non-blocking socket fills up or SO_TIMEOUT expires after some
+     * bytes went out
+     * @throws IOException if socket has been closed, is not a stream socket,
+     * or the transfer fails.
+     */
+    public long transferFrom(@NonNull FileDescriptor src, long position, long count)
+            throws IOException {
+        checkStream();
+        return impl.transferFrom(src, position, count);
+    }
+
+    /**
+     * Sends {@code count} bytes of a file channel, starting at
+     * {@code position}. Channels do not expose their descriptor, so the data
+     * goes through a pooled direct buffer, still never through the Java heap;
+     * prefer {@link #transferFrom(FileDescriptor, long, long)} when the
+     * descriptor is at hand. The channel position is left unchanged.
+     *
+     * @return number of bytes sent, less than {@code count} if the file ends
+     * first, a non-blocking socket fills up or SO_TIMEOUT expires after some
+     * bytes went out
+     * @throws IOException if socket has been closed, is not a stream socket,
+     * or the transfer fails.
+     */
+    public long transferFrom(@NonNull FileChannel src, long position, long count)
+            throws IOException {
+        checkStream();
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("negative position or count");
+        }
+
+        impl.flushSendQueue();
+        RpmsgBufferPool pool = RpmsgBufferPool.getDefault();
+        ByteBuffer buffer = pool.acquire(TRANSFER_BUFFER_SIZE);
+        long total = 0;
+        try {
+            while (total < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - total));
+                int n = src.read(buffer, position + total);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    int written;
+                    try {
+                        written = impl.write(buffer);
+                    } catch (SocketTimeoutException e) {
+                        if (total + n - buffer.remaining() == 0) {
+                            throw e;
+                        }
+                        written = 0;
+                    }
+                    if (written == 0) {
+                        // Non-blocking and full, or timed out after some
+                        // progress; the rest is read again next time.
+                        return total + n - buffer.remaining();
+                    }
+                }
+                total += n;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        return total;
+    }
+
+    /**
+     * Receives up to {@code count} bytes into a file, starting at
+     * {@code position}, without the data passing through the Java heap. The
+     * kernel moves it with splice(2) where the socket supports that,
+     * otherwise a native loop copies it in large chunks. A blocking socket
+     * waits until {@code count} bytes have arrived or the peer ends the
+     * stream. The file offset of {@code dst} is left unchanged.
+     *
+     * @param dst file to write, open for writing
+     * @param position file offset to write the first byte at
+     * @param count number of bytes to receive
+     * @return number of bytes received, less than {@code count} if the peer
+     * ends the stream first, a non-blocking socket runs dry or SO_TIMEOUT
+     * expires after some bytes came in
+     * @throws IOException if socket has been closed, is not a stream socket,
+     * or the transfer fails.
+     */
+    public long transferTo(@NonNull FileDescriptor dst, long position, long count)
+            throws IOException {
+        checkStream();
+        return impl.transferTo(dst, position, count);
+    }
+
+    /**
+     * Receives up to {@code count} bytes into a file channel, starting at
+     * {@code position}, through a pooled direct buffer; prefer
+     * {@link #transferTo(FileDescriptor, long, long)} when the descriptor is
+     * at hand. The channel position is left unchanged.
+     *
+     * @return number of bytes received, less than {@code count} if the peer
+     * ends the stream first, a non-blocking socket runs dry or SO_TIMEOUT
+     * expires after some bytes came in
+     * @throws IOException if socket has been closed, is not a stream socket,
+     * or the transfer fails.
+     */
+    public long transferTo(@NonNull FileChannel dst, long position, long count)
+            throws IOException {
+        checkStream();
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("negative position or count");
+        }
+
+        RpmsgBufferPool pool = RpmsgBufferPool.getDefault();
+        ByteBuffer buffer = pool.acquire(TRANSFER_BUFFER_SIZE);
+        long total = 0;
+        try {
+            while (total < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - total));
+                int n;
+                try {
+                    n = impl.read(buffer);
+                } catch (SocketTimeoutException e) {
+                    if (total == 0) {
+                        throw e;
+                    }
+                    break;
+                }
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    dst.write(buffer, position + total + n - buffer.remaining());
+                }
+                total += n;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        return total;
+    }
+
+    /**
+     * Sends the remaining bytes of {@code src} as a single datagram. Only valid
+     * on a {@link #SOCKET_DGRAM} socket.
+     *
+     * @param src buffer holding the datagram, its position is advanced past it
+     * @return number of bytes sent, or 0 if the socket is non-blocking and the
+     * datagram could not be queued
+     * @throws IOException if the datagram could not be sent, or this is a
+     * stream socket
+     * @throws IllegalArgumentException if the datagram is empty, which the
+     * peer could not tell apart from end of stream
+     */
+    public int send(@NonNull ByteBuffer src) throws IOException {
+        checkDatagram();
+        impl.flushSendQueue();
+        return impl.send(src);
+    }
+
+    /**
+     * Sends {@code len} bytes of {@code b} as a single datagram. Only valid on a
+     * {@link #SOCKET_DGRAM} socket.
+     *
+     * @param b buffer holding the datagram
+     * @param off offset of the datagram in {@code b}
+     * @param len length of the datagram
+     * @return number of bytes sent, or 0 if the socket is non-blocking and the
+     * datagram could not be queued
+     * @throws IOException if the datagram could not be sent, or this is a
+     * stream socket
+     * @throws IllegalArgumentException if {@code len} is 0, see
+     * {@link #send(ByteBuffer)}
+     */
+    public int send(@NonNull byte[] b, int off, int len) throws IOException {
+        checkDatagram();
+        impl.flushSendQueue();
+        return impl.send(b, off, len);
+    }
+
+    /**
+     * Receives a single datagram into the remaining space of {@code dst}. Unlike
+     * the stream returned by {@link #getInputStream()}, datagram boundaries are
+     * kept: one call never returns parts of two datagrams. Only valid on a
+     * {@link #SOCKET_DGRAM} socket.
+     *
+     * @param dst buffer to receive into, may be reused across calls. Its position
+     * is advanced by the number of bytes stored.
+     * @return length of the datagram, or -1 once the peer has closed the
+     * connection. A value greater than the space that was remaining in
+     * {@code dst} means the datagram was truncated and its tail discarded. A
+     * non-blocking socket returns 0 when no datagram is queued.
+     * @throws IOException if this is a stream socket, or on receive errors
+     */
+    public int receive(@NonNull ByteBuffer dst) throws IOException {
+        checkDatagram();
+        return impl.receive(dst);
+    }
+
+    /**
+     * Receives a single datagram into {@code b}. Only valid on a
+     * {@link #SOCKET_DGRAM} socket.
+     *
+     * @param b buffer to receive into, may be reused across calls
+     * @param off offset in {@code b} to store the datagram at
+     * @param len space available in {@code b}
+     * @return length of the datagram, greater than {@code len} if it was
+     * truncated, or -1 once the peer has closed the connection. A
+     * non-blocking socket returns 0 when no datagram is queued.
+     * @throws IOException if this is a stream socket, or on receive errors
+     */
+    public int receive(@NonNull byte[] b, int off, int len) throws IOException {
+        checkDatagram();
+        return impl.receive(b, off, len);
+    }
+
+    private void checkStream() throws IOException {
+        if (sockType == SOCKET_DGRAM) {
+            throw new IOException("not a stream socket");
+        }
+        createIfNeeded();
+    }
+
+    private void checkDatagram() throws IOException {
+        if (sockType == SOCKET_STREAM) {
+            throw new IOException("not a datagram socket");
+        }
+        createIfNeeded();
+    }
+
+    /**
+     * Enables write coalescing on the stream returned by {@link #getOutputStream()}.
+     * Small writes are gathered in a per-socket buffer and go out in a single
+     * write(2) once the buffer is full, on {@link #flush()} or when the
+     * threshold or delay configured below is reached. Only valid on a
+     * {@link #SOCKET_STREAM} socket, datagrams must not be merged.
+     *
+     * @param size buffer capacity in bytes, 0 to write straight through (the default)
+     * @throws IOException if previously buffered bytes cannot be flushed
+     */
+    public void setWriteBufferSize(int size) throws IOException {
+        if (sockType == SOCKET_DGRAM && size > 0) {
+            throw new IllegalStateException("write coalescing on a datagram socket");
+        }
+        createIfNeeded();
+        synchronized (this) {
+            impl.setWriteCoalescing(size, writeFlushThreshold, writeFlushDelayMillis);
+        }
+    }
+
+    /**
+     * Returns the write coalescing buffer capacity, 0 if coalescing is off.
+     */
+    public int getWriteBufferSize() {
+        return impl.getWriteBufferSize();
+    }
+
+    /**
+     * Sets the number of buffered bytes at which coalesced output is flushed
+     * without waiting for the buffer to fill up.
+     *
+     * @param threshold byte count, 0 to flush only when the buffer is full
+     * @throws IOException if previously buffered bytes cannot be flushed
+     */
+    public void setWriteFlushThreshold(int threshold) throws IOException {
+        createIfNeeded();
+        synchronized (this) {
+            writeFlushThreshold = threshold;
+            impl.setWriteCoalescing(impl.getWriteBufferSize(), threshold, writeFlushDelayMillis);
+        }
+    }
+
+    /**
+     * Sets the longest time coalesced output may stay buffered before it is
+     * flushed in the background.
+     *
+     * @param delayMillis delay in milliseconds, 0 for no time limit
+     * @throws IOException if previously buffered bytes cannot be flushed
+     */
+    public void setWriteFlushDelay(long delayMillis) throws IOException {
+        createIfNeeded();
+        synchronized (this) {
+            writeFlushDelayMillis = delayMillis;
+            impl.setWriteCoalescing(impl.getWriteBufferSize(), writeFlushThreshold, delayMillis);
+        }
+    }
+
+    /**
+     * Holds back threshold and timed flushes of coalesced output until
+     * {@link #uncork()}, so that a message built from many small writes goes
+     * out in one piece. A full buffer or an explicit {@link #flush()} is still
+     * written out.
+     *
+     * @throws IOException
+     */
+    public void cork() throws IOException {
+        createIfNeeded();
+        impl.setCorked(true);
+    }
+
+    /**
+     * Ends {@link #cork()} and flushes the coalesced output.
+     *
+     * @throws IOException if the buffered bytes cannot be written
+     */
+    public void uncork() throws IOException {
+        createIfNeeded();
+        impl.setCorked(false);
+    }
+
+    /**
+     * Writes out any output held by write coalescing.
+     *
+     * @throws IOException if the buffered bytes cannot be written
+     */
+    public void flush() throws IOException {
+        getOutputStream().flush();
+    }
+
+    /**
+     * Enables read-ahead on the stream returned by {@link #getInputStream()}.
+     * The stream then refills a per-socket buffer with reads of {@code size}
+     * bytes and serves small reads, such as byte-by-byte header parsing, from
+     * memory. {@link InputStream#available()} includes the buffered bytes.
+     * Only valid on a {@link #SOCKET_STREAM} socket, datagram boundaries would
+     * be lost.
+     *
+     * @param size refill size in bytes, 0 to read straight through (the default)
+     */
+    public void setReadAheadBufferSize(int size) throws IOException {
+        if (sockType == SOCKET_DGRAM && size > 0) {
+            throw new IllegalStateException("read-ahead on a datagram socket");
+        }
+        createIfNeeded();
+        impl.setReadAheadBufferSize(size);
+    }
+
+    /**
+     * Returns the read-ahead refill size, 0 if read-ahead is off.
+     */
+    public int getReadAheadBufferSize() {
+        return impl.getReadAheadBufferSize();
+    }
+
+    /**
+     * Switches the output stream to a multi-producer send queue. Threads
+     * sharing this socket then enqueue their writes and return without
+     * waiting for the kernel or for each other, while a single writer
+     * drains the queue in batches. Every {@code write} call on the stream
+     * becomes one frame, frames are never interleaved, and
+     * {@link OutputStream#flush()} waits for everything queued before it.
+     * The ByteBuffer, vectored, datagram and file transfer methods bypass
+     * the queue; they first wait for what is already queued to go out, so
+     * the stream stays in call order.
+     * Cannot be combined with {@link #setWriteBufferSize}.
+     *
+     * @param enable true to enable, false to flush and disable; the old
+     * queue is closed then, enqueueing into it fails
+     * @return the queue, for enqueueing ByteBuffers without a copy, or null
+     * when disabled
+     * @throws IOException
+     */
+    public RpmsgSendQueue setSendQueueEnabled(boolean enable) throws IOException {
+        createIfNeeded();
+        return impl.setSendQueueEnabled(enable, sockType == SOCKET_DGRAM);
+    }
+
+    /**
+     * Returns the send queue, or null if it is not enabled.
+     */
+    public RpmsgSendQueue getSendQueue() {
+        return impl.getSendQueue();
+    }
+
+    /**
+     * Takes a snapshot of the I/O counters of this socket.
+     */
+    public @NonNull RpmsgSocketMetrics getMetrics() {
+        return impl.getMetrics();
+    }
+
+    /**
+     * Returns the transport this socket runs on.
+     */
+    public @NonNull RpmsgTransport getTransport() {
+        return impl.getTransport();
+    }
+
+    /**
+     * Switches the socket to poller mode. The fd becomes non-blocking, and a
+     * blocking read, write, accept or datagram call that would block parks
+     * the calling thread until a shared poller thread reports the socket
+     * ready, instead of sleeping inside native code. Parked threads can be
+     * interrupted, which fails the call with
+     * {@link java.io.InterruptedIOException}, and are woken by
+     * {@link #close()}. SO_TIMEOUT still bounds each wait.
+     *
+     * <p>This keeps a mostly idle connection from tying a thread to a
+     * kernel wait, so that a runtime able to unmount parked threads can
+     * serve many connections with few OS threads.
+     *
+     * @param enable true to park on the poller, false to block in the kernel
+     * @throws IOException
+     */
+    public void setPollerMode(boolean enable) throws IOException {
+        createIfNeeded();
+        impl.setPollerMode(enable);
+    }
+
+    /**
+     * Tells whether the socket is in poller mode.
+     */
+    public boolean isPollerMode() {
+        return impl.isPollerMode();
+    }
+
     /**
      * Closes the socket.
      *
@@ -237,6 +977,10 @@ public class RpmsgSocket implements Closeable {
         impl.shutdownOutput();
     }
 
+    public void setReceiveBufferSize(int size) throws IOException {
+        impl.setOption(SocketOptions.SO_RCVBUF, Integer.valueOf(size));
+    }
+
     public int getReceiveBufferSize() throws IOException {
         return ((Integer)impl.getOption(SocketOptions.SO_RCVBUF)).intValue();
     }
@@ -249,10 +993,31 @@ public class RpmsgSocket implements Closeable {
         return ((Integer)impl.getOption(SocketOptions.SO_TIMEOUT)).intValue();
     }
 
+    public void setSendBufferSize(int n) throws IOException {
+        impl.setOption(SocketOptions.SO_SNDBUF, Integer.valueOf(n));
+    }
+
     public int getSendBufferSize() throws IOException {
         return ((Integer)impl.getOption(SocketOptions.SO_SNDBUF)).intValue();
     }
 
+    /**
+     * Lets the socket grow its kernel send and receive buffers from the
+     * observed traffic: the send buffer when writers keep blocking while
+     * moving more than a buffer's worth, the receive buffer when data keeps
+     * piling up faster than it is read. Checked every 200ms; buffers never
+     * shrink. Pair it with the water marks of {@link #getSendQueue()} to keep
+     * bursty producers from blocking.
+     *
+     * @param maxSize largest size, as reported by {@link #getSendBufferSize()},
+     * to grow to; 0 to turn tuning off
+     * @throws IOException if socket has been closed or cannot be created.
+     */
+    public void setBufferAutoTuning(int maxSize) throws IOException {
+        createIfNeeded();
+        impl.setBufferAutoTuning(maxSize);
+    }
+
     public RpmsgSocketAddress getSocketAddress() {
         throw new UnsupportedOperationException();
     }
@@ -262,7 +1027,7 @@ public class RpmsgSocket implements Closeable {
     }
 
     public boolean isClosed() {
-        throw new UnsupportedOperationException();
+        return implCreated && impl.getFileDescriptor() == null;
     }
 
     public synchronized boolean isBound() {
@@ -277,11 +1042,6 @@ public class RpmsgSocket implements Closeable {
         throw new UnsupportedOperationException();
     }
 
-    public void connect(RpmsgSocketAddress endpoint, int timeout)
-            throws IOException {
-        throw new UnsupportedOperationException();
-    }
-
     /**
      * Returns file descriptor or null if not yet open/already closed
      *
@@ -290,4 +1050,12 @@ public class RpmsgSocket implements Closeable {
     public FileDescriptor getFileDescriptor() {
         return impl.getFileDescriptor();
     }
+
+    /**
+     * for use with RpmsgSocketChannel, creates the socket if needed
+     */
+    /* package */ RpmsgSocketImpl getImpl() throws IOException {
+        createIfNeeded();
+        return impl;
+    }
 }
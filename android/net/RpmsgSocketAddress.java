@@ -16,6 +16,8 @@
 
 package android.net;
 
+import java.util.Objects;
+
 /**
  * A RPMSG-domain (AF_RPMSG) socket address. For use with
  * android.net.RpmsgSocket and android.net.RpmsgServerSocket.
@@ -65,4 +67,29 @@ public class RpmsgSocketAddress {
     {
         return rpName;
     }
+
+    /**
+     * Two addresses are equal if both their cpu and socket names are.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RpmsgSocketAddress)) {
+            return false;
+        }
+        RpmsgSocketAddress other = (RpmsgSocketAddress) o;
+        return Objects.equals(rpCpu, other.rpCpu) && Objects.equals(rpName, other.rpName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(rpCpu, rpName);
+    }
+
+    @Override
+    public String toString() {
+        return rpCpu + ":" + rpName;
+    }
 }
@@ -0,0 +1,196 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.NoConnectionPendingException;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * A selectable channel for AF_RPMSG stream sockets. The interface here is not
+ * entirely unlike that of java.nio.channels.SocketChannel. In non-blocking
+ * mode {@link #read} and {@link #write} return 0 instead of waiting, and the
+ * channel can be registered with a {@link RpmsgSelector} so that one thread
+ * serves many connections.
+ */
+public class RpmsgSocketChannel extends RpmsgSelectableChannel
+        implements ByteChannel, ScatteringByteChannel, GatheringByteChannel {
+    private final RpmsgSocket socket;
+
+    /* package */ RpmsgSocketChannel(RpmsgSocket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Opens an unconnected stream socket channel.
+     *
+     * @return a new channel
+     * @throws IOException
+     */
+    public static RpmsgSocketChannel open() throws IOException {
+        RpmsgSocketChannel channel = new RpmsgSocketChannel(new RpmsgSocket());
+        channel.getImpl();
+        return channel;
+    }
+
+    /**
+     * Opens a stream socket channel and connects it to a remote endpoint.
+     *
+     * @param remote endpoint address
+     * @return a new connected, blocking channel
+     * @throws IOException
+     */
+    public static RpmsgSocketChannel open(@NonNull RpmsgSocketAddress remote)
+            throws IOException {
+        RpmsgSocketChannel channel = open();
+        try {
+            channel.connect(remote);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Retrieves the socket associated with this channel.
+     */
+    public RpmsgSocket socket() {
+        return socket;
+    }
+
+    @Override
+    /* package */ RpmsgSocketImpl getImpl() throws IOException {
+        return socket.getImpl();
+    }
+
+    @Override
+    public int validOps() {
+        return RpmsgSelectionKey.OP_READ | RpmsgSelectionKey.OP_WRITE
+                | RpmsgSelectionKey.OP_CONNECT;
+    }
+
+    /**
+     * Connects this channel's socket. In blocking mode this waits for the
+     * connection to be established. In non-blocking mode the connect is
+     * started and, if it does not complete right away, finished through
+     * {@link #finishConnect} once the key reports OP_CONNECT.
+     *
+     * @param remote endpoint address
+     * @return true if connected, false if the connect is in progress
+     * @throws IOException
+     */
+    public boolean connect(@NonNull RpmsgSocketAddress remote) throws IOException {
+        ensureOpen();
+        if (isBlocking()) {
+            socket.connect(remote);
+            return true;
+        }
+        return socket.startConnect(remote);
+    }
+
+    /**
+     * Finishes connecting this channel's socket. Blocks until the connect
+     * completes if the channel is in blocking mode.
+     *
+     * @return true if connected, false if the connect is still in progress
+     * @throws NoConnectionPendingException if no connect has been started
+     * @throws IOException if the connect failed
+     */
+    public boolean finishConnect() throws IOException {
+        ensureOpen();
+        if (socket.isConnected()) {
+            return true;
+        }
+        if (!socket.isConnectionPending()) {
+            throw new NoConnectionPendingException();
+        }
+        return socket.finishConnect(isBlocking() ? -1 : 0);
+    }
+
+    /**
+     * Tells whether a connect is in progress on this channel.
+     */
+    public boolean isConnectionPending() {
+        return socket.isConnectionPending();
+    }
+
+    /**
+     * Tells whether this channel's socket is connected.
+     */
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        return socket.read(dst);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        return socket.write(src);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        ensureOpen();
+        return socket.read(dsts, offset, length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ensureOpen();
+        return socket.write(srcs, offset, length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    /* package */ void implCloseChannel() throws IOException {
+        if (isOpen()) {
+            socket.close();
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -17,32 +17,86 @@
 package android.net;
 
 import android.os.Build;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.system.StructTimeval;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.SocketException;
 import java.net.SocketOptions;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Socket implementation used for android.net.RpmsgSocket and
- * android.net.RpmsgServerSocket. Supports only AF_RPMSG sockets.
+ * android.net.RpmsgServerSocket. The socket family is picked by its
+ * {@link RpmsgTransport}.
  */
 class RpmsgSocketImpl
 {
+    /** returned by the native read and write calls at end of stream */
+    static final int IO_EOF = -1;
+    /** returned by the native read and write calls when a non-blocking call would block */
+    static final int IO_UNAVAILABLE = -2;
+    /** the largest number of buffers a vectored call accepts, IOV_MAX on Linux */
+    static final int MAX_IOV = 1024;
+    /** fcntl command growing a pipe, from linux/fcntl.h */
+    private static final int F_SETPIPE_SZ = 1031;
+    /** pipe size for transferTo, the native TRANSFER_CHUNK */
+    private static final int SPLICE_PIPE_SIZE = 256 * 1024;
+    /**
+     * bounce buffer for file transfers the kernel cannot move directly, the
+     * biggest size class of the shared buffer pool
+     */
+    private static final int TRANSFER_BOUNCE_SIZE = RpmsgBufferPool.DEFAULT_MAX_POOLED_SIZE;
+
     private SocketInputStream fis;
     private SocketOutputStream fos;
-    private Object readMonitor = new Object();
-    private Object writeMonitor = new Object();
+    /**
+     * Serialize readers and writers. Locks rather than monitors, so that a
+     * virtual thread parked by the poller while holding one does not pin its
+     * carrier thread.
+     */
+    private final ReentrantLock readMonitor = new ReentrantLock();
+    private final ReentrantLock writeMonitor = new ReentrantLock();
 
     /** null if closed or not yet created */
     private FileDescriptor fd;
+    /** socket family of fd */
+    private final RpmsgTransport transport;
     /** whether fd is created internally */
     private boolean fdCreatedInternally;
+    /** false once O_NONBLOCK has been set on fd */
+    private volatile boolean blocking = true;
+    /** true if blocking calls park on the shared poller instead of in the kernel */
+    private volatile boolean pollerMode;
+    /** SO_TIMEOUT in milliseconds, enforced by the parker in poller mode */
+    private volatile int soTimeoutMillis;
+    /** created on the first switch to poller mode */
+    private volatile Parker parker;
+    /** I/O counters, see RpmsgSocketMetrics */
+    private final RpmsgSocketMetrics.Recorder metrics = new RpmsgSocketMetrics.Recorder();
+    /** last address connected or bound to, for the metrics */
+    private volatile RpmsgSocketAddress address;
+    /** non-null while output stream writes go through a send queue */
+    private volatile RpmsgSendQueue sendQueue;
+    /** non-null while buffer auto-tuning is on, guarded by this */
+    private RpmsgBufferTuner bufferTuner;
 
     static {
         System.loadLibrary("cpc_extension_jni");
@@ -56,8 +110,13 @@ class RpmsgSocketImpl
         /** {@inheritDoc} */
         @Override
         public int available() throws IOException {
+            // Read without readMonitor so that a reader blocked in the kernel
+            // does not hold this up. The two fields are volatile but may be
+            // seen mid-refill, the count is only an estimate anyway.
+            int pos = readPos;
+            int buffered = Math.max(0, readLimit - pos);
             try {
-                return Os.ioctlInt(fd, OsConstants.FIONREAD);
+                return buffered + Os.ioctlInt(fd, OsConstants.FIONREAD);
             } catch (ErrnoException e) {
                 throw e.rethrowAsIOException();
             }
@@ -72,8 +131,31 @@ class RpmsgSocketImpl
         /** {@inheritDoc} */
         @Override
         public int read() throws IOException {
-            synchronized (readMonitor) {
-                return native_read_one_byte(fd);
+            long acquire = System.nanoTime();
+            readMonitor.lock();
+            try {
+                metrics.onReadMonitor(acquire);
+                if (readPos == readLimit) {
+                    if (readAheadSize == 0 && !pollerMode
+                            && !transport.canPassFileDescriptors()) {
+                        long start = System.nanoTime();
+                        int b = native_read_one_byte(fd);
+                        metrics.onRead(1, b < 0 ? b : 1, System.nanoTime() - start);
+                        return checkTimeout(b);
+                    }
+                    if (readAheadSize == 0) {
+                        byte[] b = new byte[1];
+                        int count = readStream(b, 0, 1);
+                        return count <= 0 ? IO_EOF : b[0] & 0xff;
+                    }
+                    int count = fillReadBuffer();
+                    if (count <= 0) {
+                        return IO_EOF;
+                    }
+                }
+                return readBuffer[readPos++] & 0xff;
+            } finally {
+                readMonitor.unlock();
             }
         }
 
@@ -86,10 +168,131 @@ class RpmsgSocketImpl
         /** {@inheritDoc} */
         @Override
         public int read(byte[] b, int off, int len) throws IOException {
-            synchronized (readMonitor) {
-                return native_read(b, off, len, fd);
+            if (off < 0 || len < 0 || off > b.length - len) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            long acquire = System.nanoTime();
+            readMonitor.lock();
+            try {
+                metrics.onReadMonitor(acquire);
+                if (readPos == readLimit) {
+                    if (readAheadSize == 0 || len >= readAheadSize) {
+                        // Large reads go straight to the caller's array.
+                        return readStream(b, off, len);
+                    }
+                    int count = fillReadBuffer();
+                    if (count <= 0) {
+                        return count;
+                    }
+                }
+                int count = Math.min(len, readLimit - readPos);
+                System.arraycopy(readBuffer, readPos, b, off, count);
+                readPos += count;
+                return count;
+            } finally {
+                readMonitor.unlock();
+            }
+        }
+    }
+
+    /**
+     * Descriptors passed by the peer and not fetched yet, appended to by
+     * native_recvmsg. Guarded by readMonitor.
+     */
+    private FileDescriptor[] inboundFileDescriptors;
+
+    /**
+     * bytes read ahead of the caller, valid from readPos to readLimit. Written
+     * under readMonitor, the positions are volatile for available().
+     */
+    private byte[] readBuffer;
+    private volatile int readPos;
+    private volatile int readLimit;
+    /** size of the reads that refill readBuffer, 0 if read-ahead is off */
+    private int readAheadSize;
+
+    /**
+     * Configures read-ahead on the input stream. When on, small reads are
+     * served from a per-socket buffer which is refilled with one large read
+     * once drained, so that parsing a header byte by byte does not cost a
+     * syscall per byte. Bytes already buffered are kept when it is resized
+     * or turned off.
+     *
+     * @param size refill size in bytes, 0 to read straight through
+     */
+    protected void setReadAheadBufferSize(int size)
+    {
+        if (size < 0) {
+            throw new IllegalArgumentException("negative read-ahead size");
+        }
+
+        readMonitor.lock();
+        try {
+            int buffered = readLimit - readPos;
+            if (size > 0 && (readBuffer == null || readBuffer.length != size)) {
+                byte[] b = new byte[Math.max(size, buffered)];
+                if (buffered > 0) {
+                    System.arraycopy(readBuffer, readPos, b, 0, buffered);
+                }
+                readBuffer = b;
+                readPos = 0;
+                readLimit = buffered;
+            } else if (size == 0 && buffered == 0) {
+                readBuffer = null;
+                readPos = 0;
+                readLimit = 0;
             }
+            readAheadSize = size;
+        } finally {
+            readMonitor.unlock();
+        }
+    }
+
+    /**
+     * Returns the read-ahead refill size, 0 if read-ahead is off.
+     */
+    protected int getReadAheadBufferSize()
+    {
+        readMonitor.lock();
+        try {
+            return readAheadSize;
+        } finally {
+            readMonitor.unlock();
+        }
+    }
+
+    /**
+     * Refills the drained read-ahead buffer. Must be called with readMonitor
+     * held.
+     *
+     * @return number of bytes now buffered, or -1 on end of stream
+     */
+    private int fillReadBuffer() throws IOException
+    {
+        int count = readStream(readBuffer, 0, readAheadSize);
+        readPos = 0;
+        readLimit = Math.max(count, 0);
+        return count;
+    }
+
+    /**
+     * Moves read-ahead bytes into {@code dst}. Must be called with readMonitor
+     * held, before any other read so that input stays in order.
+     *
+     * @return number of bytes moved
+     */
+    private int drainReadBuffer(ByteBuffer dst)
+    {
+        int count = Math.min(dst.remaining(), readLimit - readPos);
+        if (count > 0) {
+            dst.put(readBuffer, readPos, count);
+            readPos += count;
         }
+        return count;
     }
 
     /**
@@ -112,39 +315,486 @@ class RpmsgSocketImpl
         /** {@inheritDoc} */
         @Override
         public void write(int b) throws IOException {
-            synchronized (writeMonitor) {
-                native_write_one_byte(b, fd);
+            RpmsgSendQueue queue = sendQueue;
+            if (queue != null) {
+                queue.enqueue(ByteBuffer.wrap(new byte[] { (byte) b }));
+                return;
+            }
+
+            long acquire = System.nanoTime();
+            writeMonitor.lock();
+            try {
+                metrics.onWriteMonitor(acquire);
+                if (writeBuffer == null && !pollerMode && outboundFileDescriptors == null) {
+                    long start = System.nanoTime();
+                    int count = native_write_one_byte(b, fd);
+                    metrics.onWrite(1, count, System.nanoTime() - start);
+                    checkTimeout(count);
+                    return;
+                }
+                if (writeBuffer == null) {
+                    writeFully(new byte[] { (byte) b }, 0, 1);
+                    return;
+                }
+
+                checkWriteError();
+                if (writeCount == writeBuffer.length) {
+                    flushWriteBuffer();
+                }
+                writeBuffer[writeCount++] = (byte) b;
+                onBuffered();
+            } finally {
+                writeMonitor.unlock();
             }
         }
 
         /** {@inheritDoc} */
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
-            synchronized (writeMonitor) {
-                native_write(b, off, len, fd);
+            if (off < 0 || len < 0 || off > b.length - len) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+
+            RpmsgSendQueue queue = sendQueue;
+            if (queue != null) {
+                // Producers never touch writeMonitor, the queue's writer does.
+                queue.enqueue(b, off, len);
+                return;
+            }
+
+            long acquire = System.nanoTime();
+            writeMonitor.lock();
+            try {
+                metrics.onWriteMonitor(acquire);
+                if (writeBuffer == null) {
+                    writeFully(b, off, len);
+                    return;
+                }
+
+                checkWriteError();
+                if (len > writeBuffer.length - writeCount) {
+                    flushWriteBuffer();
+                }
+                if (len >= writeBuffer.length) {
+                    // Too large to be worth a copy, the buffer is empty now so
+                    // ordering is kept.
+                    writeFully(b, off, len);
+                    return;
+                }
+                System.arraycopy(b, off, writeBuffer, writeCount, len);
+                writeCount += len;
+                onBuffered();
+            } finally {
+                writeMonitor.unlock();
+            }
+        }
+
+        /**
+         * Writes out any coalesced bytes, even while corked.
+         */
+        @Override
+        public void flush() throws IOException {
+            RpmsgSendQueue queue = sendQueue;
+            if (queue != null) {
+                queue.flush();
+                return;
+            }
+
+            long acquire = System.nanoTime();
+            writeMonitor.lock();
+            try {
+                metrics.onWriteMonitor(acquire);
+                checkWriteError();
+                flushWriteBuffer();
+            } finally {
+                writeMonitor.unlock();
+            }
+        }
+    }
+
+    /** coalesced output not yet written, null if coalescing is off */
+    private byte[] writeBuffer;
+    /** descriptors to pass with the next stream write, guarded by writeMonitor */
+    private FileDescriptor[] outboundFileDescriptors;
+    /** number of bytes held in writeBuffer */
+    private int writeCount;
+    /** writeBuffer is flushed once it holds this many bytes, unless corked */
+    private int writeFlushThreshold;
+    /** buffered bytes are flushed at most this late, 0 for no time limit */
+    private long writeFlushDelayMillis;
+    /** true while implicit flushes are held back */
+    private boolean corked;
+    private ScheduledFuture<?> pendingFlush;
+    /** failure of a timed flush, reported by the next write */
+    private IOException writeError;
+
+    /** runs the timed flushes of every socket */
+    private static ScheduledThreadPoolExecutor sFlushTimer;
+
+    /* package */ static synchronized ScheduledThreadPoolExecutor getFlushTimer() {
+        if (sFlushTimer == null) {
+            sFlushTimer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "RpmsgFlushTimer");
+                t.setDaemon(true);
+                return t;
+            });
+            sFlushTimer.setRemoveOnCancelPolicy(true);
+        }
+        return sFlushTimer;
+    }
+
+    /**
+     * Configures write coalescing on the output stream. Bytes written are
+     * kept in a per-socket buffer and go out in one write(2) when the
+     * buffer reaches {@code threshold} bytes, when it is full, on
+     * {@link OutputStream#flush()} or after {@code delayMillis}.
+     *
+     * @param size buffer capacity in bytes, 0 to write straight through
+     * @param threshold number of buffered bytes that triggers a flush,
+     * clamped to {@code size}
+     * @param delayMillis longest time a byte may stay buffered, 0 to only
+     * flush on size or explicitly
+     * @throws IOException if pending bytes cannot be flushed
+     */
+    protected void setWriteCoalescing(int size, int threshold, long delayMillis)
+            throws IOException
+    {
+        if (size < 0 || threshold < 0 || delayMillis < 0) {
+            throw new IllegalArgumentException("negative coalescing parameter");
+        }
+
+        writeMonitor.lock();
+        try {
+            if (size > 0 && sendQueue != null) {
+                throw new IllegalStateException("send queue is on");
+            }
+            flushWriteBuffer();
+            writeBuffer = size == 0 ? null : new byte[size];
+            writeFlushThreshold = threshold == 0 ? size : Math.min(threshold, size);
+            writeFlushDelayMillis = delayMillis;
+        } finally {
+            writeMonitor.unlock();
+        }
+    }
+
+    /**
+     * Routes output stream writes through a {@link RpmsgSendQueue}, so that
+     * many producer threads hand frames to a single writer instead of
+     * queueing on writeMonitor. Excludes write coalescing, the queue already
+     * batches.
+     *
+     * @param enable true to create the queue, false to flush and close it
+     * @param datagram true to send each frame as its own datagram
+     * @return the queue, or null when disabled
+     * @throws IOException if flushing the dropped queue fails
+     */
+    protected RpmsgSendQueue setSendQueueEnabled(boolean enable, boolean datagram)
+            throws IOException
+    {
+        RpmsgSendQueue old = sendQueue;
+        if (!enable && old != null) {
+            // Drain it while it is still published, so that writes which
+            // bypass the queue from now on go out after what it holds.
+            // Outside writeMonitor, the queue's writer needs it to finish.
+            old.flush();
+        }
+
+        writeMonitor.lock();
+        try {
+            old = sendQueue;
+            if (enable) {
+                if (writeBuffer != null) {
+                    throw new IllegalStateException("write coalescing is on");
+                }
+                if (old == null) {
+                    sendQueue = new RpmsgSendQueue(this, datagram);
+                }
+                return sendQueue;
+            }
+            sendQueue = null;
+        } finally {
+            writeMonitor.unlock();
+        }
+        if (old != null) {
+            // Frames enqueued by producers racing with the switch. Then
+            // close it: a producer still holding it would otherwise bypass
+            // the order of direct writes, and awaitWritable never return.
+            try {
+                old.flush();
+            } finally {
+                old.close(new SocketException("send queue disabled"));
+            }
+        }
+        return null;
+    }
+
+    protected RpmsgSendQueue getSendQueue()
+    {
+        return sendQueue;
+    }
+
+    /**
+     * Waits until the send queue, if any, has written out what it holds, so
+     * that a write bypassing the queue keeps its place in the stream. Must
+     * not be called by the queue's own writer.
+     *
+     * @throws IOException if the queue failed to write
+     */
+    protected void flushSendQueue() throws IOException
+    {
+        RpmsgSendQueue queue = sendQueue;
+        if (queue != null) {
+            queue.flush();
+        }
+    }
+
+    /**
+     * Turns SO_SNDBUF and SO_RCVBUF auto-tuning on or off, see
+     * {@link RpmsgBufferTuner}.
+     *
+     * @param maxSize largest buffer size to grow to, 0 to turn tuning off
+     */
+    protected synchronized void setBufferAutoTuning(int maxSize)
+    {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("negative buffer size " + maxSize);
+        }
+        if (bufferTuner != null) {
+            bufferTuner.stop();
+            bufferTuner = null;
+        }
+        if (maxSize > 0) {
+            bufferTuner = new RpmsgBufferTuner(this, maxSize);
+            bufferTuner.start();
+        }
+    }
+
+    /**
+     * Returns the write coalescing buffer capacity, 0 if coalescing is off.
+     */
+    protected int getWriteBufferSize()
+    {
+        writeMonitor.lock();
+        try {
+            return writeBuffer == null ? 0 : writeBuffer.length;
+        } finally {
+            writeMonitor.unlock();
+        }
+    }
+
+    /**
+     * Holds back threshold and timed flushes so that several writes go out
+     * together, as with TCP_CORK. The buffer is still written out when full
+     * or flushed explicitly.
+     *
+     * @param cork true to cork, false to uncork and flush
+     * @throws IOException if uncorking fails to flush
+     */
+    protected void setCorked(boolean cork) throws IOException
+    {
+        writeMonitor.lock();
+        try {
+            corked = cork;
+            if (!cork) {
+                checkWriteError();
+                flushWriteBuffer();
+            }
+        } finally {
+            writeMonitor.unlock();
+        }
+    }
+
+    /** Returns whether threshold and timed flushes are held back, see {@link #setCorked}. */
+    protected boolean isCorked()
+    {
+        writeMonitor.lock();
+        try {
+            return corked;
+        } finally {
+            writeMonitor.unlock();
+        }
+    }
+
+    /** Decides whether newly buffered bytes need a flush now or later. */
+    private void onBuffered() throws IOException
+    {
+        if (corked) {
+            return;
+        }
+        if (writeCount >= writeFlushThreshold) {
+            flushWriteBuffer();
+        } else if (writeFlushDelayMillis > 0 && pendingFlush == null) {
+            pendingFlush = getFlushTimer().schedule(this::timedFlush,
+                    writeFlushDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void timedFlush()
+    {
+        writeMonitor.lock();
+        try {
+            pendingFlush = null;
+            if (corked || fd == null) {
+                return;
+            }
+            try {
+                flushWriteBuffer();
+            } catch (IOException e) {
+                writeError = e;
+            }
+        } finally {
+            writeMonitor.unlock();
+        }
+    }
+
+    private void checkWriteError() throws IOException
+    {
+        if (writeError != null) {
+            IOException e = writeError;
+            writeError = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Writes out the coalesced bytes. Must be called with writeMonitor held,
+     * before any other write so that output stays in order. If the write
+     * fails or times out, the unwritten tail stays buffered for the next
+     * flush.
+     */
+    private void flushWriteBuffer() throws IOException
+    {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        int written = 0;
+        try {
+            while (written < writeCount) {
+                written += writeOnce(writeBuffer, written, writeCount - written);
+            }
+        } finally {
+            if (written > 0) {
+                System.arraycopy(writeBuffer, written, writeBuffer, 0, writeCount - written);
+                writeCount -= written;
+            }
+        }
+    }
+
+    /**
+     * Writes all {@code len} bytes, looping over short writes. Must be called
+     * with writeMonitor held.
+     */
+    private void writeFully(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0) {
+            int count = writeOnce(b, off, len);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Writes some of {@code len} bytes, parking on the poller when in poller
+     * mode. Must be called with writeMonitor held.
+     *
+     * @return number of bytes written
+     */
+    private int writeOnce(byte[] b, int off, int len) throws IOException
+    {
+        FileDescriptor[] fds = outboundFileDescriptors;
+        int count;
+        long start = System.nanoTime();
+        do {
+            if (fds != null) {
+                count = native_sendmsg(b, off, len, fds, fd);
+            } else {
+                count = native_write(b, off, len, fd);
             }
+        } while (count == IO_UNAVAILABLE && awaitReady(RpmsgSelectionKey.OP_WRITE, start));
+        metrics.onWrite(len, count, System.nanoTime() - start);
+        count = checkTimeout(count);
+        if (fds != null && count > 0) {
+            // Passed along with the first bytes, once.
+            outboundFileDescriptors = null;
         }
+        return count;
+    }
+
+    /**
+     * Reads into {@code b} for the input stream, parking on the poller when
+     * in poller mode. Must be called with readMonitor held.
+     *
+     * @return number of bytes read, or -1 on end of stream
+     */
+    private int readStream(byte[] b, int off, int len) throws IOException
+    {
+        int count;
+        long start = System.nanoTime();
+        do {
+            if (transport.canPassFileDescriptors()) {
+                count = native_recvmsg(b, off, len, fd);
+            } else {
+                count = native_read(b, off, len, fd);
+            }
+        } while (count == IO_UNAVAILABLE && awaitReady(RpmsgSelectionKey.OP_READ, start));
+        metrics.onRead(len, count, System.nanoTime() - start);
+        return checkTimeout(count);
     }
 
-    public native FileDescriptor native_create(int type, int protocol)
+    public native FileDescriptor native_create(int transport, int type, int protocol)
             throws ErrnoException;
-    private native void native_connect(FileDescriptor fd, String rpCpu,
+    private native boolean native_connect(int transport, FileDescriptor fd, String rpCpu,
             String rpName) throws IOException;
-    private native void native_bind(FileDescriptor fd, String rpCpu,
+    private native void native_bind(int transport, FileDescriptor fd, String rpCpu,
             String rpName) throws IOException;
     private native int native_read_one_byte(FileDescriptor fd) throws IOException;
     private native int native_read(byte[] b, int off, int len,
             FileDescriptor fd) throws IOException;
+    private native int native_read_direct(ByteBuffer b, int off, int len,
+            FileDescriptor fd) throws IOException;
     private native int native_write_one_byte(int b, FileDescriptor fd)
             throws IOException;
     private native int native_write(byte[] b, int off, int len,
             FileDescriptor fd) throws IOException;
+    private native int native_write_direct(ByteBuffer b, int off, int len,
+            FileDescriptor fd) throws IOException;
+    private native int native_recv(Object b, int off, int len,
+            FileDescriptor fd) throws IOException;
+    private native int native_send(Object b, int off, int len,
+            FileDescriptor fd) throws IOException;
+    private native long native_readv(Object[] buffers, int[] offsets, int[] counts,
+            FileDescriptor fd) throws IOException;
+    private native long native_writev(Object[] buffers, int[] offsets, int[] counts,
+            FileDescriptor fd) throws IOException;
+    private native long native_sendfile(FileDescriptor src, long position, long count,
+            ByteBuffer bounce, FileDescriptor fd) throws IOException;
+    private native long native_splice(FileDescriptor dst, long position, long count,
+            FileDescriptor pipeIn, FileDescriptor pipeOut, ByteBuffer bounce,
+            FileDescriptor fd) throws IOException;
+    private native int native_sendmsg(byte[] b, int off, int len, FileDescriptor[] fds,
+            FileDescriptor fd) throws IOException;
+    private native int native_recvmsg(byte[] b, int off, int len,
+            FileDescriptor fd) throws IOException;
+    private native int native_recvmsg_direct(ByteBuffer b, int off, int len,
+            FileDescriptor fd) throws IOException;
+    private native long native_recvmsgv(Object[] buffers, int[] offsets, int[] counts,
+            FileDescriptor fd) throws IOException;
 
     /**
-     * Create a new instance.
+     * Create a new instance on the default transport.
      */
     /*package*/ RpmsgSocketImpl()
     {
+        this(RpmsgTransport.getDefault());
+    }
+
+    /**
+     * Create a new instance on the given transport.
+     */
+    /*package*/ RpmsgSocketImpl(RpmsgTransport transport)
+    {
+        this.transport = transport;
     }
 
     /**
@@ -153,10 +803,26 @@ class RpmsgSocketImpl
      *  but the caller can verify socket state by calling listen().
      *
      * @param fd non-null; bound file descriptor
+     * @param transport socket family of fd
      */
-    /*package*/ RpmsgSocketImpl(FileDescriptor fd)
+    /*package*/ RpmsgSocketImpl(FileDescriptor fd, RpmsgTransport transport)
     {
+        this(transport);
         this.fd = fd;
+        RpmsgSocketMetrics.register(this);
+    }
+
+    /* package */ RpmsgTransport getTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * Takes a snapshot of the I/O counters of this socket.
+     */
+    /* package */ RpmsgSocketMetrics getMetrics()
+    {
+        return metrics.snapshot(transport, address);
     }
 
     public String toString() {
@@ -186,90 +852,713 @@ class RpmsgSocketImpl
                 throw new IllegalStateException("unknown sockType");
         }
         try {
-            fd = native_create(osType, 0);
+            fd = native_create(transport.id, osType, 0);
             fdCreatedInternally = true;
+            RpmsgSocketMetrics.register(this);
         } catch (ErrnoException e) {
             e.rethrowAsIOException();
         }
     }
 
     /**
-     * Closes the socket.
-     *
-     * @throws IOException
+     * Maps {@link #IO_UNAVAILABLE} from a blocking call, which only happens
+     * when SO_TIMEOUT expires, to a timeout.
      */
-    public void close() throws IOException {
-        synchronized (RpmsgSocketImpl.this) {
-            try {
-                Os.close(fd);
-            } catch (ErrnoException e) {
-                e.rethrowAsIOException();
-            }
-            fd = null;
+    private int checkTimeout(int count) throws IOException {
+        if (count == IO_UNAVAILABLE) {
+            throw new SocketTimeoutException();
         }
+        return count;
     }
 
-    /** note timeout presently ignored */
-    protected void connect(RpmsgSocketAddress address, int timeout)
-                        throws IOException
-    {
-        if (fd == null) {
-            throw new IOException("socket not created");
+    /**
+     * Maps {@link #IO_UNAVAILABLE} to zero bytes transferred for
+     * non-blocking sockets and to a timeout for blocking ones.
+     */
+    private int checkUnavailable(int count) throws IOException {
+        if (count == IO_UNAVAILABLE) {
+            if (!blocking) {
+                return 0;
+            }
+            throw new SocketTimeoutException();
         }
-
-        native_connect(fd, address.getCpuName(), address.getSocketName());
+        return count;
     }
 
-   /**
-     * Binds this socket to an endpoint name. May only be called on an instance
-     * that has not yet been bound.
+    /**
+     * Adjusts the blocking mode of the socket by toggling O_NONBLOCK on fd.
      *
-     * @param endpoint endpoint address
+     * @param block true to make read, write and accept wait
      * @throws IOException
      */
-    public void bind(RpmsgSocketAddress endpoint) throws IOException
+    protected void setBlocking(boolean block) throws IOException
     {
         if (fd == null) {
             throw new IOException("socket not created");
         }
 
-        native_bind(fd, endpoint.getCpuName(), endpoint.getSocketName());
-    }
-
-    protected void listen(int backlog) throws IOException
-    {
-        if (fd == null) {
-            throw new IOException("socket not created");
-        }
         try {
-            Os.listen(fd, backlog);
+            setNonBlockingFlag(!block || pollerMode);
+            blocking = block;
         } catch (ErrnoException e) {
             throw e.rethrowAsIOException();
         }
     }
 
+    private void setNonBlockingFlag(boolean nonBlocking) throws ErrnoException
+    {
+        int flags = Os.fcntlVoid(fd, OsConstants.F_GETFL);
+        if (nonBlocking) {
+            flags |= OsConstants.O_NONBLOCK;
+        } else {
+            flags &= ~OsConstants.O_NONBLOCK;
+        }
+        Os.fcntlInt(fd, OsConstants.F_SETFL, flags);
+    }
+
     /**
-     * Accepts a new connection to the socket. Blocks until a new
-     * connection arrives.
+     * Switches poller mode. In poller mode the fd is always O_NONBLOCK, and a
+     * blocking call that would block parks the calling thread until the
+     * shared poller reports the fd ready, instead of sleeping in the kernel.
+     * A parked thread holds no native frame, responds to
+     * {@link Thread#interrupt()} with {@link InterruptedIOException} and is
+     * woken by {@link #close()}. SO_TIMEOUT keeps applying.
      *
-     * @param s a socket that will be used to represent the new connection.
+     * @param enable true to park on the poller
      * @throws IOException
      */
-    protected void accept(RpmsgSocketImpl s) throws IOException {
+    protected synchronized void setPollerMode(boolean enable) throws IOException
+    {
         if (fd == null) {
             throw new IOException("socket not created");
         }
+        if (enable == pollerMode) {
+            return;
+        }
 
         try {
-            s.fd = Os.accept(fd, null /* address */);
-            s.fdCreatedInternally = true;
+            if (enable) {
+                if (parker == null) {
+                    parker = new Parker(getPoller());
+                }
+                StructTimeval timeval = Os.getsockoptTimeval(fd, OsConstants.SOL_SOCKET,
+                        OsConstants.SO_RCVTIMEO);
+                soTimeoutMillis = (int) timeval.toMillis();
+            }
+            setNonBlockingFlag(enable || !blocking);
+            pollerMode = enable;
         } catch (ErrnoException e) {
             throw e.rethrowAsIOException();
         }
     }
 
+    protected boolean isPollerMode()
+    {
+        return pollerMode;
+    }
+
     /**
-     * Retrieves the input stream for this instance.
+     * Parks the caller until fd is ready for {@code op} if the socket is
+     * blocking and in poller mode, so that the call can be retried.
+     *
+     * @return true to retry the call, false to report {@link #IO_UNAVAILABLE}
+     * @throws IOException on SO_TIMEOUT, interrupt or close
+     */
+    private boolean awaitReady(int op, long startNanos) throws IOException
+    {
+        if (!pollerMode || !blocking) {
+            return false;
+        }
+        parker.await(op, soTimeoutMillis, startNanos);
+        return true;
+    }
+
+    /**
+     * Parks the threads blocked in poller mode. One key on the shared poller
+     * carries the union of the operations waited for, it is only changed on
+     * the poller thread. A wakeup may be spurious, the caller retries its
+     * call and parks again if it still would block.
+     */
+    private final class Parker implements RpmsgEventLoop.Callback {
+        private final RpmsgEventLoop loop;
+        /** written on the poller thread, read by close() */
+        private volatile RpmsgSelectionKey key;
+        /** poller thread only */
+        private int interest;
+        private volatile Waiter reader;
+        private volatile Waiter writer;
+
+        Parker(RpmsgEventLoop loop) {
+            this.loop = loop;
+        }
+
+        /**
+         * Parks until the operation may proceed.
+         *
+         * @param op OP_READ or OP_ACCEPT to wait for input, OP_WRITE or
+         * OP_CONNECT for output
+         * @param timeoutMillis 0 to wait indefinitely
+         * @param startNanos when the call began; the timeout runs from there
+         * across all the retries of one call
+         */
+        void await(int op, int timeoutMillis, long startNanos) throws IOException {
+            boolean read = op == RpmsgSelectionKey.OP_READ || op == RpmsgSelectionKey.OP_ACCEPT;
+            int bit = read ? RpmsgSelectionKey.OP_READ : RpmsgSelectionKey.OP_WRITE;
+            Waiter waiter = new Waiter(Thread.currentThread());
+            if (read) {
+                reader = waiter;
+            } else {
+                writer = waiter;
+            }
+
+            try {
+                loop.execute(() -> arm(bit));
+                long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (!waiter.ready) {
+                    if (fd == null) {
+                        throw new SocketException("Socket closed");
+                    }
+                    if (Thread.interrupted()) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    if (timeoutMillis > 0) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            throw new SocketTimeoutException();
+                        }
+                        LockSupport.parkNanos(this, remaining);
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                if (waiter.error != null) {
+                    throw waiter.error;
+                }
+            } catch (RejectedExecutionException e) {
+                throw new IOException("poller shut down");
+            } finally {
+                if (read) {
+                    reader = null;
+                } else {
+                    writer = null;
+                }
+                if (!waiter.ready && fd != null && !loop.isShutdown()) {
+                    loop.execute(() -> disarm(bit));
+                }
+            }
+        }
+
+        private void arm(int bit) {
+            if (fd == null) {
+                return;
+            }
+            interest |= bit;
+            RpmsgSelectionKey k = key;
+            if (k != null && k.isValid()) {
+                k.interestOps(interest);
+                return;
+            }
+            try {
+                key = loop.register(fd, interest, this);
+            } catch (IOException e) {
+                interest = 0;
+                wake(reader, e);
+                wake(writer, e);
+            }
+        }
+
+        private void disarm(int bit) {
+            interest &= ~bit;
+            updateKey();
+        }
+
+        @Override
+        public void onReady(RpmsgSelectionKey key) {
+            int ready = key.readyOps();
+            if ((ready & RpmsgSelectionKey.OP_READ) != 0) {
+                interest &= ~RpmsgSelectionKey.OP_READ;
+                wake(reader, null);
+            }
+            if ((ready & RpmsgSelectionKey.OP_WRITE) != 0) {
+                interest &= ~RpmsgSelectionKey.OP_WRITE;
+                wake(writer, null);
+            }
+            updateKey();
+        }
+
+        private void updateKey() {
+            RpmsgSelectionKey k = key;
+            if (k == null) {
+                return;
+            }
+            if (interest == 0) {
+                // An idle key would keep reporting hang ups, drop it.
+                k.cancel();
+                key = null;
+            } else {
+                k.interestOps(interest);
+            }
+        }
+
+        private void wake(Waiter waiter, IOException error) {
+            if (waiter != null) {
+                waiter.error = error;
+                waiter.ready = true;
+                LockSupport.unpark(waiter.thread);
+            }
+        }
+
+        /** called by close() before the fd is closed, so no key outlives it */
+        void cancelKey() {
+            RpmsgSelectionKey k = key;
+            if (k != null) {
+                k.cancel();
+            }
+        }
+
+        /** called by close() once fd is null, parked threads then see the close */
+        void unparkAll() {
+            Waiter w = reader;
+            if (w != null) {
+                LockSupport.unpark(w.thread);
+            }
+            w = writer;
+            if (w != null) {
+                LockSupport.unpark(w.thread);
+            }
+        }
+    }
+
+    private static final class Waiter {
+        final Thread thread;
+        volatile boolean ready;
+        volatile IOException error;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    protected boolean isBlocking()
+    {
+        return blocking;
+    }
+
+    /**
+     * Closes the socket.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (bufferTuner != null) {
+                bufferTuner.stop();
+                bufferTuner = null;
+            }
+        }
+
+        RpmsgSendQueue queue = sendQueue;
+        if (queue != null && fd != null) {
+            queue.close();
+        }
+
+        // Best effort only: a writer blocked in native_write or parked in
+        // Parker.await holds writeMonitor until the fd is closed below.
+        if (writeMonitor.tryLock()) {
+            try {
+                try {
+                    if (writeBuffer != null && fd != null) {
+                        flushWriteBuffer();
+                    }
+                } catch (IOException e) {
+                    // The peer is gone, nothing more to do with the data.
+                }
+                writeBuffer = null;
+                writeCount = 0;
+            } finally {
+                writeMonitor.unlock();
+            }
+        }
+
+        AsyncConnect op = pendingConnect;
+        if (op != null) {
+            op.abort();
+        }
+        Parker p = parker;
+        if (p != null) {
+            p.cancelKey();
+        }
+
+        synchronized (RpmsgSocketImpl.this) {
+            try {
+                Os.close(fd);
+            } catch (ErrnoException e) {
+                e.rethrowAsIOException();
+            }
+            fd = null;
+        }
+        RpmsgSocketMetrics.unregister(this);
+
+        if (p != null) {
+            p.unparkAll();
+        }
+    }
+
+    /**
+     * Connects the socket, waiting at most {@code timeout} milliseconds for
+     * the remote endpoint to accept. A timed connect puts the fd in
+     * non-blocking mode for the duration and polls it for POLLOUT.
+     *
+     * @param address remote endpoint
+     * @param timeout milliseconds to wait, 0 to wait indefinitely
+     * @throws SocketTimeoutException if the timeout expires first
+     * @throws IOException
+     */
+    protected void connect(RpmsgSocketAddress address, int timeout)
+                        throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+
+        this.address = address;
+        if (timeout == 0 && blocking && !pollerMode) {
+            native_connect(transport.id, fd, address.getCpuName(),
+                    address.getSocketName());
+            return;
+        }
+        if (blocking && pollerMode) {
+            // fd is non-blocking already, park on the poller until the
+            // connect completes instead of blocking in poll(2).
+            if (native_connect(transport.id, fd, address.getCpuName(),
+                    address.getSocketName())) {
+                return;
+            }
+            long start = System.nanoTime();
+            while (!finishConnect(0)) {
+                parker.await(RpmsgSelectionKey.OP_CONNECT, timeout, start);
+            }
+            return;
+        }
+
+        boolean wasBlocking = blocking;
+        if (wasBlocking) {
+            setBlocking(false);
+        }
+        try {
+            if (native_connect(transport.id, fd, address.getCpuName(),
+                    address.getSocketName())) {
+                return;
+            }
+            if (!finishConnect(timeout == 0 ? -1 : timeout)) {
+                throw new SocketTimeoutException("connect timed out");
+            }
+        } finally {
+            if (wasBlocking && fd != null) {
+                setBlocking(true);
+            }
+        }
+    }
+
+    /**
+     * Starts connecting without waiting, the socket must be non-blocking.
+     *
+     * @param address remote endpoint
+     * @return true if the connection was established immediately, false if
+     * it is in progress and {@link #finishConnect} must be called
+     * @throws IOException
+     */
+    protected boolean startConnect(RpmsgSocketAddress address) throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+
+        this.address = address;
+        return native_connect(transport.id, fd, address.getCpuName(),
+                address.getSocketName());
+    }
+
+    /**
+     * Waits for a connection started by {@link #startConnect} to complete.
+     *
+     * @param timeout milliseconds to wait, 0 to only check, -1 to wait
+     * indefinitely
+     * @return true if connected, false if still in progress
+     * @throws IOException if the connection failed
+     */
+    protected boolean finishConnect(int timeout) throws IOException
+    {
+        FileDescriptor fd = this.fd;
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+
+        StructPollfd pollfd = new StructPollfd();
+        pollfd.fd = fd;
+        pollfd.events = (short) OsConstants.POLLOUT;
+        StructPollfd[] pollfds = new StructPollfd[] { pollfd };
+        long deadline = SystemClock.uptimeMillis() + timeout;
+        int remaining = timeout;
+        while (true) {
+            try {
+                if (Os.poll(pollfds, remaining) == 0) {
+                    return false;
+                }
+                break;
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EINTR) {
+                    throw e.rethrowAsIOException();
+                }
+                if (timeout > 0) {
+                    remaining = (int) Math.max(0, deadline - SystemClock.uptimeMillis());
+                }
+            }
+        }
+        checkConnectError(fd, (pollfd.revents & OsConstants.POLLOUT) != 0);
+        return true;
+    }
+
+    /**
+     * Reports the outcome of a connect that has been signalled by poll.
+     *
+     * @param writable whether POLLOUT was reported, a hang up without a
+     * pending error still means the connect failed
+     */
+    private static void checkConnectError(FileDescriptor fd, boolean writable)
+            throws IOException {
+        int error;
+        try {
+            error = Os.getsockoptInt(fd, OsConstants.SOL_SOCKET, OsConstants.SO_ERROR);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        if (error != 0) {
+            throw new ErrnoException("connect", error).rethrowAsIOException();
+        }
+        if (!writable) {
+            throw new SocketException("connect failed");
+        }
+    }
+
+    /** the shared loop that completes asynchronous operations */
+    private static RpmsgEventLoop sPoller;
+
+    /* package */ static synchronized RpmsgEventLoop getPoller() throws IOException {
+        if (sPoller == null || sPoller.isShutdown()) {
+            sPoller = new RpmsgEventLoop("RpmsgPoller", 0);
+        }
+        return sPoller;
+    }
+
+    /** the connect in flight, completed on the poller or by close() */
+    private volatile AsyncConnect pendingConnect;
+
+    /**
+     * Connects the socket without blocking the caller. The fd stays
+     * non-blocking while the connection is in progress and gets its
+     * blocking mode back before the future completes.
+     *
+     * @param address remote endpoint
+     * @param timeout milliseconds to wait, 0 to wait indefinitely
+     * @return a future completed once connected, or exceptionally with
+     * {@link SocketTimeoutException} or the connect error
+     * @throws IOException if the connect could not be started
+     */
+    protected CompletableFuture<Void> connectAsync(RpmsgSocketAddress address, int timeout)
+            throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+        if (pendingConnect != null) {
+            throw new IOException("connect already in progress");
+        }
+
+        this.address = address;
+        boolean wasBlocking = blocking;
+        if (wasBlocking) {
+            setBlocking(false);
+        }
+        boolean connected;
+        try {
+            connected = native_connect(transport.id, fd, address.getCpuName(),
+                    address.getSocketName());
+        } catch (IOException e) {
+            if (wasBlocking) {
+                setBlocking(true);
+            }
+            throw e;
+        }
+        if (connected) {
+            if (wasBlocking) {
+                setBlocking(true);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        AsyncConnect op = new AsyncConnect(getPoller(), fd, wasBlocking);
+        pendingConnect = op;
+        op.start(timeout);
+        return op.future;
+    }
+
+    /**
+     * A connect in progress, registered on the shared poller. Its state is
+     * only touched on the poller thread, except for {@link #abort}.
+     */
+    private final class AsyncConnect implements RpmsgEventLoop.Callback {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final RpmsgEventLoop loop;
+        private final FileDescriptor fd;
+        private final boolean restoreBlocking;
+        private volatile RpmsgSelectionKey key;
+        private RpmsgEventLoop.Timer timer;
+
+        AsyncConnect(RpmsgEventLoop loop, FileDescriptor fd, boolean restoreBlocking) {
+            this.loop = loop;
+            this.fd = fd;
+            this.restoreBlocking = restoreBlocking;
+        }
+
+        void start(int timeout) {
+            loop.execute(() -> {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    key = loop.register(fd, RpmsgSelectionKey.OP_CONNECT, this);
+                } catch (IOException e) {
+                    complete(e);
+                    return;
+                }
+                if (timeout > 0) {
+                    timer = loop.schedule(
+                            () -> complete(new SocketTimeoutException("connect timed out")),
+                            timeout);
+                }
+            });
+        }
+
+        @Override
+        public void onReady(RpmsgSelectionKey key) {
+            try {
+                checkConnectError(fd, key.isConnectable());
+                complete(null);
+            } catch (IOException e) {
+                complete(e);
+            }
+        }
+
+        /**
+         * Fails the connect because the socket is being closed. Cancels the
+         * key right away so that it never refers to a recycled fd number.
+         */
+        void abort() {
+            RpmsgSelectionKey k = key;
+            if (k != null) {
+                k.cancel();
+            }
+            loop.execute(() -> complete(new SocketException("socket closed")));
+        }
+
+        private void complete(IOException error) {
+            if (future.isDone()) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            if (timer != null) {
+                timer.cancel();
+            }
+            pendingConnect = null;
+
+            // Restore the mode on failure too, the caller may retry the
+            // connect or keep using the socket after a timeout.
+            if (restoreBlocking) {
+                try {
+                    setBlocking(true);
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+            if (error == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(error);
+            }
+        }
+    }
+
+   /**
+     * Binds this socket to an endpoint name. May only be called on an instance
+     * that has not yet been bound.
+     *
+     * @param endpoint endpoint address
+     * @throws IOException
+     */
+    public void bind(RpmsgSocketAddress endpoint) throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+
+        address = endpoint;
+        native_bind(transport.id, fd, endpoint.getCpuName(), endpoint.getSocketName());
+    }
+
+    protected void listen(int backlog) throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+        try {
+            Os.listen(fd, backlog);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    /**
+     * Accepts a new connection to the socket. Blocks until a new
+     * connection arrives, unless the socket is non-blocking.
+     *
+     * @param s a socket that will be used to represent the new connection.
+     * @return false if the socket is non-blocking and no connection is pending
+     * @throws IOException
+     */
+    protected boolean accept(RpmsgSocketImpl s) throws IOException {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+
+        long start = System.nanoTime();
+        while (true) {
+            try {
+                s.fd = Os.accept(fd, null /* address */);
+                s.fdCreatedInternally = true;
+                RpmsgSocketMetrics.register(s);
+                return true;
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EAGAIN) {
+                    if (!blocking) {
+                        return false;
+                    }
+                    if (awaitReady(RpmsgSelectionKey.OP_ACCEPT, start)) {
+                        continue;
+                    }
+                }
+                throw e.rethrowAsIOException();
+            }
+        }
+    }
+
+    /**
+     * Retrieves the input stream for this instance.
      *
      * @return input stream
      * @throws IOException if socket has been closed or cannot be created.
@@ -310,6 +1599,608 @@ class RpmsgSocketImpl
         }
     }
 
+    /**
+     * Reads from the socket into the remaining space of {@code dst} with a
+     * single read. Direct buffers are filled in place by the kernel; heap
+     * buffers go through their backing array.
+     *
+     * @param dst buffer to read into, its position is advanced by the count read
+     * @return number of bytes read, or -1 on end of stream. A non-blocking socket
+     * returns 0 when nothing is available.
+     * @throws IOException
+     */
+    protected int read(ByteBuffer dst) throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+
+        int pos = dst.position();
+        int len = dst.remaining();
+        int count;
+
+        long acquire = System.nanoTime();
+        readMonitor.lock();
+        try {
+            metrics.onReadMonitor(acquire);
+            if (readPos < readLimit) {
+                return drainReadBuffer(dst);
+            }
+            long start = System.nanoTime();
+            do {
+                if (transport.canPassFileDescriptors()) {
+                    // recvmsg, a plain read would drop passed descriptors.
+                    count = dst.isDirect()
+                            ? native_recvmsg_direct(dst, pos, len, fd)
+                            : native_recvmsg(dst.array(), dst.arrayOffset() + pos, len, fd);
+                } else if (dst.isDirect()) {
+                    count = native_read_direct(dst, pos, len, fd);
+                } else {
+                    count = native_read(dst.array(), dst.arrayOffset() + pos, len, fd);
+                }
+            } while (count == IO_UNAVAILABLE && awaitReady(RpmsgSelectionKey.OP_READ, start));
+            metrics.onRead(len, count, System.nanoTime() - start);
+        } finally {
+            readMonitor.unlock();
+        }
+
+        count = checkUnavailable(count);
+
+        if (count > 0) {
+            dst.position(pos + count);
+        }
+        return count;
+    }
+
+    /**
+     * Writes the remaining bytes of {@code src} to the socket with a single
+     * write. Direct buffers are handed to the kernel in place; heap buffers
+     * go through their backing array.
+     *
+     * @param src buffer to write from, its position is advanced by the count written
+     * @return number of bytes written, possibly less than {@code src.remaining()}. A
+     * non-blocking socket returns 0 when the send buffer is full.
+     * @throws IOException
+     */
+    protected int write(ByteBuffer src) throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+
+        int pos = src.position();
+        int len = src.remaining();
+        int count;
+
+        long acquire = System.nanoTime();
+        writeMonitor.lock();
+        try {
+            metrics.onWriteMonitor(acquire);
+            flushWriteBuffer();
+            byte[] b = null;
+            if (!src.isDirect() && !src.hasArray()) {
+                // read-only heap buffer, its array is not accessible
+                b = new byte[len];
+                src.duplicate().get(b);
+            }
+            long start = System.nanoTime();
+            do {
+                if (src.isDirect()) {
+                    count = native_write_direct(src, pos, len, fd);
+                } else if (b == null) {
+                    count = native_write(src.array(), src.arrayOffset() + pos, len, fd);
+                } else {
+                    count = native_write(b, 0, len, fd);
+                }
+            } while (count == IO_UNAVAILABLE && awaitReady(RpmsgSelectionKey.OP_WRITE, start));
+            metrics.onWrite(len, count, System.nanoTime() - start);
+        } finally {
+            writeMonitor.unlock();
+        }
+
+        count = checkUnavailable(count);
+
+        if (count > 0) {
+            src.position(pos + count);
+        }
+        return count;
+    }
+
+    /**
+     * Receives one datagram into the remaining space of {@code dst}.
+     *
+     * @param dst buffer to receive into, its position is advanced by the count stored
+     * @return length of the datagram, greater than the space that was remaining
+     * if it had to be truncated, or -1 on end of stream. A non-blocking socket
+     * returns 0 when no datagram is queued.
+     * @throws IOException
+     */
+    protected int receive(ByteBuffer dst) throws IOException
+    {
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+
+        int pos = dst.position();
+        int len = dst.remaining();
+        int count;
+        if (dst.isDirect()) {
+            count = receive(dst, pos, len);
+        } else {
+            count = receive(dst.array(), dst.arrayOffset() + pos, len);
+        }
+
+        if (count > 0) {
+            dst.position(pos + Math.min(count, len));
+        }
+        return count;
+    }
+
+    /**
+     * Receives one datagram into {@code b}, a direct ByteBuffer or a byte[].
+     *
+     * @return length of the datagram, greater than {@code len} if it had to be
+     * truncated, -1 on end of stream, or 0 if the socket is non-blocking and no
+     * datagram is queued
+     * @throws IOException
+     */
+    protected int receive(Object b, int off, int len) throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+
+        int count;
+        long acquire = System.nanoTime();
+        readMonitor.lock();
+        try {
+            metrics.onReadMonitor(acquire);
+            long start = System.nanoTime();
+            do {
+                count = native_recv(b, off, len, fd);
+            } while (count == IO_UNAVAILABLE && awaitReady(RpmsgSelectionKey.OP_READ, start));
+            metrics.onRead(len, count, System.nanoTime() - start);
+        } finally {
+            readMonitor.unlock();
+        }
+        return checkUnavailable(count);
+    }
+
+    /**
+     * Sends the remaining bytes of {@code src} as one datagram.
+     *
+     * @param src buffer to send from, its position is advanced past the datagram
+     * @return number of bytes sent, or 0 if the socket is non-blocking and the
+     * datagram could not be queued
+     * @throws IOException
+     */
+    protected int send(ByteBuffer src) throws IOException
+    {
+        int pos = src.position();
+        int len = src.remaining();
+        int count;
+        if (src.isDirect()) {
+            count = send(src, pos, len);
+        } else if (src.hasArray()) {
+            count = send(src.array(), src.arrayOffset() + pos, len);
+        } else {
+            // read-only heap buffer, its array is not accessible
+            byte[] b = new byte[len];
+            src.duplicate().get(b);
+            count = send(b, 0, len);
+        }
+
+        if (count > 0) {
+            src.position(pos + count);
+        }
+        return count;
+    }
+
+    /**
+     * Sends {@code len} bytes of {@code b}, a direct ByteBuffer or a byte[],
+     * as one datagram.
+     *
+     * @return number of bytes sent, or 0 if the socket is non-blocking and the
+     * datagram could not be queued
+     * @throws IOException
+     * @throws IllegalArgumentException if {@code len} is 0; an empty datagram
+     * would read as end of stream on the other side
+     */
+    protected int send(Object b, int off, int len) throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+        if (len == 0) {
+            throw new IllegalArgumentException("empty datagram");
+        }
+
+        int count;
+        long acquire = System.nanoTime();
+        writeMonitor.lock();
+        try {
+            metrics.onWriteMonitor(acquire);
+            long start = System.nanoTime();
+            do {
+                count = native_send(b, off, len, fd);
+            } while (count == IO_UNAVAILABLE && awaitReady(RpmsgSelectionKey.OP_WRITE, start));
+            metrics.onWrite(len, count, System.nanoTime() - start);
+        } finally {
+            writeMonitor.unlock();
+        }
+        return checkUnavailable(count);
+    }
+
+    /**
+     * Reads from the socket into the remaining space of the given buffers,
+     * filling them in order, with a single readv(2).
+     *
+     * @param dsts buffers to read into
+     * @param offset index of the first buffer to use
+     * @param length number of buffers to use, at most {@link #MAX_IOV}
+     * @return number of bytes read, or -1 on end of stream. A non-blocking
+     * socket returns 0 when nothing is available.
+     * @throws IOException
+     */
+    protected long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+        checkVectorBounds(dsts.length, offset, length);
+
+        Object[] buffers = new Object[length];
+        int[] offsets = new int[length];
+        int[] counts = new int[length];
+        for (int i = 0; i < length; i++) {
+            ByteBuffer dst = dsts[offset + i];
+            if (dst.isReadOnly()) {
+                throw new ReadOnlyBufferException();
+            }
+            if (dst.isDirect()) {
+                buffers[i] = dst;
+                offsets[i] = dst.position();
+            } else {
+                buffers[i] = dst.array();
+                offsets[i] = dst.arrayOffset() + dst.position();
+            }
+            counts[i] = dst.remaining();
+        }
+        if (sum(counts) == 0) {
+            // No room left, readv would return 0 and that means end of stream.
+            return 0;
+        }
+
+        long count;
+        long acquire = System.nanoTime();
+        readMonitor.lock();
+        try {
+            metrics.onReadMonitor(acquire);
+            if (readPos < readLimit) {
+                count = 0;
+                for (int i = offset; i < offset + length && readPos < readLimit; i++) {
+                    count += drainReadBuffer(dsts[i]);
+                }
+                return count;
+            }
+            long start = System.nanoTime();
+            do {
+                if (transport.canPassFileDescriptors()) {
+                    count = native_recvmsgv(buffers, offsets, counts, fd);
+                } else {
+                    count = native_readv(buffers, offsets, counts, fd);
+                }
+            } while (count == IO_UNAVAILABLE && awaitReady(RpmsgSelectionKey.OP_READ, start));
+            metrics.onRead(sum(counts), count, System.nanoTime() - start);
+        } finally {
+            readMonitor.unlock();
+        }
+
+        if (count == IO_UNAVAILABLE) {
+            count = checkUnavailable(IO_UNAVAILABLE);
+        }
+        advance(dsts, offset, length, count);
+        return count;
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffers, in order, with a single
+     * writev(2). On a datagram socket they form one message.
+     *
+     * @param srcs buffers to write from
+     * @param offset index of the first buffer to use
+     * @param length number of buffers to use, at most {@link #MAX_IOV}
+     * @return number of bytes written, possibly less than the total remaining.
+     * A non-blocking socket returns 0 when the send buffer is full.
+     * @throws IOException
+     */
+    protected long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+        checkVectorBounds(srcs.length, offset, length);
+
+        Object[] buffers = new Object[length];
+        int[] offsets = new int[length];
+        int[] counts = new int[length];
+        for (int i = 0; i < length; i++) {
+            ByteBuffer src = srcs[offset + i];
+            if (src.isDirect()) {
+                buffers[i] = src;
+                offsets[i] = src.position();
+            } else if (src.hasArray()) {
+                buffers[i] = src.array();
+                offsets[i] = src.arrayOffset() + src.position();
+            } else {
+                // read-only heap buffer, its array is not accessible
+                byte[] b = new byte[src.remaining()];
+                src.duplicate().get(b);
+                buffers[i] = b;
+                offsets[i] = 0;
+            }
+            counts[i] = src.remaining();
+        }
+
+        long count;
+        long acquire = System.nanoTime();
+        writeMonitor.lock();
+        try {
+            metrics.onWriteMonitor(acquire);
+            flushWriteBuffer();
+            long start = System.nanoTime();
+            do {
+                count = native_writev(buffers, offsets, counts, fd);
+            } while (count == IO_UNAVAILABLE && awaitReady(RpmsgSelectionKey.OP_WRITE, start));
+            metrics.onWrite(sum(counts), count, System.nanoTime() - start);
+        } finally {
+            writeMonitor.unlock();
+        }
+
+        if (count == IO_UNAVAILABLE) {
+            count = checkUnavailable(IO_UNAVAILABLE);
+        }
+        advance(srcs, offset, length, count);
+        return count;
+    }
+
+    /**
+     * Queues descriptors to pass to the peer with the next write on the
+     * output stream. Bytes coalesced before this call go out first, without
+     * them.
+     *
+     * @param fds descriptors to pass, or null to cancel
+     * @throws IOException if the transport cannot pass descriptors
+     */
+    protected void setFileDescriptorsForSend(FileDescriptor[] fds) throws IOException
+    {
+        if (fds != null && !transport.canPassFileDescriptors()) {
+            throw new IOException(transport + " transport cannot pass file descriptors");
+        }
+        writeMonitor.lock();
+        try {
+            flushWriteBuffer();
+            outboundFileDescriptors = fds;
+        } finally {
+            writeMonitor.unlock();
+        }
+    }
+
+    /**
+     * Returns the descriptors passed by the peer along with the bytes
+     * returned by the input stream and ByteBuffer reads since the last call,
+     * and forgets them.
+     *
+     * @return the descriptors, or null if none arrived
+     */
+    protected FileDescriptor[] getAncillaryFileDescriptors()
+    {
+        readMonitor.lock();
+        try {
+            FileDescriptor[] result = inboundFileDescriptors;
+            inboundFileDescriptors = null;
+            return result;
+        } finally {
+            readMonitor.unlock();
+        }
+    }
+
+    /**
+     * Sends {@code count} bytes of {@code src} from {@code position} with
+     * sendfile(2), or a native copy loop where the socket does not support
+     * it. Frames already handed to the send queue or the coalescing buffer
+     * go out first.
+     *
+     * @return number of bytes sent, less than {@code count} if the file ends
+     * first, a non-blocking socket fills up or SO_TIMEOUT expires after some
+     * bytes went out
+     * @throws IOException
+     */
+    protected long transferFrom(FileDescriptor src, long position, long count)
+            throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("negative position or count");
+        }
+
+        flushSendQueue();
+
+        long total = 0;
+        RpmsgBufferPool pool = RpmsgBufferPool.getDefault();
+        ByteBuffer bounce = pool.acquire(TRANSFER_BOUNCE_SIZE);
+        long acquire = System.nanoTime();
+        writeMonitor.lock();
+        try {
+            metrics.onWriteMonitor(acquire);
+            flushWriteBuffer();
+            while (total < count) {
+                long len = count - total;
+                long n;
+                long start = System.nanoTime();
+                do {
+                    n = native_sendfile(src, position + total, len, bounce, fd);
+                } while (n == IO_UNAVAILABLE && awaitReady(RpmsgSelectionKey.OP_WRITE, start));
+                metrics.onWrite(len, n, System.nanoTime() - start);
+
+                if (n == IO_UNAVAILABLE) {
+                    if (total == 0) {
+                        checkUnavailable(IO_UNAVAILABLE);
+                    }
+                    break;
+                }
+                if (n == 0) {
+                    // end of file
+                    break;
+                }
+                total += n;
+            }
+        } finally {
+            writeMonitor.unlock();
+            pool.release(bounce);
+        }
+        return total;
+    }
+
+    /**
+     * Receives up to {@code count} bytes and writes them to {@code dst} at
+     * {@code position}, through a pipe with splice(2), or a native copy loop
+     * where the socket does not support it. Bytes already read ahead are
+     * written out first.
+     *
+     * @return number of bytes received, less than {@code count} if the peer
+     * ends the stream first, a non-blocking socket runs dry or SO_TIMEOUT
+     * expires after some bytes came in
+     * @throws IOException
+     */
+    protected long transferTo(FileDescriptor dst, long position, long count)
+            throws IOException
+    {
+        if (fd == null) {
+            throw new IOException("socket not created");
+        }
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("negative position or count");
+        }
+
+        long total = 0;
+        long acquire = System.nanoTime();
+        readMonitor.lock();
+        try {
+            metrics.onReadMonitor(acquire);
+            while (readPos < readLimit && total < count) {
+                int len = (int) Math.min(readLimit - readPos, count - total);
+                try {
+                    int n = Os.pwrite(dst, readBuffer, readPos, len, position + total);
+                    readPos += n;
+                    total += n;
+                } catch (ErrnoException e) {
+                    throw e.rethrowAsIOException();
+                }
+            }
+
+            if (total == count) {
+                return total;
+            }
+
+            FileDescriptor[] pipe = openSplicePipe();
+            RpmsgBufferPool pool = RpmsgBufferPool.getDefault();
+            ByteBuffer bounce = pool.acquire(TRANSFER_BOUNCE_SIZE);
+            try {
+                while (total < count) {
+                    long len = count - total;
+                    long n;
+                    long start = System.nanoTime();
+                    do {
+                        n = native_splice(dst, position + total, len,
+                                pipe != null ? pipe[0] : null, pipe != null ? pipe[1] : null,
+                                bounce, fd);
+                    } while (n == IO_UNAVAILABLE && awaitReady(RpmsgSelectionKey.OP_READ, start));
+                    metrics.onRead(len, n, System.nanoTime() - start);
+
+                    if (n == IO_UNAVAILABLE) {
+                        if (total == 0) {
+                            checkUnavailable(IO_UNAVAILABLE);
+                        }
+                        break;
+                    }
+                    if (n == IO_EOF) {
+                        break;
+                    }
+                    total += n;
+                }
+            } finally {
+                if (pipe != null) {
+                    closeQuietly(pipe[0]);
+                    closeQuietly(pipe[1]);
+                }
+                pool.release(bounce);
+            }
+        } finally {
+            readMonitor.unlock();
+        }
+        return total;
+    }
+
+    /**
+     * Opens the pipe transferTo splices through, grown so one splice can take
+     * a whole chunk. Returns null when there is none, transferTo then copies
+     * through its bounce buffer.
+     */
+    private static FileDescriptor[] openSplicePipe() {
+        FileDescriptor[] pipe;
+        try {
+            pipe = Os.pipe2(OsConstants.O_CLOEXEC);
+        } catch (ErrnoException e) {
+            return null;
+        }
+        try {
+            Os.fcntlInt(pipe[1], F_SETPIPE_SZ, SPLICE_PIPE_SIZE);
+        } catch (ErrnoException e) {
+            // The default 64KiB pipe only costs more calls.
+        }
+        return pipe;
+    }
+
+    private static void closeQuietly(FileDescriptor fd) {
+        try {
+            Os.close(fd);
+        } catch (ErrnoException e) {
+            // nothing left to release
+        }
+    }
+
+    private static long sum(int[] counts) {
+        long total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static void checkVectorBounds(int size, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > size - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (length > MAX_IOV) {
+            throw new IllegalArgumentException("more than " + MAX_IOV + " buffers");
+        }
+    }
+
+    /** moves the positions of the buffers past the {@code count} bytes transferred */
+    private static void advance(ByteBuffer[] bufs, int offset, int length, long count) {
+        for (int i = offset; i < offset + length && count > 0; i++) {
+            int n = (int) Math.min(bufs[i].remaining(), count);
+            bufs[i].position(bufs[i].position() + n);
+            count -= n;
+        }
+    }
+
     /**
      * Returns the number of bytes available for reading without blocking.
      *
@@ -411,6 +2302,7 @@ class RpmsgSocketImpl
                             timeval);
                     Os.setsockoptTimeval(fd, OsConstants.SOL_SOCKET, OsConstants.SO_SNDTIMEO,
                             timeval);
+                    soTimeoutMillis = intValue;
                     break;
                 default:
                     int osOpt = javaSoToOsOpt(optID);
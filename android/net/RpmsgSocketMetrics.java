@@ -0,0 +1,262 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A point-in-time snapshot of the I/O counters of one rpmsg socket, taken
+ * through {@link RpmsgSocket#getMetrics()} or, for every live socket in the
+ * process, {@link #getAll()}.
+ *
+ * Counters start at zero when the socket is created and only grow. A read
+ * or write "call" is one native read, write, recv, send, readv or writev;
+ * it is short when it moved fewer bytes than requested. Blocked time is
+ * spent inside those calls, including time parked in poller mode. A monitor
+ * acquisition counts as contended when the caller waited at least
+ * {@link #CONTENDED_NANOS} for another reader or writer of the same socket.
+ */
+public final class RpmsgSocketMetrics {
+    /** minimum wait for a read or write monitor acquisition to count as contended */
+    public static final long CONTENDED_NANOS = 1000;
+
+    /** live sockets, weakly held so that a leaked socket can still be collected */
+    private static final Map<RpmsgSocketImpl, Boolean> sLiveSockets =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final RpmsgTransport transport;
+    private final RpmsgSocketAddress address;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final long readCalls;
+    private final long writeCalls;
+    private final long shortReads;
+    private final long shortWrites;
+    private final long readBlockedNanos;
+    private final long writeBlockedNanos;
+    private final long readContentions;
+    private final long writeContentions;
+    private final long readMonitorWaitNanos;
+    private final long writeMonitorWaitNanos;
+
+    /**
+     * The counters of one socket. Recording only touches LongAdders, so it
+     * takes no lock and stays cheap when several threads use the socket.
+     */
+    /* package */ static final class Recorder {
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder readCalls = new LongAdder();
+        private final LongAdder writeCalls = new LongAdder();
+        private final LongAdder shortReads = new LongAdder();
+        private final LongAdder shortWrites = new LongAdder();
+        private final LongAdder readBlockedNanos = new LongAdder();
+        private final LongAdder writeBlockedNanos = new LongAdder();
+        private final LongAdder readContentions = new LongAdder();
+        private final LongAdder writeContentions = new LongAdder();
+        private final LongAdder readMonitorWaitNanos = new LongAdder();
+        private final LongAdder writeMonitorWaitNanos = new LongAdder();
+
+        /**
+         * Records one native read.
+         *
+         * @param requested bytes asked for
+         * @param count the native return value, negative for end of stream
+         * or would-block
+         * @param nanos time spent in the call
+         */
+        void onRead(long requested, long count, long nanos) {
+            readCalls.increment();
+            readBlockedNanos.add(nanos);
+            if (count > 0) {
+                bytesRead.add(Math.min(count, requested));
+                if (count < requested) {
+                    shortReads.increment();
+                }
+            }
+        }
+
+        /**
+         * Records one native write, see {@link #onRead}.
+         */
+        void onWrite(long requested, long count, long nanos) {
+            writeCalls.increment();
+            writeBlockedNanos.add(nanos);
+            if (count > 0) {
+                bytesWritten.add(count);
+                if (count < requested) {
+                    shortWrites.increment();
+                }
+            }
+        }
+
+        /**
+         * Records that the read monitor was acquired, to be called first
+         * thing after readMonitor.lock() returns.
+         *
+         * @param startNanos System.nanoTime() taken before locking
+         */
+        void onReadMonitor(long startNanos) {
+            long waited = System.nanoTime() - startNanos;
+            if (waited >= CONTENDED_NANOS) {
+                readContentions.increment();
+                readMonitorWaitNanos.add(waited);
+            }
+        }
+
+        /**
+         * Records that the write monitor was acquired, see {@link #onReadMonitor}.
+         */
+        void onWriteMonitor(long startNanos) {
+            long waited = System.nanoTime() - startNanos;
+            if (waited >= CONTENDED_NANOS) {
+                writeContentions.increment();
+                writeMonitorWaitNanos.add(waited);
+            }
+        }
+
+        RpmsgSocketMetrics snapshot(RpmsgTransport transport, RpmsgSocketAddress address) {
+            return new RpmsgSocketMetrics(transport, address, this);
+        }
+    }
+
+    private RpmsgSocketMetrics(RpmsgTransport transport, RpmsgSocketAddress address,
+            Recorder r) {
+        this.transport = transport;
+        this.address = address;
+        bytesRead = r.bytesRead.sum();
+        bytesWritten = r.bytesWritten.sum();
+        readCalls = r.readCalls.sum();
+        writeCalls = r.writeCalls.sum();
+        shortReads = r.shortReads.sum();
+        shortWrites = r.shortWrites.sum();
+        readBlockedNanos = r.readBlockedNanos.sum();
+        writeBlockedNanos = r.writeBlockedNanos.sum();
+        readContentions = r.readContentions.sum();
+        writeContentions = r.writeContentions.sum();
+        readMonitorWaitNanos = r.readMonitorWaitNanos.sum();
+        writeMonitorWaitNanos = r.writeMonitorWaitNanos.sum();
+    }
+
+    /* package */ static void register(RpmsgSocketImpl impl) {
+        sLiveSockets.put(impl, Boolean.TRUE);
+    }
+
+    /* package */ static void unregister(RpmsgSocketImpl impl) {
+        sLiveSockets.remove(impl);
+    }
+
+    /**
+     * Takes a snapshot of every open rpmsg socket in the process, server
+     * sockets included.
+     *
+     * @return one snapshot per socket, in no particular order
+     */
+    public static @NonNull List<RpmsgSocketMetrics> getAll() {
+        ArrayList<RpmsgSocketImpl> impls;
+        synchronized (sLiveSockets) {
+            impls = new ArrayList<>(sLiveSockets.keySet());
+        }
+
+        ArrayList<RpmsgSocketMetrics> all = new ArrayList<>(impls.size());
+        for (int i = 0; i < impls.size(); i++) {
+            all.add(impls.get(i).getMetrics());
+        }
+        return all;
+    }
+
+    /**
+     * Returns the transport of the socket.
+     */
+    public @NonNull RpmsgTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Returns the address the socket was connected or bound to, or null if
+     * it was accepted or adopted from a file descriptor.
+     */
+    public @Nullable RpmsgSocketAddress getAddress() {
+        return address;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getReadCalls() {
+        return readCalls;
+    }
+
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    public long getShortReads() {
+        return shortReads;
+    }
+
+    public long getShortWrites() {
+        return shortWrites;
+    }
+
+    public long getReadBlockedNanos() {
+        return readBlockedNanos;
+    }
+
+    public long getWriteBlockedNanos() {
+        return writeBlockedNanos;
+    }
+
+    public long getReadContentions() {
+        return readContentions;
+    }
+
+    public long getWriteContentions() {
+        return writeContentions;
+    }
+
+    public long getReadMonitorWaitNanos() {
+        return readMonitorWaitNanos;
+    }
+
+    public long getWriteMonitorWaitNanos() {
+        return writeMonitorWaitNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "RpmsgSocketMetrics{" + transport + " " + address
+                + " in=" + bytesRead + "B/" + readCalls + " calls/" + shortReads + " short"
+                + "/" + readBlockedNanos / 1000 + "us blocked"
+                + " out=" + bytesWritten + "B/" + writeCalls + " calls/" + shortWrites + " short"
+                + "/" + writeBlockedNanos / 1000 + "us blocked"
+                + " contended=" + readContentions + "r/" + writeContentions + "w}";
+    }
+}
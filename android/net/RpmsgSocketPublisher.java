@@ -0,0 +1,263 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes what a blocking stream {@link RpmsgSocket} receives as a
+ * {@link Flow.Publisher} of ByteBuffers.
+ *
+ * The socket is read only while the subscriber has outstanding demand: one
+ * read per requested item, each into a buffer from the pool. Without demand
+ * nothing reads the socket, its receive buffer fills up and the remote end
+ * blocks, so a slow subscriber throttles the sender instead of data piling
+ * up on the heap.
+ *
+ * A socket's input can be consumed only once, so the publisher accepts a
+ * single subscriber. Cancelling shuts down the socket input to release a
+ * read that is blocked waiting for data.
+ */
+public final class RpmsgSocketPublisher implements Flow.Publisher<ByteBuffer> {
+    /** default size of the buffers handed to onNext */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** reader and writer threads shared by publishers and subscribers */
+    private static ThreadPoolExecutor sExecutor;
+
+    private final RpmsgSocket socket;
+    private final int bufferSize;
+    private final RpmsgBufferPool pool;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * Creates a publisher reading up to {@link #DEFAULT_BUFFER_SIZE} bytes
+     * per item into buffers of the shared pool.
+     *
+     * @param socket connected stream socket, in blocking mode
+     */
+    public RpmsgSocketPublisher(@NonNull RpmsgSocket socket) {
+        this(socket, DEFAULT_BUFFER_SIZE, RpmsgBufferPool.getDefault(), null);
+    }
+
+    /**
+     * Creates a publisher.
+     *
+     * @param socket connected stream socket, in blocking mode
+     * @param bufferSize most bytes read per item
+     * @param pool where the buffers handed to onNext come from
+     * @param executor runs the blocking reads and the subscriber callbacks,
+     * null for a shared pool of daemon threads
+     */
+    public RpmsgSocketPublisher(@NonNull RpmsgSocket socket, int bufferSize,
+            @NonNull RpmsgBufferPool pool, @Nullable Executor executor) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("invalid buffer size " + bufferSize);
+        }
+        this.socket = socket;
+        this.bufferSize = bufferSize;
+        this.pool = pool;
+        this.executor = executor != null ? executor : getDefaultExecutor();
+    }
+
+    /* package */ static synchronized Executor getDefaultExecutor() {
+        if (sExecutor == null) {
+            AtomicInteger count = new AtomicInteger();
+            sExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), r -> {
+                        Thread t = new Thread(r, "RpmsgFlow-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Subscribes the only subscriber of this publisher; later ones get
+     * onError with an {@link IllegalStateException}.
+     */
+    @Override
+    public void subscribe(@NonNull Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("already subscribed"));
+            return;
+        }
+        subscriber.onSubscribe(new ReadSubscription(subscriber));
+    }
+
+    /**
+     * Hands a buffer received through onNext back to the pool. The caller
+     * must not touch it afterwards.
+     */
+    public void release(@NonNull ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    /**
+     * Returns the socket items are read from.
+     */
+    public @NonNull RpmsgSocket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Reads while there is demand, one drain at a time on the executor.
+     */
+    private final class ReadSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        /** scheduled drains not yet accounted for by the running one */
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        /** set by a bad request(n), reported by the drain */
+        private volatile Throwable invalidRequest;
+
+        ReadSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("non-positive request " + n);
+            } else {
+                long current, next;
+                do {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!demand.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            if (wip.get() > 0) {
+                try {
+                    socket.shutdownInput();
+                } catch (IOException e) {
+                    // Already closed, nothing is blocked then.
+                }
+            }
+        }
+
+        private void schedule() {
+            if (!cancelled && wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            for (;;) {
+                while (!cancelled) {
+                    Throwable invalid = invalidRequest;
+                    if (invalid != null) {
+                        cancelled = true;
+                        subscriber.onError(invalid);
+                        return;
+                    }
+                    if (demand.get() == 0) {
+                        break;
+                    }
+                    if (!readOne()) {
+                        return;
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Reads and delivers one item.
+         *
+         * @return false once the subscription is over
+         */
+        private boolean readOne() {
+            ByteBuffer buffer = pool.acquire(bufferSize);
+            int count;
+            try {
+                count = socket.read(buffer);
+            } catch (IOException e) {
+                pool.release(buffer);
+                if (!cancelled) {
+                    cancelled = true;
+                    subscriber.onError(e);
+                }
+                return false;
+            }
+            if (count < 0 || cancelled) {
+                pool.release(buffer);
+                if (!cancelled) {
+                    cancelled = true;
+                    subscriber.onComplete();
+                }
+                return false;
+            }
+            if (count == 0) {
+                pool.release(buffer);
+                return true;
+            }
+
+            buffer.flip();
+            if (demand.get() != Long.MAX_VALUE) {
+                demand.decrementAndGet();
+            }
+            try {
+                subscriber.onNext(buffer);
+            } catch (RuntimeException e) {
+                // A throwing onNext cancels the subscription.
+                cancel();
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the ByteBuffers of a {@link Flow.Publisher} to a blocking stream
+ * {@link RpmsgSocket}.
+ *
+ * At most {@code prefetch} items are requested ahead; one more is requested
+ * each time an item has been written out completely. When the remote end
+ * stops reading, writes block, requests stop and the publisher is held back
+ * in turn.
+ *
+ * onComplete shuts down the socket output once everything is written, so
+ * the peer sees end of stream. The outcome is reported by
+ * {@link #getCompletion()}.
+ */
+public final class RpmsgSocketSubscriber implements Flow.Subscriber<ByteBuffer> {
+    /** default number of items requested ahead */
+    public static final int DEFAULT_PREFETCH = 4;
+
+    private final RpmsgSocket socket;
+    private final int prefetch;
+    private final RpmsgBufferPool pool;
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    /** scheduled drains not yet accounted for by the running one */
+    private final AtomicInteger wip = new AtomicInteger();
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private volatile Flow.Subscription subscription;
+    private volatile boolean done;
+    private volatile Throwable error;
+
+    /**
+     * Creates a subscriber requesting {@link #DEFAULT_PREFETCH} items ahead
+     * and leaving written buffers alone. Buffers from an
+     * {@link RpmsgSocketPublisher} come from {@link RpmsgBufferPool#getDefault()};
+     * pass that pool to the four-argument constructor to recycle them. The
+     * pool cannot tell its own buffers from foreign ones, so only hand it
+     * buffers nothing else keeps using.
+     *
+     * @param socket connected stream socket, in blocking mode
+     */
+    public RpmsgSocketSubscriber(@NonNull RpmsgSocket socket) {
+        this(socket, DEFAULT_PREFETCH, null, null);
+    }
+
+    /**
+     * Creates a subscriber.
+     *
+     * @param socket connected stream socket, in blocking mode
+     * @param prefetch items requested ahead of the one being written
+     * @param pool where written buffers are handed back to, null to leave
+     * them alone
+     * @param executor runs the blocking writes, null for a shared pool of
+     * daemon threads
+     */
+    public RpmsgSocketSubscriber(@NonNull RpmsgSocket socket, int prefetch,
+            @Nullable RpmsgBufferPool pool, @Nullable Executor executor) {
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("invalid prefetch " + prefetch);
+        }
+        this.socket = socket;
+        this.prefetch = prefetch;
+        this.pool = pool;
+        this.executor = executor != null ? executor : RpmsgSocketPublisher.getDefaultExecutor();
+    }
+
+    @Override
+    public void onSubscribe(@NonNull Flow.Subscription s) {
+        Objects.requireNonNull(s);
+        if (subscription != null) {
+            s.cancel();
+            return;
+        }
+        subscription = s;
+        s.request(prefetch);
+    }
+
+    @Override
+    public void onNext(@NonNull ByteBuffer item) {
+        queue.offer(Objects.requireNonNull(item));
+        schedule();
+    }
+
+    @Override
+    public void onError(@NonNull Throwable t) {
+        error = Objects.requireNonNull(t);
+        done = true;
+        schedule();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        schedule();
+    }
+
+    /**
+     * Returns a future completed once every item has been written and the
+     * output shut down, or completed exceptionally with the publisher's error
+     * or the write failure.
+     */
+    public @NonNull CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    private void schedule() {
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        int missed = 1;
+        for (;;) {
+            if (completion.isDone()) {
+                discard();
+            } else {
+                writeQueued();
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void writeQueued() {
+        for (;;) {
+            boolean finished = done;
+            ByteBuffer item = queue.poll();
+            if (item == null) {
+                if (finished) {
+                    finish();
+                }
+                return;
+            }
+
+            try {
+                while (item.hasRemaining()) {
+                    socket.write(item);
+                }
+            } catch (IOException e) {
+                release(item);
+                subscription.cancel();
+                completion.completeExceptionally(e);
+                discard();
+                return;
+            }
+            release(item);
+            subscription.request(1);
+        }
+    }
+
+    private void finish() {
+        Throwable t = error;
+        if (t != null) {
+            completion.completeExceptionally(t);
+            return;
+        }
+        try {
+            socket.shutdownOutput();
+            completion.complete(null);
+        } catch (IOException e) {
+            completion.completeExceptionally(e);
+        }
+    }
+
+    private void discard() {
+        ByteBuffer item;
+        while ((item = queue.poll()) != null) {
+            release(item);
+        }
+    }
+
+    private void release(ByteBuffer item) {
+        if (pool != null) {
+            pool.release(item);
+        }
+    }
+}
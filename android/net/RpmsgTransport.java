@@ -0,0 +1,122 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import android.annotation.NonNull;
+
+/**
+ * The socket family carrying a {@link RpmsgSocket}. Every transport takes the
+ * same {@link RpmsgSocketAddress}, so code written against RpmsgSocket and
+ * RpmsgServerSocket runs unchanged on any of them.
+ *
+ * {@link #RPMSG} talks to the remote cores over AF_RPMSG. {@link #LOCAL}
+ * stays on this core: it maps the address to an AF_UNIX socket in the
+ * abstract namespace, named {@code rpmsg/<socket name>}, and ignores the cpu
+ * name, which lets socket code be exercised and measured without the remote
+ * cores. On LOCAL, {@link RpmsgSocket#SOCKET_DGRAM} is backed by
+ * SOCK_SEQPACKET to keep the connected, message preserving semantics of
+ * rpmsg datagram sockets.
+ *
+ * The transport of sockets created without one is picked by the
+ * {@code android.net.rpmsg.transport} system property, "rpmsg" or "local",
+ * and defaults to {@link #RPMSG}.
+ */
+public final class RpmsgTransport {
+    /** system property selecting the default transport */
+    public static final String PROPERTY_DEFAULT = "android.net.rpmsg.transport";
+
+    /* package */ static final int ID_RPMSG = 0;
+    /* package */ static final int ID_LOCAL = 1;
+
+    /** AF_RPMSG, the remote cores */
+    public static final RpmsgTransport RPMSG = new RpmsgTransport("rpmsg", ID_RPMSG);
+    /** AF_UNIX abstract namespace loopback on this core */
+    public static final RpmsgTransport LOCAL = new RpmsgTransport("local", ID_LOCAL);
+
+    private static volatile RpmsgTransport sDefault;
+
+    private final String name;
+    /** passed down to the native calls, matches TRANSPORT_* in android_net_RpmsgSocket.cpp */
+    /* package */ final int id;
+
+    private RpmsgTransport(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    /**
+     * Returns the transport used by sockets created without one.
+     */
+    public static @NonNull RpmsgTransport getDefault() {
+        RpmsgTransport transport = sDefault;
+        if (transport == null) {
+            transport = forName(System.getProperty(PROPERTY_DEFAULT, RPMSG.name));
+            if (transport == null) {
+                transport = RPMSG;
+            }
+            sDefault = transport;
+        }
+        return transport;
+    }
+
+    /**
+     * Overrides the transport used by sockets created without one, for
+     * tests and benchmarks. Sockets already created keep their transport.
+     *
+     * @param transport the new default, null to go back to the system property
+     */
+    public static void setDefault(RpmsgTransport transport) {
+        sDefault = transport;
+    }
+
+    /**
+     * Looks a transport up by name.
+     *
+     * @param name "rpmsg" or "local"
+     * @return the transport, or null if the name is unknown
+     */
+    public static RpmsgTransport forName(String name) {
+        if (RPMSG.name.equals(name)) {
+            return RPMSG;
+        }
+        if (LOCAL.name.equals(name)) {
+            return LOCAL;
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether sockets on this transport can pass file descriptors to
+     * their peer, see {@link RpmsgSocket#setFileDescriptorsForSend}. Only
+     * {@link #LOCAL} can, AF_RPMSG has no ancillary data.
+     */
+    public boolean canPassFileDescriptors() {
+        return id == ID_LOCAL;
+    }
+
+    /**
+     * Returns the name of this transport.
+     */
+    public @NonNull String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,550 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+#define LOG_TAG "RpmsgRingChannel"
+
+#include <jni.h>
+#include <nativehelper/JNIPlatformHelp.h>
+#include <utils/Log.h>
+#include <utils/misc.h>
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include <atomic>
+#include <new>
+
+#include <android-base/macros.h>
+
+namespace android {
+
+/* "RPRB", marks an initialized shared region */
+#define RING_MAGIC 0x52505242
+
+/* Bytes reserved in front of the data of each ring, two cache lines for
+ * the header fields plus room to grow.
+ */
+#define RING_HEADER_SIZE 256
+
+/* RingHeader.closed bits */
+#define RING_PRODUCER_CLOSED 1
+#define RING_CONSUMER_CLOSED 2
+
+/* Flag in the high word of the native_read and native_write results asking
+ * the caller to ring the doorbell, matches RpmsgRingChannel.WAKE_PEER.
+ */
+#define RING_WAKE_PEER (1LL << 32)
+
+/* Returned by native_read once the ring is empty and the producer closed,
+ * and by native_write once the consumer closed.
+ */
+#define RING_CLOSED -1
+
+/* Seals a memfd ring region carries, so that neither peer can resize it
+ * under the other's mapping.
+ */
+#define RING_SEALS (F_SEAL_SHRINK | F_SEAL_GROW)
+
+/* Link target prefix of a memfd in /proc/self/fd */
+#define MEMFD_PREFIX "/memfd:"
+
+/*
+ * Header of one single-producer single-consumer ring. The indices run
+ * freely and are masked with capacity - 1, so head == tail means empty and
+ * tail - head == capacity means full. Each side only stores to its own
+ * cache line, the other side only loads from it.
+ */
+struct RingHeader {
+    uint32_t magic;
+    uint32_t capacity;
+    std::atomic<uint32_t> closed;
+
+    alignas(64) std::atomic<uint32_t> head;
+    /* set by the consumer before it sleeps on the doorbell */
+    std::atomic<uint32_t> consumerWaiting;
+
+    alignas(64) std::atomic<uint32_t> tail;
+    /* set by the producer before it sleeps on the doorbell */
+    std::atomic<uint32_t> producerWaiting;
+};
+
+static_assert(sizeof(RingHeader) <= RING_HEADER_SIZE, "ring header too large");
+static_assert(std::atomic<uint32_t>::is_always_lock_free,
+    "ring indices must be lock free to be shared across processes");
+
+/*
+ * Resolves a direct ByteBuffer or a byte[] to the address of its first
+ * byte. Array elements are pinned with the critical variant, the copy in
+ * between never blocks.
+ */
+class ScopedCriticalBytes {
+public:
+    ScopedCriticalBytes(JNIEnv* env, jobject buffer, bool isWrite)
+        : mEnv(env)
+        , mIsWrite(isWrite)
+        , mArray(NULL)
+    {
+        mBase = (uint8_t*)env->GetDirectBufferAddress(buffer);
+        if (mBase == NULL) {
+            mArray = (jbyteArray)buffer;
+            mBase = (uint8_t*)env->GetPrimitiveArrayCritical(mArray, NULL);
+        }
+    }
+
+    ~ScopedCriticalBytes()
+    {
+        if (mArray != NULL && mBase != NULL) {
+            mEnv->ReleasePrimitiveArrayCritical(mArray, mBase, mIsWrite ? JNI_ABORT : 0);
+        }
+    }
+
+    uint8_t* get() { return mBase; }
+
+private:
+    JNIEnv* mEnv;
+    bool mIsWrite;
+    jbyteArray mArray;
+    uint8_t* mBase;
+
+    DISALLOW_COPY_AND_ASSIGN(ScopedCriticalBytes);
+};
+
+static size_t
+ring_size(uint32_t capacity)
+{
+    return RING_HEADER_SIZE + (size_t)capacity;
+}
+
+/* Returns the header of ring 0 or 1 of a mapped region, NULL with an
+ * exception pending if the region or index is invalid. The capacity is the
+ * one native_capacity validated on attach, never the copy in shared memory
+ * the peer can still change.
+ */
+static RingHeader*
+ring_get(JNIEnv* env, jobject map, jint ring, jint capacity)
+{
+    if (map == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return NULL;
+    }
+
+    uint8_t* base = (uint8_t*)env->GetDirectBufferAddress(map);
+    if (base == NULL) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "not a direct buffer");
+        return NULL;
+    }
+
+    RingHeader* first = (RingHeader*)base;
+    if (first->magic != RING_MAGIC || (ring != 0 && ring != 1)) {
+        jniThrowException(env, "java/lang/IllegalStateException", "not a ring region");
+        return NULL;
+    }
+    return (RingHeader*)(base + ring * ring_size(capacity));
+}
+
+/* Returns the bytes queued in a ring, or throws and returns -1 if the
+ * indices in shared memory say more than it can hold.
+ */
+static int64_t
+ring_used(JNIEnv* env, uint32_t head, uint32_t tail, uint32_t capacity)
+{
+    uint32_t used = tail - head;
+    if (used > capacity) {
+        jniThrowException(env, "java/io/IOException", "ring indices corrupted");
+        return -1;
+    }
+    return used;
+}
+
+static uint8_t*
+ring_data(RingHeader* header)
+{
+    return (uint8_t*)header + RING_HEADER_SIZE;
+}
+
+/* private static native FileDescriptor native_create_shared(String name,
+ * long size) throws IOException;
+ */
+static jobject
+rpmsg_ring_create_shared(JNIEnv* env, jclass clazz, jstring name, jlong size)
+{
+    const char* cname = env->GetStringUTFChars(name, NULL);
+    if (cname == NULL) {
+        return NULL;
+    }
+    int fd = memfd_create(cname, MFD_CLOEXEC | MFD_ALLOW_SEALING);
+    env->ReleaseStringUTFChars(name, cname);
+
+    if (fd < 0) {
+        jniThrowIOException(env, errno);
+        return NULL;
+    }
+
+    if (ftruncate(fd, size) < 0 || fcntl(fd, F_ADD_SEALS, RING_SEALS | F_SEAL_SEAL) < 0) {
+        int err = errno;
+        close(fd);
+        jniThrowIOException(env, err);
+        return NULL;
+    }
+
+    jobject jifd = jniCreateFileDescriptor(env, fd);
+    if (jifd == NULL) {
+        // OOME prevented allocation of j.i.FileDescriptor instance, close fd to avoid leak.
+        close(fd);
+    }
+    return jifd;
+}
+
+/*
+ * Returns whether fd is a memfd, the only kind of region that can be sealed.
+ */
+static bool
+ring_is_memfd(int fd)
+{
+    char path[32];
+    char target[sizeof(MEMFD_PREFIX) - 1];
+
+    snprintf(path, sizeof(path), "/proc/self/fd/%d", fd);
+    // readlink truncates, the prefix is all that is compared.
+    ssize_t len = readlink(path, target, sizeof(target));
+    return len == (ssize_t)sizeof(target) && !memcmp(target, MEMFD_PREFIX, len);
+}
+
+/* private static native ByteBuffer native_map(FileDescriptor fd, long size,
+ * boolean sealedOnly) throws IOException;
+ *
+ * Maps size bytes of a region. A memfd must be sealed against resizing, so
+ * a peer truncating it cannot fault this side. Any other region, such as a
+ * carveout shared with a remote core through a device node, cannot be
+ * sealed and is trusted as given unless sealedOnly is set; only a regular
+ * file is checked to be large enough.
+ */
+static jobject
+rpmsg_ring_map(JNIEnv* env, jclass clazz, jobject fileDescriptor, jlong size,
+    jboolean sealedOnly)
+{
+    if (fileDescriptor == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return NULL;
+    }
+
+    int fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return NULL;
+    }
+
+    if (size <= 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "invalid region size");
+        return NULL;
+    }
+
+    if (!ring_is_memfd(fd)) {
+        if (sealedOnly) {
+            jniThrowException(env, "java/io/IOException", "ring region not a memfd");
+            return NULL;
+        }
+    } else {
+        int seals = fcntl(fd, F_GET_SEALS);
+        if (seals < 0) {
+            jniThrowIOException(env, errno);
+            return NULL;
+        }
+        if ((seals & RING_SEALS) != RING_SEALS) {
+            jniThrowException(env, "java/io/IOException", "ring region not sealed");
+            return NULL;
+        }
+    }
+
+    struct stat st;
+    if (fstat(fd, &st) < 0) {
+        jniThrowIOException(env, errno);
+        return NULL;
+    }
+    if (S_ISREG(st.st_mode) && st.st_size < size) {
+        jniThrowException(env, "java/io/IOException", "ring region too small");
+        return NULL;
+    }
+
+    void* addr = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    if (addr == MAP_FAILED) {
+        jniThrowIOException(env, errno);
+        return NULL;
+    }
+
+    jobject map = env->NewDirectByteBuffer(addr, size);
+    if (map == NULL) {
+        munmap(addr, size);
+    }
+    return map;
+}
+
+/* private static native void native_unmap(ByteBuffer map);
+ */
+static void
+rpmsg_ring_unmap(JNIEnv* env, jclass clazz, jobject map)
+{
+    void* addr = env->GetDirectBufferAddress(map);
+    if (addr != NULL) {
+        munmap(addr, env->GetDirectBufferCapacity(map));
+    }
+}
+
+/* private static native void native_init(ByteBuffer map, int capacity);
+ *
+ * Lays out two empty rings of capacity bytes each, ring 0 written by the
+ * side that created the region.
+ */
+static void
+rpmsg_ring_init(JNIEnv* env, jclass clazz, jobject map, jint capacity)
+{
+    uint8_t* base = (uint8_t*)env->GetDirectBufferAddress(map);
+    if (base == NULL || env->GetDirectBufferCapacity(map) < (jlong)ring_size(capacity) * 2) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "region too small");
+        return;
+    }
+
+    for (int i = 0; i < 2; i++) {
+        RingHeader* header = new (base + i * ring_size(capacity)) RingHeader();
+        header->capacity = capacity;
+        header->closed.store(0, std::memory_order_relaxed);
+        header->head.store(0, std::memory_order_relaxed);
+        header->consumerWaiting.store(0, std::memory_order_relaxed);
+        header->tail.store(0, std::memory_order_relaxed);
+        header->producerWaiting.store(0, std::memory_order_relaxed);
+    }
+
+    // Publish the layout last, the peer checks the magic before anything else.
+    std::atomic_thread_fence(std::memory_order_release);
+    ((RingHeader*)base)->magic = RING_MAGIC;
+    ((RingHeader*)(base + ring_size(capacity)))->magic = RING_MAGIC;
+}
+
+/* private static native int native_capacity(ByteBuffer map);
+ *
+ * Returns the ring capacity of an initialized region, -1 otherwise.
+ */
+static jint
+rpmsg_ring_capacity(JNIEnv* env, jclass clazz, jobject map)
+{
+    uint8_t* base = (uint8_t*)env->GetDirectBufferAddress(map);
+    if (base == NULL || env->GetDirectBufferCapacity(map) < RING_HEADER_SIZE) {
+        return -1;
+    }
+
+    RingHeader* header = (RingHeader*)base;
+    if (header->magic != RING_MAGIC) {
+        return -1;
+    }
+    std::atomic_thread_fence(std::memory_order_acquire);
+
+    uint32_t capacity = header->capacity;
+    if (capacity == 0 || (capacity & (capacity - 1)) != 0
+        || env->GetDirectBufferCapacity(map) < (jlong)ring_size(capacity) * 2) {
+        return -1;
+    }
+    return capacity;
+}
+
+/* private static native long native_write(ByteBuffer map, int ring,
+ * int capacity, Object b, int off, int len) throws IOException;
+ *
+ * Copies as much of b as fits into the ring, off and len are checked by
+ * the caller. Returns the count copied, 0
+ * when the ring is full, ored with WAKE_PEER when the consumer is asleep.
+ */
+static jlong
+rpmsg_ring_write(JNIEnv* env, jclass clazz, jobject map, jint ring,
+    jint capacity, jobject buffer, jint off, jint len)
+{
+    RingHeader* header = ring_get(env, map, ring, capacity);
+    if (header == NULL) {
+        return RING_CLOSED;
+    }
+
+    if (header->closed.load(std::memory_order_acquire) & RING_CONSUMER_CLOSED) {
+        return RING_CLOSED;
+    }
+
+    uint32_t tail = header->tail.load(std::memory_order_relaxed);
+    uint32_t head = header->head.load(std::memory_order_acquire);
+    int64_t used = ring_used(env, head, tail, capacity);
+    if (used < 0) {
+        return RING_CLOSED;
+    }
+    uint32_t space = capacity - (uint32_t)used;
+    uint32_t count = (uint32_t)len < space ? (uint32_t)len : space;
+
+    if (count > 0) {
+        ScopedCriticalBytes bytes(env, buffer, true);
+        if (bytes.get() == NULL) {
+            return RING_CLOSED;
+        }
+        uint32_t at = tail & (capacity - 1);
+        uint32_t first = capacity - at < count ? capacity - at : count;
+        memcpy(ring_data(header) + at, bytes.get() + off, first);
+        memcpy(ring_data(header), bytes.get() + off + first, count - first);
+        header->tail.store(tail + count, std::memory_order_release);
+    }
+
+    // Pairs with the fence in native_prepare_wait: either the consumer sees
+    // the new tail, or this sees its waiting flag.
+    std::atomic_thread_fence(std::memory_order_seq_cst);
+    jlong wake = 0;
+    if (count > 0 && header->consumerWaiting.exchange(0, std::memory_order_relaxed)) {
+        wake = RING_WAKE_PEER;
+    }
+    return wake | count;
+}
+
+/* private static native long native_read(ByteBuffer map, int ring,
+ * int capacity, Object b, int off, int len) throws IOException;
+ *
+ * Copies up to len bytes out of the ring, off and len are checked by the
+ * caller. Returns the count copied, 0 when
+ * the ring is empty, -1 once it is empty and the producer closed, ored with
+ * WAKE_PEER when the producer is asleep.
+ */
+static jlong
+rpmsg_ring_read(JNIEnv* env, jclass clazz, jobject map, jint ring,
+    jint capacity, jobject buffer, jint off, jint len)
+{
+    RingHeader* header = ring_get(env, map, ring, capacity);
+    if (header == NULL) {
+        return RING_CLOSED;
+    }
+
+    uint32_t head = header->head.load(std::memory_order_relaxed);
+    uint32_t tail = header->tail.load(std::memory_order_acquire);
+    int64_t used = ring_used(env, head, tail, capacity);
+    if (used < 0) {
+        return RING_CLOSED;
+    }
+    uint32_t avail = (uint32_t)used;
+    uint32_t count = (uint32_t)len < avail ? (uint32_t)len : avail;
+
+    if (avail == 0 && (header->closed.load(std::memory_order_acquire) & RING_PRODUCER_CLOSED)) {
+        // Recheck, the producer may have written right before closing.
+        if (header->tail.load(std::memory_order_acquire) == head) {
+            return RING_CLOSED;
+        }
+        return 0;
+    }
+
+    if (count > 0) {
+        ScopedCriticalBytes bytes(env, buffer, false);
+        if (bytes.get() == NULL) {
+            return RING_CLOSED;
+        }
+        uint32_t at = head & (capacity - 1);
+        uint32_t first = capacity - at < count ? capacity - at : count;
+        memcpy(bytes.get() + off, ring_data(header) + at, first);
+        memcpy(bytes.get() + off + first, ring_data(header), count - first);
+        header->head.store(head + count, std::memory_order_release);
+    }
+
+    std::atomic_thread_fence(std::memory_order_seq_cst);
+    jlong wake = 0;
+    if (count > 0 && header->producerWaiting.exchange(0, std::memory_order_relaxed)) {
+        wake = RING_WAKE_PEER;
+    }
+    return wake | count;
+}
+
+/* private static native boolean native_prepare_wait(ByteBuffer map,
+ * int ring, int capacity, boolean producer);
+ *
+ * Announces that the caller is about to sleep on the doorbell, then checks
+ * the ring once more. Returns true if there is no need to sleep after all:
+ * data or space arrived, or the other side closed.
+ */
+static jboolean
+rpmsg_ring_prepare_wait(JNIEnv* env, jclass clazz, jobject map, jint ring,
+    jint capacity, jboolean producer)
+{
+    RingHeader* header = ring_get(env, map, ring, capacity);
+    if (header == NULL) {
+        return JNI_TRUE;
+    }
+
+    if (producer) {
+        header->producerWaiting.store(1, std::memory_order_relaxed);
+    } else {
+        header->consumerWaiting.store(1, std::memory_order_relaxed);
+    }
+    std::atomic_thread_fence(std::memory_order_seq_cst);
+
+    uint32_t used = header->tail.load(std::memory_order_acquire)
+        - header->head.load(std::memory_order_acquire);
+    uint32_t closed = header->closed.load(std::memory_order_acquire);
+    if (used > (uint32_t)capacity) {
+        // Corrupted indices, the next read or write reports them.
+        return JNI_TRUE;
+    }
+    if (producer) {
+        return used < (uint32_t)capacity || (closed & RING_CONSUMER_CLOSED);
+    }
+    return used > 0 || (closed & RING_PRODUCER_CLOSED);
+}
+
+/* private static native void native_close(ByteBuffer map, int ring,
+ * int capacity, boolean producer);
+ */
+static void
+rpmsg_ring_close(JNIEnv* env, jclass clazz, jobject map, jint ring, jint capacity,
+    jboolean producer)
+{
+    RingHeader* header = ring_get(env, map, ring, capacity);
+    if (header == NULL) {
+        return;
+    }
+
+    header->closed.fetch_or(producer ? RING_PRODUCER_CLOSED : RING_CONSUMER_CLOSED,
+        std::memory_order_release);
+}
+
+/*
+ * JNI registration.
+ */
+static const JNINativeMethod gMethods[] = {
+    /* name, signature, funcPtr */
+    { "native_create_shared", "(Ljava/lang/String;J)Ljava/io/FileDescriptor;",
+        (void*)rpmsg_ring_create_shared },
+    { "native_map", "(Ljava/io/FileDescriptor;JZ)Ljava/nio/ByteBuffer;", (void*)rpmsg_ring_map },
+    { "native_unmap", "(Ljava/nio/ByteBuffer;)V", (void*)rpmsg_ring_unmap },
+    { "native_init", "(Ljava/nio/ByteBuffer;I)V", (void*)rpmsg_ring_init },
+    { "native_capacity", "(Ljava/nio/ByteBuffer;)I", (void*)rpmsg_ring_capacity },
+    { "native_write", "(Ljava/nio/ByteBuffer;IILjava/lang/Object;II)J",
+        (void*)rpmsg_ring_write },
+    { "native_read", "(Ljava/nio/ByteBuffer;IILjava/lang/Object;II)J",
+        (void*)rpmsg_ring_read },
+    { "native_prepare_wait", "(Ljava/nio/ByteBuffer;IIZ)Z", (void*)rpmsg_ring_prepare_wait },
+    { "native_close", "(Ljava/nio/ByteBuffer;IIZ)V", (void*)rpmsg_ring_close },
+};
+
+};
+
+int register_android_net_RpmsgRingChannel(JNIEnv* env)
+{
+    return jniRegisterNativeMethods(env, "android/net/RpmsgRingChannel",
+        android::gMethods, NELEM(android::gMethods));
+}
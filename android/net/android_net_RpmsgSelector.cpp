@@ -0,0 +1,156 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+#define LOG_TAG "RpmsgSelector"
+
+#include <jni.h>
+#include <nativehelper/JNIPlatformHelp.h>
+#include <utils/Log.h>
+#include <utils/misc.h>
+
+#include <errno.h>
+#include <sys/epoll.h>
+#include <unistd.h>
+
+namespace android {
+
+/* Must not exceed RpmsgSelector.MAX_EVENTS */
+#define MAX_EVENTS 64
+
+/* private static native FileDescriptor native_create() throws IOException;
+ */
+static jobject
+rpmsg_selector_create(JNIEnv* env, jclass clazz)
+{
+    int epfd = epoll_create1(EPOLL_CLOEXEC);
+    if (epfd < 0) {
+        jniThrowIOException(env, errno);
+        return NULL;
+    }
+
+    jobject jifd = jniCreateFileDescriptor(env, epfd);
+    if (jifd == NULL) {
+        // OOME prevented allocation of j.i.FileDescriptor instance, close fd to avoid leak.
+        close(epfd);
+    }
+    return jifd;
+}
+
+/* private static native void native_ctl(FileDescriptor epfd, int op,
+ * FileDescriptor fd, int events, int token) throws IOException;
+ *
+ * op is one of EPOLL_CTL_*, events uses the POLL* bits which have the same
+ * values as their EPOLL* counterparts.
+ */
+static void
+rpmsg_selector_ctl(JNIEnv* env, jclass clazz, jobject epollDescriptor,
+    jint op, jobject fileDescriptor, jint events, jint token)
+{
+    int epfd;
+    int fd;
+
+    if (epollDescriptor == NULL || fileDescriptor == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return;
+    }
+
+    epfd = jniGetFDFromFileDescriptor(env, epollDescriptor);
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return;
+    }
+
+    struct epoll_event event;
+    event.events = events;
+    event.data.u64 = (uint32_t)token;
+
+    if (epoll_ctl(epfd, op, fd, &event) < 0) {
+        jniThrowIOException(env, errno);
+    }
+}
+
+/* private static native int native_wait(FileDescriptor epfd, int[] tokens,
+ * int[] events, int timeout) throws IOException;
+ */
+static jint
+rpmsg_selector_wait(JNIEnv* env, jclass clazz, jobject epollDescriptor,
+    jintArray tokens, jintArray events, jint timeout)
+{
+    struct epoll_event ready[MAX_EVENTS];
+    int epfd;
+    int count;
+
+    if (epollDescriptor == NULL || tokens == NULL || events == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    epfd = jniGetFDFromFileDescriptor(env, epollDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    int max = env->GetArrayLength(tokens);
+    if (max > env->GetArrayLength(events)) {
+        max = env->GetArrayLength(events);
+    }
+    if (max > MAX_EVENTS) {
+        max = MAX_EVENTS;
+    }
+
+    count = epoll_wait(epfd, ready, max, timeout);
+    if (count < 0) {
+        if (errno == EINTR) {
+            // treated as a spurious wakeup
+            return 0;
+        }
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+
+    jint readyTokens[MAX_EVENTS];
+    jint readyEvents[MAX_EVENTS];
+    for (int i = 0; i < count; i++) {
+        readyTokens[i] = (jint)ready[i].data.u64;
+        readyEvents[i] = (jint)ready[i].events;
+    }
+
+    env->SetIntArrayRegion(tokens, 0, count, readyTokens);
+    env->SetIntArrayRegion(events, 0, count, readyEvents);
+
+    return count;
+}
+
+/*
+ * JNI registration.
+ */
+static const JNINativeMethod gMethods[] = {
+    /* name, signature, funcPtr */
+    { "native_create", "()Ljava/io/FileDescriptor;", (void*)rpmsg_selector_create },
+    { "native_ctl", "(Ljava/io/FileDescriptor;ILjava/io/FileDescriptor;II)V",
+        (void*)rpmsg_selector_ctl },
+    { "native_wait", "(Ljava/io/FileDescriptor;[I[II)I", (void*)rpmsg_selector_wait },
+};
+
+};
+
+int register_android_net_RpmsgSelector(JNIEnv* env)
+{
+    return jniRegisterNativeMethods(env, "android/net/RpmsgSelector",
+        android::gMethods, NELEM(android::gMethods));
+}
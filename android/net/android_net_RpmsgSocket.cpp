@@ -22,32 +22,119 @@
 #include <utils/misc.h>
 
 #include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
 #include <netpacket/rpmsg.h>
+#include <stddef.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
 #include <sys/ioctl.h>
+#include <sys/sendfile.h>
 #include <sys/socket.h>
 #include <sys/types.h>
+#include <sys/uio.h>
 #include <sys/un.h>
 #include <unistd.h>
 
+#include <memory>
+#include <vector>
+
 #include <android-base/macros.h>
 #include <cutils/sockets.h>
 #include <nativehelper/ScopedUtfChars.h>
 
 namespace android {
 
-/* private native FileDescriptor native_create(int domain,
+/* Returned by the read and write entry points when the socket is
+ * non-blocking and the call would block, matches
+ * RpmsgSocketImpl.IO_UNAVAILABLE.
+ */
+#define IO_UNAVAILABLE -2
+
+/* Socket families selectable through RpmsgTransport, match its ID_* values. */
+#define TRANSPORT_RPMSG 0
+#define TRANSPORT_LOCAL 1
+
+/* Prefix of the AF_UNIX abstract names used by the local transport. */
+#define LOCAL_NAME_PREFIX "rpmsg/"
+
+/* Most bytes moved by one file transfer call, and the size of the pipe
+ * used when the kernel cannot move them directly. The bounce buffer comes
+ * from the caller, which keeps one for the whole transfer.
+ */
+#define TRANSFER_CHUNK (256 * 1024)
+
+/* Most descriptors passed along with one write, the kernel's SCM_MAX_FD. */
+#define MAX_PASSED_FDS 253
+
+/* RpmsgSocketImpl.inboundFileDescriptors */
+static jfieldID gInboundFileDescriptors;
+/* java.io.FileDescriptor, a global reference */
+static jclass gFileDescriptorClass;
+
+/* Control buffer big enough for MAX_PASSED_FDS descriptors, aligned for
+ * the cmsghdr at its start.
+ */
+union PassedFdsControl {
+    struct cmsghdr align;
+    char buf[CMSG_SPACE(sizeof(int) * MAX_PASSED_FDS)];
+};
+
+/* Fills addr with the socket address of rpCpu:rpName on the given transport.
+ * Returns the address length, or 0 with an exception pending if the
+ * transport is unknown.
+ */
+static socklen_t
+rpmsg_socket_make_address(JNIEnv* env, jint transport, const char* rpCpu,
+    const char* rpName, struct sockaddr_storage* addr)
+{
+    memset(addr, 0, sizeof(*addr));
+
+    if (transport == TRANSPORT_RPMSG) {
+        struct sockaddr_rpmsg* rpaddr = (struct sockaddr_rpmsg*)addr;
+        rpaddr->rp_family = AF_RPMSG;
+        strlcpy(rpaddr->rp_cpu, rpCpu, RPMSG_SOCKET_CPU_SIZE);
+        strlcpy(rpaddr->rp_name, rpName, RPMSG_SOCKET_NAME_SIZE);
+        return sizeof(*rpaddr);
+    }
+
+    if (transport == TRANSPORT_LOCAL) {
+        // Everything is on this core, the cpu name plays no part. The name
+        // lives in the abstract namespace, sun_path[0] stays 0.
+        struct sockaddr_un* unaddr = (struct sockaddr_un*)addr;
+        unaddr->sun_family = AF_UNIX;
+        size_t len = snprintf(unaddr->sun_path + 1, sizeof(unaddr->sun_path) - 1,
+            "%s%s", LOCAL_NAME_PREFIX, rpName);
+        if (len >= sizeof(unaddr->sun_path) - 1) {
+            len = sizeof(unaddr->sun_path) - 2;
+        }
+        return offsetof(struct sockaddr_un, sun_path) + 1 + len;
+    }
+
+    jniThrowException(env, "java/lang/IllegalArgumentException", "unknown transport");
+    return 0;
+}
+
+/* private native FileDescriptor native_create(int transport,
  * int type, int protocol) throws IOException
  */
 static jobject
 rpmsg_socket_create(JNIEnv* env, jobject object,
-    jint type, jint protocol)
+    jint transport, jint type, jint protocol)
 {
-    int fd = socket(PF_RPMSG, type, protocol);
+    int fd;
+
+    if (transport == TRANSPORT_LOCAL) {
+        // rpmsg datagram sockets are connected and keep message boundaries,
+        // which on AF_UNIX is SOCK_SEQPACKET.
+        fd = socket(AF_UNIX, type == SOCK_DGRAM ? SOCK_SEQPACKET : type, protocol);
+    } else {
+        fd = socket(PF_RPMSG, type, protocol);
+    }
     if (fd < 0) {
         jniThrowIOException(env, errno);
+        return NULL;
     }
 
     jobject jifd = jniCreateFileDescriptor(env, fd);
@@ -58,47 +145,57 @@ rpmsg_socket_create(JNIEnv* env, jobject object,
     return jifd;
 }
 
-/* private native void native_connect(FileDescriptor fd,
+/* private native boolean native_connect(int transport, FileDescriptor fd,
  * String rpCpu, String rpName) throws IOException
+ *
+ * Returns false if the socket is non-blocking and the connection is
+ * still in progress.
  */
-static void
+static jboolean
 rpmsg_socket_connect(JNIEnv* env, jobject object,
-    jobject fileDescriptor, jstring rpCpu, jstring rpName)
+    jint transport, jobject fileDescriptor, jstring rpCpu, jstring rpName)
 {
     int ret;
     int fd;
 
     if (rpCpu == NULL || rpName == NULL) {
         jniThrowNullPointerException(env, NULL);
-        return;
+        return JNI_FALSE;
     }
 
     fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
 
     if (env->ExceptionCheck()) {
-        return;
+        return JNI_FALSE;
     }
 
     ScopedUtfChars rpCpuUtf8(env, rpCpu);
     ScopedUtfChars rpNameUtf8(env, rpName);
 
-    struct sockaddr_rpmsg sockaddr;
-    memset(&sockaddr, 0, sizeof(sockaddr));
-    sockaddr.rp_family = AF_RPMSG;
-    strlcpy(sockaddr.rp_cpu, rpCpuUtf8.c_str(), RPMSG_SOCKET_CPU_SIZE);
-    strlcpy(sockaddr.rp_name, rpNameUtf8.c_str(), RPMSG_SOCKET_NAME_SIZE);
+    struct sockaddr_storage sockaddr;
+    socklen_t addrlen = rpmsg_socket_make_address(env, transport,
+        rpCpuUtf8.c_str(), rpNameUtf8.c_str(), &sockaddr);
+    if (addrlen == 0) {
+        return JNI_FALSE;
+    }
 
-    ret = connect(fd, (struct sockaddr*)&sockaddr, sizeof(sockaddr));
+    ret = connect(fd, (struct sockaddr*)&sockaddr, addrlen);
     if (ret < 0) {
+        if (errno == EINPROGRESS) {
+            return JNI_FALSE;
+        }
         jniThrowIOException(env, errno);
+        return JNI_FALSE;
     }
+
+    return JNI_TRUE;
 }
 
-/* private native void native_bind(FileDescriptor fd, String rpCpu, String rpName)
- * throws IOException;
+/* private native void native_bind(int transport, FileDescriptor fd, String rpCpu,
+ * String rpName) throws IOException;
  */
 static void
-rpmsg_socket_bind(JNIEnv* env, jobject object, jobject fileDescriptor,
+rpmsg_socket_bind(JNIEnv* env, jobject object, jint transport, jobject fileDescriptor,
     jstring rpCpu, jstring rpName)
 {
     int ret;
@@ -118,13 +215,14 @@ rpmsg_socket_bind(JNIEnv* env, jobject object, jobject fileDescriptor,
     ScopedUtfChars rpCpuUtf8(env, rpCpu);
     ScopedUtfChars rpNameUtf8(env, rpName);
 
-    struct sockaddr_rpmsg sockaddr;
-    memset(&sockaddr, 0, sizeof(sockaddr));
-    sockaddr.rp_family = AF_RPMSG;
-    strlcpy(sockaddr.rp_cpu, rpCpuUtf8.c_str(), RPMSG_SOCKET_CPU_SIZE);
-    strlcpy(sockaddr.rp_name, rpNameUtf8.c_str(), RPMSG_SOCKET_NAME_SIZE);
+    struct sockaddr_storage sockaddr;
+    socklen_t addrlen = rpmsg_socket_make_address(env, transport,
+        rpCpuUtf8.c_str(), rpNameUtf8.c_str(), &sockaddr);
+    if (addrlen == 0) {
+        return;
+    }
 
-    ret = bind(fd, (struct sockaddr*)&sockaddr, sizeof(sockaddr));
+    ret = bind(fd, (struct sockaddr*)&sockaddr, addrlen);
 
     if (ret < 0) {
         jniThrowIOException(env, errno);
@@ -170,11 +268,80 @@ static jint rpmsg_socket_read(JNIEnv* env, jobject object,
 
     ret = read(fd, byteBuffer + off, len);
     if (ret < 0) {
-        jniThrowIOException(env, errno);
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            ret = IO_UNAVAILABLE;
+        } else {
+            jniThrowIOException(env, errno);
+        }
     }
 
     env->ReleaseByteArrayElements(buffer, byteBuffer, 0);
 
+    if (ret == IO_UNAVAILABLE) {
+        return ret;
+    }
+
+    if (ret == 0) {
+        // end of file
+        return -1;
+    }
+
+    return ret;
+}
+
+/* private native int native_read_direct(ByteBuffer b, int off, int len,
+ * FileDescriptor fd) throws IOException;
+ */
+static jint
+rpmsg_socket_read_direct(JNIEnv* env, jobject object,
+    jobject buffer, jint off, jint len, jobject fileDescriptor)
+{
+    int fd;
+    jbyte* byteBuffer;
+    int ret;
+
+    if (fileDescriptor == NULL || buffer == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    byteBuffer = (jbyte*)env->GetDirectBufferAddress(buffer);
+    if (NULL == byteBuffer) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "not a direct buffer");
+        return -1;
+    }
+
+    if (off < 0 || len < 0 || off + len > env->GetDirectBufferCapacity(buffer)) {
+        jniThrowException(env, "java/lang/IndexOutOfBoundsException", NULL);
+        return -1;
+    }
+
+    if (len == 0) {
+        return 0;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    // The kernel copies straight into the buffer's backing store, there is
+    // no pinning or staging copy involved as with a byte[].
+    ret = read(fd, byteBuffer + off, len);
+    if (ret < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+
+    if (ret == 0) {
+        // end of file
+        return -1;
+    }
+
     return ret;
 }
 
@@ -203,7 +370,11 @@ rpmsg_socket_read_one_byte(JNIEnv* env, jobject object,
 
     ret = read(fd, &buf, 1);
     if (ret < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
         jniThrowIOException(env, errno);
+        return -1;
     }
 
     if (ret == 0) {
@@ -253,39 +424,209 @@ rpmsg_socket_write(JNIEnv* env, jobject object,
 
     ret = write(fd, byteBuffer + off, len);
     if (ret < 0) {
-        jniThrowIOException(env, errno);
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            ret = IO_UNAVAILABLE;
+        } else {
+            jniThrowIOException(env, errno);
+        }
     }
 
-    env->ReleaseByteArrayElements(buffer, byteBuffer, 0);
+    // Nothing was modified, don't copy the elements back.
+    env->ReleaseByteArrayElements(buffer, byteBuffer, JNI_ABORT);
 
     return ret;
 }
 
-/* private native int native_write_one_byte(int b, FileDescriptor fd)
- * throws IOException;
+/* private native int native_write_direct(ByteBuffer b, int off, int len,
+ * FileDescriptor fd) throws IOException;
  */
 static jint
-rpmsg_socket_write_one_byte(JNIEnv* env, jobject object,
-    jint b, jobject fileDescriptor)
+rpmsg_socket_write_direct(JNIEnv* env, jobject object,
+    jobject buffer, jint off, jint len, jobject fileDescriptor)
 {
     int fd;
+    jbyte* byteBuffer;
     int ret;
 
-    if (fileDescriptor == NULL) {
+    if (fileDescriptor == NULL || buffer == NULL) {
         jniThrowNullPointerException(env, NULL);
         return -1;
     }
 
+    byteBuffer = (jbyte*)env->GetDirectBufferAddress(buffer);
+    if (NULL == byteBuffer) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "not a direct buffer");
+        return -1;
+    }
+
+    if (off < 0 || len < 0 || off + len > env->GetDirectBufferCapacity(buffer)) {
+        jniThrowException(env, "java/lang/IndexOutOfBoundsException", NULL);
+        return -1;
+    }
+
+    if (len == 0) {
+        return 0;
+    }
+
     fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
 
     if (env->ExceptionCheck()) {
-        return 0;
+        return -1;
     }
 
-    ret = write(fd, &b, 1);
+    ret = write(fd, byteBuffer + off, len);
+    if (ret < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+
+    return ret;
+}
+
+/*
+ * Collects the iovecs of a scatter/gather call. Each element of buffers is
+ * either a direct ByteBuffer, used in place, or a byte[] whose elements are
+ * released when the IoVec goes out of scope. Only the byte[] local
+ * references are kept that long, the ByteBuffer ones are dropped at once.
+ */
+class IoVec {
+public:
+    IoVec(JNIEnv* env, bool isWrite)
+        : mEnv(env)
+        , mIsWrite(isWrite)
+        , mCount(0)
+    {
+    }
+
+    ~IoVec()
+    {
+        for (int i = 0; i < mCount; i++) {
+            if (mArrays[i] != NULL) {
+                mEnv->ReleaseByteArrayElements(mArrays[i], mElements[i],
+                    mIsWrite ? JNI_ABORT : 0);
+                mEnv->DeleteLocalRef(mArrays[i]);
+            }
+        }
+    }
+
+    bool init(jobjectArray buffers, jintArray offsets, jintArray counts)
+    {
+        int size = mEnv->GetArrayLength(buffers);
+        if (size > IOV_MAX || size > mEnv->GetArrayLength(offsets)
+            || size > mEnv->GetArrayLength(counts)) {
+            jniThrowException(mEnv, "java/lang/IllegalArgumentException", NULL);
+            return false;
+        }
+
+        // Up to IOV_MAX byte[] references stay live until the destructor.
+        if (mEnv->EnsureLocalCapacity(size) < 0) {
+            return false;
+        }
+
+        mIov.reset(new iovec[size]);
+        mArrays.reset(new jbyteArray[size]);
+        mElements.reset(new jbyte*[size]);
+
+        std::unique_ptr<jint[]> offs(new jint[size]);
+        std::unique_ptr<jint[]> lens(new jint[size]);
+        mEnv->GetIntArrayRegion(offsets, 0, size, offs.get());
+        mEnv->GetIntArrayRegion(counts, 0, size, lens.get());
+
+        for (int i = 0; i < size; i++) {
+            jobject buffer = mEnv->GetObjectArrayElement(buffers, i);
+            if (buffer == NULL) {
+                jniThrowNullPointerException(mEnv, NULL);
+                return false;
+            }
 
+            jbyte* base;
+            jlong capacity;
+            jbyteArray array = NULL;
+            base = (jbyte*)mEnv->GetDirectBufferAddress(buffer);
+            if (base != NULL) {
+                capacity = mEnv->GetDirectBufferCapacity(buffer);
+                mEnv->DeleteLocalRef(buffer);
+            } else {
+                array = (jbyteArray)buffer;
+                capacity = mEnv->GetArrayLength(array);
+                base = mEnv->GetByteArrayElements(array, NULL);
+                if (base == NULL) {
+                    // an exception will have been thrown
+                    mEnv->DeleteLocalRef(array);
+                    return false;
+                }
+            }
+
+            mArrays[mCount] = array;
+            mElements[mCount] = base;
+            mCount++;
+
+            if (offs[i] < 0 || lens[i] < 0 || offs[i] + (jlong)lens[i] > capacity) {
+                jniThrowException(mEnv, "java/lang/IndexOutOfBoundsException", NULL);
+                return false;
+            }
+
+            mIov[i].iov_base = base + offs[i];
+            mIov[i].iov_len = lens[i];
+        }
+
+        return true;
+    }
+
+    iovec* get() { return mIov.get(); }
+    int size() { return mCount; }
+
+private:
+    JNIEnv* mEnv;
+    bool mIsWrite;
+    int mCount;
+    std::unique_ptr<iovec[]> mIov;
+    std::unique_ptr<jbyteArray[]> mArrays;
+    std::unique_ptr<jbyte*[]> mElements;
+
+    DISALLOW_COPY_AND_ASSIGN(IoVec);
+};
+
+/* private native long native_readv(Object[] buffers, int[] offsets,
+ * int[] counts, FileDescriptor fd) throws IOException;
+ */
+static jlong
+rpmsg_socket_readv(JNIEnv* env, jobject object, jobjectArray buffers,
+    jintArray offsets, jintArray counts, jobject fileDescriptor)
+{
+    int fd;
+    ssize_t ret;
+
+    if (fileDescriptor == NULL || buffers == NULL || offsets == NULL || counts == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    IoVec iov(env, false);
+    if (!iov.init(buffers, offsets, counts)) {
+        return -1;
+    }
+
+    if (iov.size() == 0) {
+        return 0;
+    }
+
+    ret = readv(fd, iov.get(), iov.size());
     if (ret < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
         jniThrowIOException(env, errno);
+        return -1;
     }
 
     if (ret == 0) {
@@ -296,28 +637,930 @@ rpmsg_socket_write_one_byte(JNIEnv* env, jobject object,
     return ret;
 }
 
+/* private native long native_writev(Object[] buffers, int[] offsets,
+ * int[] counts, FileDescriptor fd) throws IOException;
+ */
+static jlong
+rpmsg_socket_writev(JNIEnv* env, jobject object, jobjectArray buffers,
+    jintArray offsets, jintArray counts, jobject fileDescriptor)
+{
+    int fd;
+    ssize_t ret;
+
+    if (fileDescriptor == NULL || buffers == NULL || offsets == NULL || counts == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    IoVec iov(env, true);
+    if (!iov.init(buffers, offsets, counts)) {
+        return -1;
+    }
+
+    if (iov.size() == 0) {
+        return 0;
+    }
+
+    // One syscall for all buffers, a datagram socket sends them as a
+    // single message.
+    ret = writev(fd, iov.get(), iov.size());
+    if (ret < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+
+    return ret;
+}
+
 /*
- * JNI registration.
+ * Resolves a direct ByteBuffer or a byte[] to the address of its first
+ * byte. Array elements are released when the ScopedBytes goes out of scope.
  */
-static const JNINativeMethod gMethods[] = {
-    /* name, signature, funcPtr */
-    { "native_create", "(II)Ljava/io/FileDescriptor;", (void*)rpmsg_socket_create },
-    { "native_connect", "(Ljava/io/FileDescriptor;Ljava/lang/String;Ljava/lang/String;)V",
-        (void*)rpmsg_socket_connect },
-    { "native_bind", "(Ljava/io/FileDescriptor;Ljava/lang/String;Ljava/lang/String;)V",
-        (void*)rpmsg_socket_bind },
-    { "native_read", "([BIILjava/io/FileDescriptor;)I", (void*)rpmsg_socket_read },
-    { "native_read_one_byte", "(Ljava/io/FileDescriptor;)I",
-        (void*)rpmsg_socket_read_one_byte },
-    { "native_write", "([BIILjava/io/FileDescriptor;)I", (void*)rpmsg_socket_write },
-    { "native_write_one_byte", "(ILjava/io/FileDescriptor;)I",
-        (void*)rpmsg_socket_write_one_byte },
-};
+class ScopedBytes {
+public:
+    ScopedBytes(JNIEnv* env, jobject buffer, bool isWrite)
+        : mEnv(env)
+        , mIsWrite(isWrite)
+        , mArray(NULL)
+        , mCapacity(0)
+    {
+        mBase = (jbyte*)env->GetDirectBufferAddress(buffer);
+        if (mBase != NULL) {
+            mCapacity = env->GetDirectBufferCapacity(buffer);
+        } else {
+            mArray = (jbyteArray)buffer;
+            mCapacity = env->GetArrayLength(mArray);
+            mBase = env->GetByteArrayElements(mArray, NULL);
+        }
+    }
 
+    ~ScopedBytes()
+    {
+        if (mArray != NULL && mBase != NULL) {
+            mEnv->ReleaseByteArrayElements(mArray, mBase, mIsWrite ? JNI_ABORT : 0);
+        }
+    }
+
+    jbyte* get() { return mBase; }
+    jlong capacity() { return mCapacity; }
+
+private:
+    JNIEnv* mEnv;
+    bool mIsWrite;
+    jbyteArray mArray;
+    jbyte* mBase;
+    jlong mCapacity;
+
+    DISALLOW_COPY_AND_ASSIGN(ScopedBytes);
 };
 
-int register_android_net_RpmsgSocket(JNIEnv* env)
+/* private native int native_recv(Object b, int off, int len,
+ * FileDescriptor fd) throws IOException;
+ *
+ * Receives one datagram and returns its length, which exceeds len when the
+ * datagram did not fit and its tail was discarded. Returns -1 at end of
+ * stream.
+ */
+static jint
+rpmsg_socket_recv(JNIEnv* env, jobject object,
+    jobject buffer, jint off, jint len, jobject fileDescriptor)
+{
+    int fd;
+    ssize_t ret;
+
+    if (fileDescriptor == NULL || buffer == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    ScopedBytes bytes(env, buffer, false);
+    if (bytes.get() == NULL) {
+        // an exception will have been thrown
+        return -1;
+    }
+
+    if (off < 0 || len < 0 || off + (jlong)len > bytes.capacity()) {
+        jniThrowException(env, "java/lang/IndexOutOfBoundsException", NULL);
+        return -1;
+    }
+
+    struct iovec iov;
+    iov.iov_base = bytes.get() + off;
+    iov.iov_len = len;
+
+    struct msghdr msg;
+    memset(&msg, 0, sizeof(msg));
+    msg.msg_iov = &iov;
+    msg.msg_iovlen = 1;
+
+    // With MSG_TRUNC the kernel reports the real length of a datagram
+    // that was cut short, rather than the number of bytes copied.
+    ret = recvmsg(fd, &msg, MSG_TRUNC);
+    if (ret < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+
+    if ((msg.msg_flags & MSG_TRUNC) && ret <= len) {
+        // Truncated, but the transport did not report by how much.
+        ret = (jlong)len + 1 > INT_MAX ? INT_MAX : len + 1;
+    } else if (ret == 0) {
+        // Empty datagrams are never sent, nothing received is end of file.
+        return -1;
+    }
+
+    return ret > INT_MAX ? INT_MAX : ret;
+}
+
+/* private native int native_send(Object b, int off, int len,
+ * FileDescriptor fd) throws IOException;
+ */
+static jint
+rpmsg_socket_send(JNIEnv* env, jobject object,
+    jobject buffer, jint off, jint len, jobject fileDescriptor)
 {
+    int fd;
+    ssize_t ret;
+
+    if (fileDescriptor == NULL || buffer == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    ScopedBytes bytes(env, buffer, true);
+    if (bytes.get() == NULL) {
+        // an exception will have been thrown
+        return -1;
+    }
+
+    if (off < 0 || len < 0 || off + (jlong)len > bytes.capacity()) {
+        jniThrowException(env, "java/lang/IndexOutOfBoundsException", NULL);
+        return -1;
+    }
+
+    ret = send(fd, bytes.get() + off, len, 0);
+    if (ret < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+
+    if (ret != len) {
+        jniThrowException(env, "java/io/IOException", "datagram sent partially");
+        return -1;
+    }
+
+    return ret;
+}
+
+/* private native int native_write_one_byte(int b, FileDescriptor fd)
+ * throws IOException;
+ */
+static jint
+rpmsg_socket_write_one_byte(JNIEnv* env, jobject object,
+    jint b, jobject fileDescriptor)
+{
+    int fd;
+    int ret;
+
+    if (fileDescriptor == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return 0;
+    }
+
+    ret = write(fd, &b, 1);
+
+    if (ret < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+
+    if (ret == 0) {
+        // end of file
+        return -1;
+    }
+
+    return ret;
+}
+
+/* Whether a sendfile or splice failure means the kernel cannot move data
+ * between this pair of descriptors, rather than a real I/O error.
+ */
+static bool
+rpmsg_socket_transfer_unsupported(int err)
+{
+    return err == EINVAL || err == ENOSYS || err == EOPNOTSUPP;
+}
+
+/*
+ * Returns the address and capacity of the direct bounce buffer passed down
+ * for file transfers, or throws and returns NULL.
+ */
+static char*
+rpmsg_socket_bounce_buffer(JNIEnv* env, jobject bounce, size_t* cap)
+{
+    char* buf = (char*)env->GetDirectBufferAddress(bounce);
+    jlong capacity = env->GetDirectBufferCapacity(bounce);
+
+    if (buf == NULL || capacity <= 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "not a direct buffer");
+        return NULL;
+    }
+    *cap = (size_t)capacity;
+    return buf;
+}
+
+/* private native long native_sendfile(FileDescriptor src, long position,
+ * long count, ByteBuffer bounce, FileDescriptor fd) throws IOException;
+ *
+ * Sends up to count bytes of src starting at position with one sendfile,
+ * or through the direct bounce buffer when the socket does not support it,
+ * so the data never reaches the Java heap. Returns 0 at end of file.
+ */
+static jlong
+rpmsg_socket_sendfile(JNIEnv* env, jobject object,
+    jobject srcDescriptor, jlong position, jlong count, jobject bounce,
+    jobject fileDescriptor)
+{
+    int fd;
+    int src;
+    off64_t offset = position;
+    size_t len;
+    size_t cap;
+    ssize_t ret;
+
+    if (fileDescriptor == NULL || srcDescriptor == NULL || bounce == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    if (position < 0 || count < 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", NULL);
+        return -1;
+    }
+
+    if (count == 0) {
+        return 0;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+    src = jniGetFDFromFileDescriptor(env, srcDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    len = count < INT_MAX ? (size_t)count : INT_MAX;
+    ret = sendfile64(fd, src, &offset, len);
+    if (ret >= 0) {
+        return ret;
+    }
+    if (errno == EAGAIN || errno == EWOULDBLOCK) {
+        return IO_UNAVAILABLE;
+    }
+    if (!rpmsg_socket_transfer_unsupported(errno)) {
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+
+    // pread leaves the file offset alone, so bytes read here but not
+    // written are simply read again by the next call.
+    char* buf = rpmsg_socket_bounce_buffer(env, bounce, &cap);
+    if (buf == NULL) {
+        return -1;
+    }
+    len = len < cap ? len : cap;
+    ssize_t avail = TEMP_FAILURE_RETRY(pread64(src, buf, len, position));
+    if (avail <= 0) {
+        if (avail < 0) {
+            jniThrowIOException(env, errno);
+            return -1;
+        }
+        return 0;
+    }
+
+    ssize_t sent = 0;
+    while (sent < avail) {
+        ret = write(fd, buf + sent, avail - sent);
+        if (ret < 0) {
+            if (errno == EAGAIN || errno == EWOULDBLOCK) {
+                break;
+            }
+            jniThrowIOException(env, errno);
+            return -1;
+        }
+        sent += ret;
+    }
+
+    return sent > 0 ? sent : IO_UNAVAILABLE;
+}
+
+/*
+ * Writes the left bytes waiting in a pipe to dst at *offset with read and
+ * pwrite64 through buf, for when dst does not take splice. Returns 0, or
+ * -1 with errno set.
+ */
+static int
+rpmsg_socket_drain_pipe(int pipefd, int dst, off64_t* offset, size_t left,
+    char* buf, size_t cap)
+{
+    while (left > 0) {
+        ssize_t ret = TEMP_FAILURE_RETRY(read(pipefd, buf, left < cap ? left : cap));
+        if (ret <= 0) {
+            if (ret == 0) {
+                errno = EIO;
+            }
+            return -1;
+        }
+
+        ssize_t written = 0;
+        while (written < ret) {
+            ssize_t n = TEMP_FAILURE_RETRY(pwrite64(dst, buf + written,
+                ret - written, *offset));
+            if (n < 0) {
+                return -1;
+            }
+            written += n;
+            *offset += n;
+        }
+        left -= ret;
+    }
+    return 0;
+}
+
+/* private native long native_splice(FileDescriptor dst, long position,
+ * long count, FileDescriptor pipeIn, FileDescriptor pipeOut,
+ * ByteBuffer bounce, FileDescriptor fd) throws IOException;
+ *
+ * Receives what one socket read yields, up to count bytes, and writes it
+ * to dst at position. The data moves with splice through the pipe the
+ * caller keeps for the whole transfer, or through the direct bounce buffer
+ * it keeps alongside when there is no pipe or the socket does not support
+ * it. The pipe is empty again on return. Returns -1 at end of stream.
+ */
+static jlong
+rpmsg_socket_splice(JNIEnv* env, jobject object,
+    jobject dstDescriptor, jlong position, jlong count,
+    jobject pipeInDescriptor, jobject pipeOutDescriptor, jobject bounce,
+    jobject fileDescriptor)
+{
+    int fd;
+    int dst;
+    off64_t offset = position;
+    size_t len;
+    size_t cap;
+    ssize_t ret;
+
+    if (fileDescriptor == NULL || dstDescriptor == NULL || bounce == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    if (position < 0 || count < 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", NULL);
+        return -1;
+    }
+
+    if (count == 0) {
+        return 0;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+    dst = jniGetFDFromFileDescriptor(env, dstDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    char* buf = rpmsg_socket_bounce_buffer(env, bounce, &cap);
+    if (buf == NULL) {
+        return -1;
+    }
+
+    len = count < TRANSFER_CHUNK ? (size_t)count : TRANSFER_CHUNK;
+
+    if (pipeInDescriptor != NULL && pipeOutDescriptor != NULL) {
+        int pipeIn = jniGetFDFromFileDescriptor(env, pipeInDescriptor);
+        int pipeOut = jniGetFDFromFileDescriptor(env, pipeOutDescriptor);
+
+        ret = splice(fd, NULL, pipeOut, NULL, len, SPLICE_F_MOVE);
+        int err = errno;
+        if (ret > 0) {
+            ssize_t left = ret;
+            while (left > 0) {
+                ssize_t moved = splice(pipeIn, NULL, dst, &offset, left, SPLICE_F_MOVE);
+                if (moved <= 0) {
+                    // The bytes are gone from the socket, so write out
+                    // what is still in the pipe by hand; pwrite64 reports
+                    // the real error if dst cannot take them either.
+                    if (rpmsg_socket_drain_pipe(pipeIn, dst, &offset, left, buf, cap) < 0) {
+                        jniThrowIOException(env, errno);
+                        return -1;
+                    }
+                    break;
+                }
+                left -= moved;
+            }
+            return ret;
+        }
+
+        if (ret == 0) {
+            return -1;
+        }
+        if (err == EAGAIN || err == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
+        if (!rpmsg_socket_transfer_unsupported(err)) {
+            jniThrowIOException(env, err);
+            return -1;
+        }
+    }
+
+    len = len < cap ? len : cap;
+    ret = read(fd, buf, len);
+    if (ret <= 0) {
+        if (ret == 0) {
+            return -1;
+        }
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+
+    ssize_t written = 0;
+    while (written < ret) {
+        ssize_t n = TEMP_FAILURE_RETRY(pwrite64(dst, buf + written, ret - written,
+            position + written));
+        if (n < 0) {
+            jniThrowIOException(env, errno);
+            return -1;
+        }
+        written += n;
+    }
+
+    return ret;
+}
+
+/* private native int native_sendmsg(byte[] b, int off, int len,
+ * FileDescriptor[] fds, FileDescriptor fd) throws IOException;
+ *
+ * Writes like native_write, passing fds along with the bytes as
+ * SCM_RIGHTS ancillary data.
+ */
+static jint
+rpmsg_socket_sendmsg(JNIEnv* env, jobject object,
+    jbyteArray buffer, jint off, jint len, jobjectArray fds, jobject fileDescriptor)
+{
+    int fd;
+    ssize_t ret;
+
+    if (fileDescriptor == NULL || buffer == NULL || fds == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    if (off < 0 || len < 0 || off + len > env->GetArrayLength(buffer)) {
+        jniThrowException(env, "java/lang/ArrayIndexOutOfBoundsException", NULL);
+        return -1;
+    }
+
+    int count = env->GetArrayLength(fds);
+    if (count > MAX_PASSED_FDS) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "too many descriptors");
+        return -1;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    union PassedFdsControl control;
+    struct msghdr msg;
+    memset(&msg, 0, sizeof(msg));
+
+    if (count > 0) {
+        memset(&control, 0, sizeof(control));
+        msg.msg_control = control.buf;
+        msg.msg_controllen = CMSG_SPACE(sizeof(int) * count);
+
+        struct cmsghdr* cmsg = CMSG_FIRSTHDR(&msg);
+        cmsg->cmsg_level = SOL_SOCKET;
+        cmsg->cmsg_type = SCM_RIGHTS;
+        cmsg->cmsg_len = CMSG_LEN(sizeof(int) * count);
+
+        int* passed = (int*)CMSG_DATA(cmsg);
+        for (int i = 0; i < count; i++) {
+            jobject element = env->GetObjectArrayElement(fds, i);
+            if (element == NULL) {
+                jniThrowNullPointerException(env, NULL);
+                return -1;
+            }
+            passed[i] = jniGetFDFromFileDescriptor(env, element);
+            env->DeleteLocalRef(element);
+            if (env->ExceptionCheck()) {
+                return -1;
+            }
+        }
+    }
+
+    jbyte* byteBuffer = env->GetByteArrayElements(buffer, NULL);
+    if (NULL == byteBuffer) {
+        // an exception will have been thrown
+        return -1;
+    }
+
+    struct iovec iov;
+    iov.iov_base = byteBuffer + off;
+    iov.iov_len = len;
+    msg.msg_iov = &iov;
+    msg.msg_iovlen = 1;
+
+    ret = sendmsg(fd, &msg, MSG_NOSIGNAL);
+    if (ret < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            ret = IO_UNAVAILABLE;
+        } else {
+            jniThrowIOException(env, errno);
+        }
+    }
+
+    // Nothing was modified, don't copy the elements back.
+    env->ReleaseByteArrayElements(buffer, byteBuffer, JNI_ABORT);
+
+    return ret;
+}
+
+/*
+ * Appends the descriptors received with msg to inboundFileDescriptors.
+ * Returns false with an exception pending, every descriptor closed, if
+ * they cannot all be handed over.
+ */
+static bool
+rpmsg_socket_take_fds(JNIEnv* env, jobject object, struct msghdr* msg)
+{
+    // Wrap every received descriptor first, so that none leaks if the
+    // message turns out to be truncated or an allocation fails.
+    std::vector<int> received;
+    for (struct cmsghdr* cmsg = CMSG_FIRSTHDR(msg); cmsg != NULL;
+         cmsg = CMSG_NXTHDR(msg, cmsg)) {
+        if (cmsg->cmsg_level != SOL_SOCKET || cmsg->cmsg_type != SCM_RIGHTS) {
+            continue;
+        }
+        int* passed = (int*)CMSG_DATA(cmsg);
+        int count = (cmsg->cmsg_len - CMSG_LEN(0)) / sizeof(int);
+        received.insert(received.end(), passed, passed + count);
+    }
+
+    if (msg->msg_flags & MSG_CTRUNC) {
+        for (int passed : received) {
+            close(passed);
+        }
+        jniThrowException(env, "java/io/IOException", "too many descriptors received");
+        return false;
+    }
+
+    if (!received.empty()) {
+        // Descriptors the caller has not fetched yet stay in front, so
+        // none is dropped while it still owns nothing.
+        jobjectArray pending = (jobjectArray)env->GetObjectField(object,
+            gInboundFileDescriptors);
+        jsize kept = pending == NULL ? 0 : env->GetArrayLength(pending);
+        jobjectArray fds = env->NewObjectArray(kept + received.size(),
+            gFileDescriptorClass, NULL);
+        for (jsize i = 0; fds != NULL && i < kept; i++) {
+            jobject element = env->GetObjectArrayElement(pending, i);
+            env->SetObjectArrayElement(fds, i, element);
+            env->DeleteLocalRef(element);
+        }
+        for (size_t i = 0; i < received.size(); i++) {
+            jobject element = fds == NULL ? NULL
+                : jniCreateFileDescriptor(env, received[i]);
+            if (element == NULL) {
+                // OOME pending. fds is dropped, so the descriptors already
+                // wrapped are unreachable too and are closed with the rest.
+                for (int passed : received) {
+                    close(passed);
+                }
+                return false;
+            }
+            env->SetObjectArrayElement(fds, kept + i, element);
+            env->DeleteLocalRef(element);
+        }
+        env->SetObjectField(object, gInboundFileDescriptors, fds);
+    }
+
+    return true;
+}
+
+/*
+ * recvmsg into iov, with room in control for the descriptors passed along.
+ * Returns what recvmsg does, errno set on failure.
+ */
+static ssize_t
+rpmsg_socket_recvmsg_into(int fd, struct iovec* iov, struct msghdr* msg,
+    union PassedFdsControl* control)
+{
+    memset(msg, 0, sizeof(*msg));
+    msg->msg_iov = iov;
+    msg->msg_iovlen = 1;
+    msg->msg_control = control->buf;
+    msg->msg_controllen = sizeof(control->buf);
+
+    return recvmsg(fd, msg, MSG_CMSG_CLOEXEC);
+}
+
+/*
+ * Turns the outcome of rpmsg_socket_recvmsg_into into the count returned to
+ * Java, taking over any descriptors received.
+ */
+static jint
+rpmsg_socket_recvmsg_result(JNIEnv* env, jobject object, ssize_t ret, int err,
+    struct msghdr* msg)
+{
+    if (ret < 0) {
+        if (err == EAGAIN || err == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
+        jniThrowIOException(env, err);
+        return -1;
+    }
+
+    if (!rpmsg_socket_take_fds(env, object, msg)) {
+        return -1;
+    }
+
+    return ret == 0 ? -1 : ret;
+}
+
+/* private native int native_recvmsg(byte[] b, int off, int len,
+ * FileDescriptor fd) throws IOException;
+ *
+ * Reads like native_read, appending any descriptors passed along with the
+ * bytes to inboundFileDescriptors. Returns -1 at end of stream.
+ */
+static jint
+rpmsg_socket_recvmsg(JNIEnv* env, jobject object,
+    jbyteArray buffer, jint off, jint len, jobject fileDescriptor)
+{
+    int fd;
+    ssize_t ret;
+
+    if (fileDescriptor == NULL || buffer == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    if (off < 0 || len < 0 || off + len > env->GetArrayLength(buffer)) {
+        jniThrowException(env, "java/lang/ArrayIndexOutOfBoundsException", NULL);
+        return -1;
+    }
+
+    if (len == 0) {
+        return 0;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    jbyte* byteBuffer = env->GetByteArrayElements(buffer, NULL);
+    if (NULL == byteBuffer) {
+        // an exception will have been thrown
+        return -1;
+    }
+
+    union PassedFdsControl control;
+    struct iovec iov;
+    iov.iov_base = byteBuffer + off;
+    iov.iov_len = len;
+    struct msghdr msg;
+    ret = rpmsg_socket_recvmsg_into(fd, &iov, &msg, &control);
+    int err = errno;
+    env->ReleaseByteArrayElements(buffer, byteBuffer, ret > 0 ? 0 : JNI_ABORT);
+
+    return rpmsg_socket_recvmsg_result(env, object, ret, err, &msg);
+}
+
+/* private native int native_recvmsg_direct(ByteBuffer b, int off, int len,
+ * FileDescriptor fd) throws IOException;
+ *
+ * native_recvmsg into a direct buffer, filled in place.
+ */
+static jint
+rpmsg_socket_recvmsg_direct(JNIEnv* env, jobject object,
+    jobject buffer, jint off, jint len, jobject fileDescriptor)
+{
+    int fd;
+    ssize_t ret;
+
+    if (fileDescriptor == NULL || buffer == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    jbyte* byteBuffer = (jbyte*)env->GetDirectBufferAddress(buffer);
+    if (NULL == byteBuffer) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "not a direct buffer");
+        return -1;
+    }
+
+    if (off < 0 || len < 0 || off + len > env->GetDirectBufferCapacity(buffer)) {
+        jniThrowException(env, "java/lang/IndexOutOfBoundsException", NULL);
+        return -1;
+    }
+
+    if (len == 0) {
+        return 0;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    union PassedFdsControl control;
+    struct iovec iov;
+    iov.iov_base = byteBuffer + off;
+    iov.iov_len = len;
+    struct msghdr msg;
+    ret = rpmsg_socket_recvmsg_into(fd, &iov, &msg, &control);
+
+    return rpmsg_socket_recvmsg_result(env, object, ret, errno, &msg);
+}
+
+/* private native long native_recvmsgv(Object[] buffers, int[] offsets,
+ * int[] counts, FileDescriptor fd) throws IOException;
+ *
+ * Reads like native_readv, appending any descriptors passed along with the
+ * bytes to inboundFileDescriptors. Returns -1 at end of stream.
+ */
+static jlong
+rpmsg_socket_recvmsgv(JNIEnv* env, jobject object, jobjectArray buffers,
+    jintArray offsets, jintArray counts, jobject fileDescriptor)
+{
+    int fd;
+    ssize_t ret;
+
+    if (fileDescriptor == NULL || buffers == NULL || offsets == NULL || counts == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return -1;
+    }
+
+    fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+
+    IoVec iov(env, false);
+    if (!iov.init(buffers, offsets, counts)) {
+        return -1;
+    }
+
+    size_t total = 0;
+    for (int i = 0; i < iov.size(); i++) {
+        total += iov.get()[i].iov_len;
+    }
+    if (total == 0) {
+        // recvmsg would return 0, which means end of stream.
+        return 0;
+    }
+
+    union PassedFdsControl control;
+    struct msghdr msg;
+    memset(&msg, 0, sizeof(msg));
+    msg.msg_iov = iov.get();
+    msg.msg_iovlen = iov.size();
+    msg.msg_control = control.buf;
+    msg.msg_controllen = sizeof(control.buf);
+
+    ret = recvmsg(fd, &msg, MSG_CMSG_CLOEXEC);
+    if (ret < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            return IO_UNAVAILABLE;
+        }
+        jniThrowIOException(env, errno);
+        return -1;
+    }
+
+    if (!rpmsg_socket_take_fds(env, object, &msg)) {
+        return -1;
+    }
+
+    return ret == 0 ? -1 : ret;
+}
+
+/*
+ * JNI registration.
+ */
+static const JNINativeMethod gMethods[] = {
+    /* name, signature, funcPtr */
+    { "native_create", "(III)Ljava/io/FileDescriptor;", (void*)rpmsg_socket_create },
+    { "native_connect", "(ILjava/io/FileDescriptor;Ljava/lang/String;Ljava/lang/String;)Z",
+        (void*)rpmsg_socket_connect },
+    { "native_bind", "(ILjava/io/FileDescriptor;Ljava/lang/String;Ljava/lang/String;)V",
+        (void*)rpmsg_socket_bind },
+    { "native_read", "([BIILjava/io/FileDescriptor;)I", (void*)rpmsg_socket_read },
+    { "native_read_one_byte", "(Ljava/io/FileDescriptor;)I",
+        (void*)rpmsg_socket_read_one_byte },
+    { "native_read_direct", "(Ljava/nio/ByteBuffer;IILjava/io/FileDescriptor;)I",
+        (void*)rpmsg_socket_read_direct },
+    { "native_write", "([BIILjava/io/FileDescriptor;)I", (void*)rpmsg_socket_write },
+    { "native_write_direct", "(Ljava/nio/ByteBuffer;IILjava/io/FileDescriptor;)I",
+        (void*)rpmsg_socket_write_direct },
+    { "native_write_one_byte", "(ILjava/io/FileDescriptor;)I",
+        (void*)rpmsg_socket_write_one_byte },
+    { "native_recv", "(Ljava/lang/Object;IILjava/io/FileDescriptor;)I",
+        (void*)rpmsg_socket_recv },
+    { "native_send", "(Ljava/lang/Object;IILjava/io/FileDescriptor;)I",
+        (void*)rpmsg_socket_send },
+    { "native_readv", "([Ljava/lang/Object;[I[ILjava/io/FileDescriptor;)J",
+        (void*)rpmsg_socket_readv },
+    { "native_writev", "([Ljava/lang/Object;[I[ILjava/io/FileDescriptor;)J",
+        (void*)rpmsg_socket_writev },
+    { "native_sendfile",
+        "(Ljava/io/FileDescriptor;JJLjava/nio/ByteBuffer;Ljava/io/FileDescriptor;)J",
+        (void*)rpmsg_socket_sendfile },
+    { "native_splice",
+        "(Ljava/io/FileDescriptor;JJLjava/io/FileDescriptor;Ljava/io/FileDescriptor;"
+        "Ljava/nio/ByteBuffer;Ljava/io/FileDescriptor;)J",
+        (void*)rpmsg_socket_splice },
+    { "native_sendmsg", "([BII[Ljava/io/FileDescriptor;Ljava/io/FileDescriptor;)I",
+        (void*)rpmsg_socket_sendmsg },
+    { "native_recvmsg", "([BIILjava/io/FileDescriptor;)I", (void*)rpmsg_socket_recvmsg },
+    { "native_recvmsg_direct", "(Ljava/nio/ByteBuffer;IILjava/io/FileDescriptor;)I",
+        (void*)rpmsg_socket_recvmsg_direct },
+    { "native_recvmsgv", "([Ljava/lang/Object;[I[ILjava/io/FileDescriptor;)J",
+        (void*)rpmsg_socket_recvmsgv },
+};
+
+};
+
+int register_android_net_RpmsgSocket(JNIEnv* env)
+{
+    jclass clazz = env->FindClass("android/net/RpmsgSocketImpl");
+    if (clazz == NULL) {
+        return -1;
+    }
+
+    android::gInboundFileDescriptors = env->GetFieldID(clazz, "inboundFileDescriptors",
+        "[Ljava/io/FileDescriptor;");
+    if (android::gInboundFileDescriptors == NULL) {
+        return -1;
+    }
+
+    jclass fdClass = env->FindClass("java/io/FileDescriptor");
+    if (fdClass == NULL) {
+        return -1;
+    }
+    android::gFileDescriptorClass = (jclass)env->NewGlobalRef(fdClass);
+    env->DeleteLocalRef(fdClass);
+    if (android::gFileDescriptorClass == NULL) {
+        return -1;
+    }
+
     return jniRegisterNativeMethods(env, "android/net/RpmsgSocketImpl",
         android::gMethods, NELEM(android::gMethods));
 }
@@ -19,18 +19,32 @@ package android.os;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.SystemApi;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.MutableInt;
 
 import libcore.util.HexEncoding;
+import libcore.util.NativeAllocationRegistry;
 
+import java.lang.ref.Reference;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 public class CpcProperties {
@@ -48,6 +62,43 @@ public class CpcProperties {
 
     private static final HashMap<String, ArrayList<Runnable>> sPropChangeCallbacks = new HashMap<>();
 
+    /** how long change callbacks are held back after setAll() to coalesce them */
+    private static final long COALESCE_MILLIS = 100;
+    /** longest a change callback is held back, however many batches follow */
+    private static final long MAX_HOLD_MILLIS = 1000;
+    /** guards sBatchDepth, sBatchKeys, sHoldUntil, sHeldSince and sHeldCallbacks */
+    private static final Object sCoalesceLock = new Object();
+    /** setAll() calls in progress */
+    private static int sBatchDepth;
+    /** keys written by the batches whose callbacks are being held */
+    private static final HashSet<String> sBatchKeys = new HashSet<>();
+    /** uptime until which change callbacks are held */
+    private static long sHoldUntil;
+    /** uptime the oldest of sHeldCallbacks was held at */
+    private static long sHeldSince;
+    private static final LinkedHashSet<Runnable> sHeldCallbacks = new LinkedHashSet<>();
+    /** runs held callbacks once the hold is over */
+    private static ScheduledThreadPoolExecutor sCoalesceTimer;
+
+    /** setAsync() writes not yet taken by the writer, by key, guarded by itself */
+    private static final LinkedHashMap<String, PendingWrite> sPendingWrites =
+            new LinkedHashMap<>();
+    /** true while writePending() is queued or running, guarded by sPendingWrites */
+    private static boolean sWriteScheduled;
+    private static ThreadPoolExecutor sWriter;
+
+    /** cached keys and prefixes by the key they were added with, guarded by itself */
+    private static final HashMap<String, CacheEntry> sCacheEntries = new HashMap<>();
+    /** exact keys of sCacheEntries */
+    private static final ConcurrentHashMap<String, CacheEntry> sCachedKeys =
+            new ConcurrentHashMap<>();
+    /** prefix entries of sCacheEntries, replaced on every change */
+    private static volatile CacheEntry[] sCachedPrefixes = new CacheEntry[0];
+    private static final ConcurrentHashMap<String, CachedValue> sCachedValues =
+            new ConcurrentHashMap<>();
+    /** true while any key is cached, keeps uncached reads off the maps */
+    private static volatile boolean sCacheEnabled;
+
     private static final HashMap<String, MutableInt> sRoReads =
             TRACK_KEY_ACCESS ? new HashMap<>() : null;
 
@@ -83,14 +134,26 @@ public class CpcProperties {
     private static native int native_get_int(String key, int def);
     private static native long native_get_long(String key, long def);
     private static native boolean native_get_boolean(String key, boolean def);
+    private static native String[] native_get_all(String[] keys);
+    private static native String[] native_snapshot(String prefix);
 
     // _NOT_ FastNative: native_set performs IPC and can block
     private static native void native_set(String key, String def);
+    private static native void native_set_all(String[] keys, String[] values);
 
     private static native void native_add_prop_change_callback();
     private static native void native_add_prop_change_monitor(String key);
     private static native void native_remove_prop_change_monitor(String key);
 
+    private static native long native_find(String name);
+    private static native long native_handle_free_function();
+    private static native long native_handle_size();
+    private static native String native_handle_get(long handle);
+    private static native int native_handle_get_int(long handle, int def);
+    private static native long native_handle_get_long(long handle, long def);
+    private static native boolean native_handle_get_boolean(long handle, boolean def);
+    private static native long native_handle_get_serial(long handle);
+
     /**
      * Get the String value for the given {@code key}.
      *
@@ -102,6 +165,12 @@ public class CpcProperties {
     @SystemApi
     public static String get(@NonNull String key) {
         if (TRACK_KEY_ACCESS) onKeyAccess(key);
+        if (sCacheEnabled) {
+            String value = getCached(key);
+            if (value != null) {
+                return value;
+            }
+        }
         return native_get(key);
     }
 
@@ -118,6 +187,12 @@ public class CpcProperties {
     @SystemApi
     public static String get(@NonNull String key, @Nullable String def) {
         if (TRACK_KEY_ACCESS) onKeyAccess(key);
+        if (sCacheEnabled) {
+            String value = getCached(key);
+            if (value != null) {
+                return value.isEmpty() && def != null ? def : value;
+            }
+        }
         return native_get(key, def);
     }
 
@@ -133,6 +208,12 @@ public class CpcProperties {
     @SystemApi
     public static int getInt(@NonNull String key, int def) {
         if (TRACK_KEY_ACCESS) onKeyAccess(key);
+        if (sCacheEnabled) {
+            String value = getCached(key);
+            if (value != null) {
+                return (int) parseLong(value, Integer.MIN_VALUE, Integer.MAX_VALUE, def);
+            }
+        }
         return native_get_int(key, def);
     }
 
@@ -148,6 +229,12 @@ public class CpcProperties {
     @SystemApi
     public static long getLong(@NonNull String key, long def) {
         if (TRACK_KEY_ACCESS) onKeyAccess(key);
+        if (sCacheEnabled) {
+            String value = getCached(key);
+            if (value != null) {
+                return parseLong(value, Long.MIN_VALUE, Long.MAX_VALUE, def);
+            }
+        }
         return native_get_long(key, def);
     }
 
@@ -168,9 +255,58 @@ public class CpcProperties {
     @SystemApi
     public static boolean getBoolean(@NonNull String key, boolean def) {
         if (TRACK_KEY_ACCESS) onKeyAccess(key);
+        if (sCacheEnabled) {
+            String value = getCached(key);
+            if (value != null) {
+                return parseBoolean(value, def);
+            }
+        }
         return native_get_boolean(key, def);
     }
 
+    /**
+     * Get the String values of several keys at once, with a single native call.
+     *
+     * @param keys the keys to lookup
+     * @return a map from each key to its value, an empty string if the key isn't found
+     * @hide
+     */
+    @NonNull
+    @SystemApi
+    public static Map<String, String> getAll(@NonNull String... keys) {
+        if (TRACK_KEY_ACCESS) {
+            for (String key : keys) {
+                onKeyAccess(key);
+            }
+        }
+        String[] values = native_get_all(keys);
+        ArrayMap<String, String> result = new ArrayMap<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            result.put(keys[i], values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Get every property whose key starts with {@code prefix}, listed in a single native
+     * call.
+     *
+     * @param prefix the key prefix, an empty string for all properties
+     * @return a map from key to value of the properties found
+     * @throws RuntimeException if the properties cannot be listed
+     * @hide
+     */
+    @NonNull
+    @SystemApi
+    public static Map<String, String> snapshot(@NonNull String prefix) {
+        String[] entries = native_snapshot(prefix);
+        ArrayMap<String, String> result = new ArrayMap<>(entries.length / 2);
+        for (int i = 0; i < entries.length; i += 2) {
+            result.put(entries[i], entries[i + 1]);
+        }
+        return result;
+    }
+
     /**
      * Set the value for the given {@code key} to {@code val}.
      *
@@ -182,13 +318,409 @@ public class CpcProperties {
      */
     @SystemApi
     public static void set(@NonNull String key, @Nullable String val) {
+        checkValue(key, val);
+        if (TRACK_KEY_ACCESS) onKeyAccess(key);
+        try {
+            native_set(key, val);
+        } finally {
+            if (sCacheEnabled) {
+                invalidateCached(key);
+            }
+        }
+    }
+
+    /**
+     * Set several properties with a single native call. Every key and value is checked
+     * before anything is set. The keys are set one after the other, not atomically:
+     * if one fails, the keys set before it keep their new values.
+     *
+     * Change callbacks are coalesced: while the batch is written and for a short while
+     * after, notifications are held back, and then each callback concerned runs once
+     * rather than once per key.
+     *
+     * @param values the keys to set and their values, a null value clears the key
+     * @throws IllegalArgumentException for non read-only properties if a value exceeds
+     * 91 characters
+     * @throws RuntimeException if a property cannot be set, for example, if it was blocked
+     * by SELinux. libc will log the underlying reason.
+     * @hide
+     */
+    @SystemApi
+    public static void setAll(@NonNull Map<String, String> values) {
+        final int size = values.size();
+        final String[] keys = new String[size];
+        final String[] vals = new String[size];
+        int i = 0;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            keys[i] = Objects.requireNonNull(entry.getKey());
+            vals[i] = entry.getValue();
+            checkValue(keys[i], vals[i]);
+            if (TRACK_KEY_ACCESS) onKeyAccess(keys[i]);
+            i++;
+        }
+        if (size == 0) {
+            return;
+        }
+
+        beginBatch(Arrays.asList(keys));
+        try {
+            native_set_all(keys, vals);
+        } finally {
+            if (sCacheEnabled) {
+                for (String key : keys) {
+                    invalidateCached(key);
+                }
+            }
+            endBatch();
+        }
+    }
+
+    /**
+     * Set the value for the given {@code key} to {@code val} on a background writer,
+     * without blocking the caller on the property service.
+     *
+     * Writes to a key that has not been written yet collapse: the pending value is
+     * replaced and the writer only sets the latest one, completing the futures of the
+     * collapsed calls together. Writes of several keys made while the writer is busy
+     * go out as one batch with coalesced change callbacks, as with {@link #setAll}.
+     *
+     * Until the future completes, reads still return the previous value. A pending
+     * write may land after a later {@link #set} of the same key, so don't mix both
+     * for one key.
+     *
+     * @return a future completed once the value is set, or completed exceptionally
+     * with the RuntimeException thrown if the property cannot be set
+     * @throws IllegalArgumentException for non read-only properties if the {@code val}
+     * exceeds 91 characters
+     * @hide
+     */
+    @NonNull
+    @SystemApi
+    public static CompletableFuture<Void> setAsync(@NonNull String key, @Nullable String val) {
+        Objects.requireNonNull(key);
+        checkValue(key, val);
+        if (TRACK_KEY_ACCESS) onKeyAccess(key);
+
+        synchronized (sPendingWrites) {
+            PendingWrite write = sPendingWrites.get(key);
+            if (write != null) {
+                write.value = val;
+                return write.future;
+            }
+            write = new PendingWrite(key, val);
+            sPendingWrites.put(key, write);
+            if (!sWriteScheduled) {
+                sWriteScheduled = true;
+                getWriter().execute(CpcProperties::writePending);
+            }
+            return write.future;
+        }
+    }
+
+    private static void writePending() {
+        for (;;) {
+            ArrayList<PendingWrite> writes;
+            ArrayList<String> keys;
+            synchronized (sPendingWrites) {
+                if (sPendingWrites.isEmpty()) {
+                    sWriteScheduled = false;
+                    return;
+                }
+                writes = new ArrayList<>(sPendingWrites.values());
+                keys = new ArrayList<>(sPendingWrites.keySet());
+                sPendingWrites.clear();
+            }
+
+            beginBatch(keys);
+            try {
+                for (int i = 0; i < writes.size(); i++) {
+                    PendingWrite write = writes.get(i);
+                    try {
+                        native_set(write.key, write.value);
+                        write.future.complete(null);
+                    } catch (RuntimeException e) {
+                        write.future.completeExceptionally(e);
+                    } finally {
+                        if (sCacheEnabled) {
+                            invalidateCached(write.key);
+                        }
+                    }
+                }
+            } finally {
+                endBatch();
+            }
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getWriter() {
+        if (sWriter == null) {
+            sWriter = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, "CpcPropertiesWriter");
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+        return sWriter;
+    }
+
+    /**
+     * Starts holding the change callbacks of {@code keys} back, see
+     * {@link #holdCallbacks}.
+     */
+    private static void beginBatch(List<String> keys) {
+        synchronized (sCoalesceLock) {
+            if (sBatchDepth == 0 && SystemClock.uptimeMillis() >= sHoldUntil) {
+                // The keys of earlier batches are no longer held.
+                sBatchKeys.clear();
+            }
+            sBatchDepth++;
+            sBatchKeys.addAll(keys);
+        }
+    }
+
+    /**
+     * Keeps holding change callbacks for COALESCE_MILLIS, then runs them once.
+     */
+    private static void endBatch() {
+        synchronized (sCoalesceLock) {
+            sBatchDepth--;
+            sHoldUntil = SystemClock.uptimeMillis() + COALESCE_MILLIS;
+            getCoalesceTimer().schedule(CpcProperties::runHeldCallbacks,
+                    COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void checkValue(String key, String val) {
         if (val != null && !key.startsWith("ro.") && val.getBytes(StandardCharsets.UTF_8).length
                 > PROP_VALUE_MAX) {
             throw new IllegalArgumentException("value of system property '" + key
                     + "' is longer than " + PROP_VALUE_MAX + " bytes: " + val);
         }
-        if (TRACK_KEY_ACCESS) onKeyAccess(key);
-        native_set(key, val);
+    }
+
+    /**
+     * Cache the value of {@code key} in this process. Reads of a cached key
+     * are served from memory until the property changes, which is learnt
+     * from the property change monitor or from {@link #set} in this process;
+     * a change made elsewhere may take until its notification arrives to be
+     * seen. Integer and boolean values of cached keys are parsed in Java with
+     * the rules of the native getters.
+     *
+     * Meant for keys read on hot paths that rarely change.
+     *
+     * @param key the key to cache, or a prefix followed by {@code '*'} to
+     * cache every key starting with it
+     * @hide
+     */
+    @SystemApi
+    public static void addCachedKey(@NonNull String key) {
+        synchronized (sCacheEntries) {
+            if (sCacheEntries.containsKey(key)) {
+                return;
+            }
+            CacheEntry entry = new CacheEntry(key);
+            sCacheEntries.put(key, entry);
+            if (entry.prefix != null) {
+                CacheEntry[] prefixes = Arrays.copyOf(sCachedPrefixes, sCachedPrefixes.length + 1);
+                prefixes[prefixes.length - 1] = entry;
+                sCachedPrefixes = prefixes;
+            } else {
+                sCachedKeys.put(key, entry);
+            }
+            // Values cached so far may belong to a broader entry than the
+            // new one, start over so each key ends up with its closest entry.
+            sCachedValues.clear();
+            sCacheEnabled = true;
+            addPropChangeCallback(key, entry);
+        }
+    }
+
+    /**
+     * Stop caching a key or prefix added by {@link #addCachedKey}.
+     *
+     * @param key the key or prefix, as it was added
+     * @hide
+     */
+    @SystemApi
+    public static void removeCachedKey(@NonNull String key) {
+        synchronized (sCacheEntries) {
+            CacheEntry entry = sCacheEntries.remove(key);
+            if (entry == null) {
+                return;
+            }
+            removePropChangeCallback(key, entry);
+            entry.removed = true;
+            entry.run();
+            if (entry.prefix != null) {
+                ArrayList<CacheEntry> prefixes = new ArrayList<>(Arrays.asList(sCachedPrefixes));
+                prefixes.remove(entry);
+                sCachedPrefixes = prefixes.toArray(new CacheEntry[0]);
+            } else {
+                sCachedKeys.remove(key);
+            }
+            sCachedValues.values().removeIf(v -> v.entry == entry);
+            sCacheEnabled = !sCacheEntries.isEmpty();
+        }
+    }
+
+    /**
+     * Returns the value of a cached key, from the cache when still valid.
+     *
+     * @return the value, empty if unset, or null if {@code key} isn't cached
+     */
+    private static String getCached(String key) {
+        CachedValue cached = sCachedValues.get(key);
+        if (cached != null && cached.generation == cached.entry.generation) {
+            return cached.value;
+        }
+
+        CacheEntry entry = findCacheEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        // Read the generation first: a change landing during the native read
+        // bumps it and leaves the stored value already stale.
+        int generation = entry.generation;
+        String value = native_get(key, "");
+        if (!entry.removed) {
+            sCachedValues.put(key, new CachedValue(entry, generation, value));
+        }
+        return value;
+    }
+
+    private static CacheEntry findCacheEntry(String key) {
+        CacheEntry entry = sCachedKeys.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        for (CacheEntry prefix : sCachedPrefixes) {
+            if (key.startsWith(prefix.prefix)) {
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    private static void invalidateCached(String key) {
+        CacheEntry entry = sCachedKeys.get(key);
+        if (entry != null) {
+            entry.run();
+        }
+        for (CacheEntry prefix : sCachedPrefixes) {
+            if (key.startsWith(prefix.prefix)) {
+                prefix.run();
+            }
+        }
+    }
+
+    /**
+     * Parses like kvdb's property_get_int32 and property_get_int64, which the
+     * uncached getters call: strtoll with base 0, skipping leading white
+     * space and ignoring anything after the digits. Returns def if no digit
+     * is converted or the value lies outside [min, max].
+     */
+    private static long parseLong(String value, long min, long max, long def) {
+        int n = value.length();
+        int i = 0;
+        while (i < n && " \t\n\u000b\f\r".indexOf(value.charAt(i)) >= 0) {
+            i++;
+        }
+        boolean negative = false;
+        if (i < n && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+            negative = value.charAt(i++) == '-';
+        }
+        int radix = 10;
+        if (i < n && value.charAt(i) == '0') {
+            radix = 8;
+            if (i + 2 < n && (value.charAt(i + 1) | 0x20) == 'x'
+                    && digit(value.charAt(i + 2), 16) >= 0) {
+                radix = 16;
+                i += 2;
+            }
+        }
+
+        // Accumulated negatively, so that Long.MIN_VALUE fits.
+        long result = 0;
+        int start = i;
+        for (int d; i < n && (d = digit(value.charAt(i), radix)) >= 0; i++) {
+            if (result < (Long.MIN_VALUE + d) / radix) {
+                return def; // ERANGE
+            }
+            result = result * radix - d;
+        }
+        if (i == start || (!negative && result == Long.MIN_VALUE)) {
+            return def;
+        }
+        result = negative ? result : -result;
+        return result < min || result > max ? def : result;
+    }
+
+    private static int digit(char c, int radix) {
+        return c < 0x80 ? Character.digit(c, radix) : -1;
+    }
+
+    private static boolean parseBoolean(String value, boolean def) {
+        switch (value) {
+            case "1":
+            case "y":
+            case "yes":
+            case "on":
+            case "true":
+                return true;
+            case "0":
+            case "n":
+            case "no":
+            case "off":
+            case "false":
+                return false;
+            default:
+                return def;
+        }
+    }
+
+    /**
+     * A cached key or prefix. Runs as the change callback of its key, each
+     * run invalidating the values read before it.
+     */
+    private static final class CacheEntry implements Runnable {
+        /** key prefix without the trailing '*', null for an exact key */
+        final String prefix;
+        volatile int generation;
+        volatile boolean removed;
+
+        CacheEntry(String key) {
+            prefix = key.endsWith("*") ? key.substring(0, key.length() - 1) : null;
+        }
+
+        @Override
+        public synchronized void run() {
+            generation++;
+        }
+    }
+
+    private static final class PendingWrite {
+        final String key;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        /** guarded by sPendingWrites */
+        String value;
+
+        PendingWrite(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class CachedValue {
+        final CacheEntry entry;
+        final int generation;
+        final String value;
+
+        CachedValue(CacheEntry entry, int generation, String value) {
+            this.entry = entry;
+            this.generation = generation;
+            this.value = value;
+        }
     }
 
     /**
@@ -228,6 +760,9 @@ public class CpcProperties {
         synchronized (sPropChangeCallbacks) {
             if (sPropChangeCallbacks.containsKey(key)) {
                 sPropChangeCallbacks.get(key).remove(callback);
+                synchronized (sCoalesceLock) {
+                    sHeldCallbacks.remove(callback);
+                }
                 if (sPropChangeCallbacks.get(key).size() == 0) {
                     sPropChangeCallbacks.remove(key);
                     native_remove_prop_change_monitor(key);
@@ -246,10 +781,103 @@ public class CpcProperties {
             callbacks = sPropChangeCallbacks.get(key);
         }
 
-        if (callbacks == null) {
+        if (callbacks == null || holdCallbacks(key, callbacks)) {
             return;
         }
 
+        runCallbacks(callbacks);
+    }
+
+    /**
+     * Keeps callbacks to run them once after a setAll() batch. Back to back
+     * batches, as a busy setAsync() writer makes, keep extending the hold,
+     * so callbacks are never held longer than MAX_HOLD_MILLIS. Only callbacks
+     * registered for a key the batch wrote, or for a prefix of one such as
+     * {@code "*"}, are held.
+     *
+     * @param key the key the callbacks are registered for
+     * @return false if no batch touching {@code key} is being coalesced and
+     * callbacks should run now
+     */
+    private static boolean holdCallbacks(String key, List<Runnable> callbacks) {
+        synchronized (sCoalesceLock) {
+            final long now = SystemClock.uptimeMillis();
+            if ((sBatchDepth == 0 && now >= sHoldUntil) || !isBatchKey(key)) {
+                return false;
+            }
+            for (int i = 0; i < callbacks.size(); i++) {
+                Runnable callback = callbacks.get(i);
+                if (callback instanceof CacheEntry) {
+                    // Cache invalidation must not lag behind.
+                    callback.run();
+                } else {
+                    if (sHeldCallbacks.isEmpty()) {
+                        sHeldSince = now;
+                        getCoalesceTimer().schedule(CpcProperties::runHeldCallbacks,
+                                MAX_HOLD_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    sHeldCallbacks.add(callback);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns whether {@code key}, an exact key or a prefix followed by
+     * {@code '*'}, covers a key of the batches being coalesced. Called with
+     * sCoalesceLock held.
+     */
+    private static boolean isBatchKey(String key) {
+        if (!key.endsWith("*")) {
+            return sBatchKeys.contains(key);
+        }
+        final String prefix = key.substring(0, key.length() - 1);
+        for (String batchKey : sBatchKeys) {
+            if (batchKey.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void runHeldCallbacks() {
+        ArrayList<Runnable> callbacks;
+        synchronized (sCoalesceLock) {
+            if (sHeldCallbacks.isEmpty()) {
+                return;
+            }
+            final long now = SystemClock.uptimeMillis();
+            if (now - sHeldSince < MAX_HOLD_MILLIS) {
+                // A batch in progress schedules its own run when it ends.
+                if (sBatchDepth > 0) {
+                    return;
+                }
+                final long delay = sHoldUntil - now;
+                if (delay > 0) {
+                    getCoalesceTimer().schedule(CpcProperties::runHeldCallbacks,
+                            delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            callbacks = new ArrayList<>(sHeldCallbacks);
+            sHeldCallbacks.clear();
+        }
+        runCallbacks(callbacks);
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getCoalesceTimer() {
+        if (sCoalesceTimer == null) {
+            sCoalesceTimer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "CpcPropertiesCoalesce");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return sCoalesceTimer;
+    }
+
+    private static void runCallbacks(List<Runnable> callbacks) {
         final long token = Binder.clearCallingIdentity();
         try {
             for (int i = 0; i < callbacks.size(); i++) {
@@ -300,8 +928,9 @@ public class CpcProperties {
         Arrays.sort(keys);
         try {
             final MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            for (String key : keys) {
-                final String item = key + "=" + get(key) + "\n";
+            final String[] values = native_get_all(keys);
+            for (int i = 0; i < keys.length; i++) {
+                final String item = keys[i] + "=" + values[i] + "\n";
                 digest.update(item.getBytes(StandardCharsets.UTF_8));
             }
             return HexEncoding.encodeToString(digest.digest()).toLowerCase();
@@ -320,53 +949,98 @@ public class CpcProperties {
      * @hide
      */
     @Nullable public static Handle find(@NonNull String name) {
-        String handle = get(name, null);
-        if (handle.equals("")) {
+        long handle = native_find(name);
+        if (handle == 0) {
             return null;
         }
 
-        return new Handle(name);
+        return new Handle(handle);
     }
 
     /**
      * Handle to a pre-located property. Looking up a property handle in advance allows
-     * for optimal repeated lookup of a single property.
+     * for optimal repeated lookup of a single property: the handle keeps the last value
+     * natively and only reads the property again after the property change monitor or
+     * {@link CpcProperties#set} in this process reported a change.
      * @hide
      */
     public static final class Handle {
 
-        private final String mNativeHandle;
+        /**
+         * Handles of one property share a refcounted native handle, so each
+         * is charged the size of that handle rather than what malloc reports
+         * for the shared pointer.
+         */
+        private static final NativeAllocationRegistry sRegistry =
+                NativeAllocationRegistry.createMalloced(Handle.class.getClassLoader(),
+                        native_handle_free_function(), native_handle_size());
+
+        private final long mNativeHandle;
 
         /**
          * @return Value of the property
          */
         @NonNull public String get() {
-            return native_get(mNativeHandle);
+            try {
+                return native_handle_get(mNativeHandle);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
         }
         /**
          * @param def default value
          * @return value or {@code def} on parse error
          */
         public int getInt(int def) {
-            return native_get_int(mNativeHandle, def);
+            try {
+                return native_handle_get_int(mNativeHandle, def);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
         }
         /**
          * @param def default value
          * @return value or {@code def} on parse error
          */
         public long getLong(long def) {
-            return native_get_long(mNativeHandle, def);
+            try {
+                return native_handle_get_long(mNativeHandle, def);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
         }
         /**
          * @param def default value
          * @return value or {@code def} on parse error
          */
         public boolean getBoolean(boolean def) {
-            return native_get_boolean(mNativeHandle, def);
+            try {
+                return native_handle_get_boolean(mNativeHandle, def);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
+        }
+        /**
+         * Returns a serial that moves at least once per change of the
+         * property, so callers can keep a value parsed from it until the
+         * serial moves. Handles of the same property share it. A
+         * {@link CpcProperties#set} in this process moves it before
+         * returning; where the property cannot be monitored, it moves at the
+         * first read that sees a new value.
+         *
+         * @return current serial of the property
+         */
+        public long getSerial() {
+            try {
+                return native_handle_get_serial(mNativeHandle);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
         }
 
-        private Handle(String nativeHandle) {
+        private Handle(long nativeHandle) {
             mNativeHandle = nativeHandle;
+            sRegistry.registerNativeAllocation(this, nativeHandle);
         }
     }
 }
@@ -23,6 +23,8 @@ extern int register_android_os_CpcRemote(JNIEnv* env);
 extern int register_android_os_CpcServiceManager(JNIEnv* env);
 #endif
 extern int register_android_net_RpmsgSocket(JNIEnv* env);
+extern int register_android_net_RpmsgSelector(JNIEnv* env);
+extern int register_android_net_RpmsgRingChannel(JNIEnv* env);
 
 jint JNI_OnLoad(JavaVM* jvm, void*)
 {
@@ -49,5 +51,13 @@ jint JNI_OnLoad(JavaVM* jvm, void*)
         return JNI_ERR;
     }
 
+    if (register_android_net_RpmsgSelector(env) < 0) {
+        return JNI_ERR;
+    }
+
+    if (register_android_net_RpmsgRingChannel(env) < 0) {
+        return JNI_ERR;
+    }
+
     return JNI_VERSION_1_6;
 }
@@ -16,8 +16,11 @@
 
 #define LOG_TAG "CpcPropJNI"
 
+#include <atomic>
+#include <mutex>
 #include <optional>
 #include <utility>
+#include <vector>
 
 #include <android-base/logging.h>
 #include <android-base/parsebool.h>
@@ -32,13 +35,20 @@
 #include <utils/misc.h>
 
 #include <kvdb.h>
+#include <unordered_map>
 #include <unordered_set>
 
+#include <errno.h>
 #include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
 #include <sys/epoll.h>
 
 #define CAPACITY 64
 
+/* Set in epoll data of prop_handle_t monitors, handles are 8-byte aligned */
+#define HANDLE_TAG 1ULL
+
 typedef void (*prop_change_cb_t)(const char* key, void* cookie);
 
 typedef struct prop_param_s {
@@ -62,8 +72,27 @@ struct prop_param_equal {
     }
 };
 
+/* A property resolved by CpcProperties.find(), shared by every Java Handle
+ * of the key and freed with the last one.
+ */
+typedef struct prop_handle_s {
+    std::string key;
+    int fd;
+    /* Java Handles pointing here, guarded by prop_mutex */
+    int refs;
+    /* bumped at least once per change, guarded by nothing */
+    std::atomic<uint32_t> serial;
+    /* guards the fields below */
+    std::mutex lock;
+    uint32_t value_serial;
+    char value[PROP_VALUE_MAX];
+} prop_handle_t;
+
 typedef struct prop_context_s {
     std::unordered_set<prop_param_t, prop_param_hash, prop_param_equal> prop_set;
+    /* live handles, by pointer and by key, guarded by prop_mutex */
+    std::unordered_set<prop_handle_t*> handle_set;
+    std::unordered_map<std::string, prop_handle_t*> handle_map;
     pthread_mutex_t prop_mutex;
     int epoll_fd;
 } prop_context_t;
@@ -72,6 +101,8 @@ static prop_context_t g_ctx = {
     .prop_mutex = PTHREAD_MUTEX_INITIALIZER,
 };
 
+static pthread_once_t g_monitor_once = PTHREAD_ONCE_INIT;
+
 static void register_prop_change_cb(const char* key,
     void* cookie, void (*cb)(const char* key, void* cookie))
 {
@@ -126,6 +157,36 @@ static void unregister_prop_change_cb(const char* key)
     }
 }
 
+static void prop_handle_changed(prop_handle_t* handle)
+{
+    prop_context_t* ctx = &g_ctx;
+
+    // The handle may have been freed since epoll_wait returned it.
+    pthread_mutex_lock(&ctx->prop_mutex);
+    if (ctx->handle_set.count(handle)) {
+        property_monitor_read(handle->fd, nullptr, nullptr, 0);
+        handle->serial.fetch_add(1, std::memory_order_release);
+    }
+    pthread_mutex_unlock(&ctx->prop_mutex);
+}
+
+/*
+ * Called after set() wrote key. The serial moves right away so this
+ * process reads its own write; the monitor notification that follows
+ * moves it again.
+ */
+static void prop_handle_written(const char* key)
+{
+    prop_context_t* ctx = &g_ctx;
+
+    pthread_mutex_lock(&ctx->prop_mutex);
+    auto it = ctx->handle_map.find(key);
+    if (it != ctx->handle_map.end()) {
+        it->second->serial.fetch_add(1, std::memory_order_release);
+    }
+    pthread_mutex_unlock(&ctx->prop_mutex);
+}
+
 static void* thread_monitor(void* p)
 {
     prop_context_t* ctx = &g_ctx;
@@ -137,6 +198,10 @@ static void* thread_monitor(void* p)
             ALOGE("epoll_wait return %d, errno = %d\n", count, errno);
         } else {
             for (int i = 0; i < count; i++) {
+                if (events[i].data.u64 & HANDLE_TAG) {
+                    prop_handle_changed((prop_handle_t*)(uintptr_t)(events[i].data.u64 & ~HANDLE_TAG));
+                    continue;
+                }
                 prop_param_t* param = (prop_param_t*)(events[i].data.ptr);
                 property_monitor_read(param->fd, nullptr, nullptr, 0);
                 param->cb(param->key.c_str(), param->cookie);
@@ -158,6 +223,113 @@ static void start_thread_monitor()
     pthread_detach(thread);
 }
 
+/* Returns the handle of key, opening it and its monitor on first use */
+static prop_handle_t* prop_handle_open(const char* key)
+{
+    prop_context_t* ctx = &g_ctx;
+
+    pthread_once(&g_monitor_once, start_thread_monitor);
+
+    pthread_mutex_lock(&ctx->prop_mutex);
+    auto it = ctx->handle_map.find(key);
+    if (it != ctx->handle_map.end()) {
+        prop_handle_t* handle = it->second;
+        handle->refs++;
+        pthread_mutex_unlock(&ctx->prop_mutex);
+        return handle;
+    }
+
+    prop_handle_t* handle = new prop_handle_t();
+    handle->key = key;
+    handle->refs = 1;
+    handle->serial.store(1, std::memory_order_relaxed);
+    handle->value_serial = 0;
+    handle->value[0] = '\0';
+
+    ctx->handle_set.insert(handle);
+    ctx->handle_map[handle->key] = handle;
+    handle->fd = property_monitor_open(key);
+    if (handle->fd >= 0) {
+        struct epoll_event event;
+        event.events = EPOLLIN;
+        event.data.u64 = (uint64_t)(uintptr_t)handle | HANDLE_TAG;
+        if (epoll_ctl(ctx->epoll_fd, EPOLL_CTL_ADD, handle->fd, &event) < 0) {
+            ALOGE("epoll_ctl %s failed, errno = %d\n", key, errno);
+            property_monitor_close(handle->fd);
+            handle->fd = -1;
+        }
+    }
+    pthread_mutex_unlock(&ctx->prop_mutex);
+
+    return handle;
+}
+
+static void prop_handle_free(void* ptr)
+{
+    prop_context_t* ctx = &g_ctx;
+    prop_handle_t* handle = (prop_handle_t*)ptr;
+
+    pthread_mutex_lock(&ctx->prop_mutex);
+    if (--handle->refs > 0) {
+        pthread_mutex_unlock(&ctx->prop_mutex);
+        return;
+    }
+    ctx->handle_set.erase(handle);
+    ctx->handle_map.erase(handle->key);
+    if (handle->fd >= 0) {
+        struct epoll_event event;
+        epoll_ctl(ctx->epoll_fd, EPOLL_CTL_DEL, handle->fd, &event);
+        property_monitor_close(handle->fd);
+    }
+    pthread_mutex_unlock(&ctx->prop_mutex);
+
+    delete handle;
+}
+
+/*
+ * Copies the value of the handle's property into value, reading it from
+ * kvdb only when it may have changed since the last read. Without a
+ * monitor nothing tells about changes, so every call reads and a read
+ * that finds a new value is what moves the serial.
+ */
+static int prop_handle_read(prop_handle_t* handle, char* value)
+{
+    std::lock_guard<std::mutex> guard(handle->lock);
+
+    // Load the serial before reading: a change landing during the read
+    // bumps it again and the next call reads once more.
+    uint32_t serial = handle->serial.load(std::memory_order_acquire);
+    if (handle->fd < 0 || serial != handle->value_serial) {
+        if (property_get(handle->key.c_str(), value, nullptr) <= 0) {
+            value[0] = '\0';
+        }
+        // Unless set() in this process bumped the serial already.
+        if (handle->fd < 0 && serial == handle->value_serial && strcmp(value, handle->value)) {
+            serial = handle->serial.fetch_add(1, std::memory_order_release) + 1;
+        }
+        strlcpy(handle->value, value, PROP_VALUE_MAX);
+        handle->value_serial = serial;
+    }
+    strlcpy(value, handle->value, PROP_VALUE_MAX);
+    return strlen(value);
+}
+
+/* Parses like property_get_int64: strtoll with base 0, anything after the
+ * digits is ignored
+ */
+static bool prop_parse_int64(const char* value, int64_t* out)
+{
+    char* end;
+
+    errno = 0;
+    long long result = strtoll(value, &end, 0);
+    if (errno == ERANGE || end == value) {
+        return false;
+    }
+    *out = result;
+    return true;
+}
+
 namespace android {
 
 using android::base::ParseBoolResult;
@@ -236,12 +408,140 @@ static void CpcProperties_set(JNIEnv* env, jobject clazz, jstring keyJ,
     }
     bool success;
     success = !property_set(key.c_str(), value ? value->c_str() : "");
-    if (!success) {
+    if (success) {
+        prop_handle_written(key.c_str());
+    } else {
         jniThrowException(env, "java/lang/RuntimeException",
             "failed to set system property (check logcat for reason)");
     }
 }
 
+static void CpcProperties_set_all(JNIEnv* env, jclass, jobjectArray keysJ,
+    jobjectArray valuesJ)
+{
+    jsize count = env->GetArrayLength(keysJ);
+
+    for (jsize i = 0; i < count; i++) {
+        jstring keyJ = (jstring)env->GetObjectArrayElement(keysJ, i);
+        jstring valJ = (jstring)env->GetObjectArrayElement(valuesJ, i);
+        {
+            ScopedUtfChars key(env, keyJ);
+            if (!key.c_str()) {
+                return;
+            }
+            std::optional<ScopedUtfChars> value;
+            if (valJ != nullptr) {
+                value.emplace(env, valJ);
+                if (!value->c_str()) {
+                    return;
+                }
+            }
+
+            if (property_set(key.c_str(), value ? value->c_str() : "")) {
+                std::string message = "failed to set system property ";
+                message += key.c_str();
+                message += " (check logcat for reason)";
+                jniThrowException(env, "java/lang/RuntimeException", message.c_str());
+                return;
+            }
+            prop_handle_written(key.c_str());
+        }
+        env->DeleteLocalRef(valJ);
+        env->DeleteLocalRef(keyJ);
+    }
+}
+
+static jobjectArray CpcProperties_get_all(JNIEnv* env, jclass, jobjectArray keysJ)
+{
+    char value[PROP_VALUE_MAX];
+    jsize count = env->GetArrayLength(keysJ);
+    jobjectArray values = env->NewObjectArray(count, env->FindClass("java/lang/String"), nullptr);
+
+    if (values == nullptr) {
+        return nullptr;
+    }
+
+    for (jsize i = 0; i < count; i++) {
+        jstring keyJ = (jstring)env->GetObjectArrayElement(keysJ, i);
+        {
+            ScopedUtfChars key(env, keyJ);
+            if (!key.c_str()) {
+                return nullptr;
+            }
+            if (property_get(key.c_str(), value, nullptr) <= 0) {
+                value[0] = '\0';
+            }
+        }
+        env->DeleteLocalRef(keyJ);
+
+        jstring valueJ = env->NewStringUTF(value);
+        if (valueJ == nullptr) {
+            return nullptr;
+        }
+        env->SetObjectArrayElement(values, i, valueJ);
+        env->DeleteLocalRef(valueJ);
+    }
+
+    return values;
+}
+
+typedef struct prop_snapshot_s {
+    const char* prefix;
+    size_t prefix_len;
+    std::vector<std::pair<std::string, std::string>> entries;
+} prop_snapshot_t;
+
+static void snapshot_cb(const char* key, const char* value, void* cookie)
+{
+    prop_snapshot_t* snapshot = (prop_snapshot_t*)cookie;
+
+    if (!strncmp(key, snapshot->prefix, snapshot->prefix_len)) {
+        snapshot->entries.emplace_back(key, value);
+    }
+}
+
+static jobjectArray CpcProperties_snapshot(JNIEnv* env, jclass, jstring prefixJ)
+{
+    ScopedUtfChars prefix(env, prefixJ);
+    if (!prefix.c_str()) {
+        return nullptr;
+    }
+
+    prop_snapshot_t snapshot;
+    snapshot.prefix = prefix.c_str();
+    snapshot.prefix_len = strlen(prefix.c_str());
+    if (property_list(snapshot_cb, &snapshot) < 0) {
+        jniThrowException(env, "java/lang/RuntimeException",
+            "failed to list system properties (check logcat for reason)");
+        return nullptr;
+    }
+
+    // Keys and values alternate, one array keeps it to a single allocation.
+    jsize count = snapshot.entries.size();
+    jobjectArray result = env->NewObjectArray(count * 2, env->FindClass("java/lang/String"), nullptr);
+    if (result == nullptr) {
+        return nullptr;
+    }
+
+    for (jsize i = 0; i < count; i++) {
+        jstring keyJ = env->NewStringUTF(snapshot.entries[i].first.c_str());
+        if (keyJ == nullptr) {
+            return nullptr;
+        }
+        env->SetObjectArrayElement(result, i * 2, keyJ);
+        env->DeleteLocalRef(keyJ);
+
+        jstring valueJ = env->NewStringUTF(snapshot.entries[i].second.c_str());
+        if (valueJ == nullptr) {
+            return nullptr;
+        }
+        env->SetObjectArrayElement(result, i * 2 + 1, valueJ);
+        env->DeleteLocalRef(valueJ);
+    }
+
+    return result;
+}
+
 static JavaVM* sVM = nullptr;
 static jclass sClazz = nullptr;
 static jmethodID sCallPropChangeCallback;
@@ -306,8 +606,89 @@ static void CpcProperties_add_prop_change_callback(JNIEnv* env, jobject clazz)
     if (sClazz == nullptr) {
         sClazz = (jclass)env->NewGlobalRef(clazz);
         sCallPropChangeCallback = env->GetStaticMethodID(sClazz, "callPropChangeCallback", "(Ljava/lang/String;)V");
-        start_thread_monitor();
+        pthread_once(&g_monitor_once, start_thread_monitor);
+    }
+}
+
+static jlong CpcProperties_find(JNIEnv* env, jclass, jstring nameJ)
+{
+    char value[PROP_VALUE_MAX];
+    ScopedUtfChars name(env, nameJ);
+
+    if (!name.c_str()) {
+        return 0;
+    }
+
+    if (property_get(name.c_str(), value, nullptr) <= 0) {
+        return 0;
     }
+
+    return (jlong)(uintptr_t)prop_handle_open(name.c_str());
+}
+
+static jlong CpcProperties_handle_free_function(JNIEnv*, jclass)
+{
+    return (jlong)(uintptr_t)&prop_handle_free;
+}
+
+static jlong CpcProperties_handle_size(JNIEnv*, jclass)
+{
+    return sizeof(prop_handle_t);
+}
+
+static jstring CpcProperties_handle_get(JNIEnv* env, jclass, jlong handleJ)
+{
+    char value[PROP_VALUE_MAX];
+
+    prop_handle_read((prop_handle_t*)(uintptr_t)handleJ, value);
+    return env->NewStringUTF(value);
+}
+
+static jint CpcProperties_handle_get_int(JNIEnv*, jclass, jlong handleJ, jint defJ)
+{
+    char value[PROP_VALUE_MAX];
+    int64_t result;
+
+    prop_handle_read((prop_handle_t*)(uintptr_t)handleJ, value);
+    if (!prop_parse_int64(value, &result) || result != (int32_t)result) {
+        return defJ;
+    }
+    return (jint)result;
+}
+
+static jlong CpcProperties_handle_get_long(JNIEnv*, jclass, jlong handleJ, jlong defJ)
+{
+    char value[PROP_VALUE_MAX];
+    int64_t result;
+
+    prop_handle_read((prop_handle_t*)(uintptr_t)handleJ, value);
+    if (!prop_parse_int64(value, &result)) {
+        return defJ;
+    }
+    return result;
+}
+
+static jboolean CpcProperties_handle_get_boolean(JNIEnv*, jclass, jlong handleJ,
+    jboolean defJ)
+{
+    char value[PROP_VALUE_MAX];
+
+    prop_handle_read((prop_handle_t*)(uintptr_t)handleJ, value);
+    switch (android::base::ParseBool(value)) {
+    case ParseBoolResult::kTrue:
+        return JNI_TRUE;
+    case ParseBoolResult::kFalse:
+        return JNI_FALSE;
+    default:
+        return defJ;
+    }
+}
+
+static jlong CpcProperties_handle_get_serial(JNIEnv*, jclass, jlong handleJ)
+{
+    prop_handle_t* handle = (prop_handle_t*)(uintptr_t)handleJ;
+
+    return handle->serial.load(std::memory_order_acquire);
 }
 
 static JNINativeMethod sMethods[] = {
@@ -322,12 +703,34 @@ static JNINativeMethod sMethods[] = {
         (void*)CpcProperties_get_boolean },
     { "native_set", "(Ljava/lang/String;Ljava/lang/String;)V",
         (void*)CpcProperties_set },
+    { "native_set_all", "([Ljava/lang/String;[Ljava/lang/String;)V",
+        (void*)CpcProperties_set_all },
+    { "native_get_all", "([Ljava/lang/String;)[Ljava/lang/String;",
+        (void*)CpcProperties_get_all },
+    { "native_snapshot", "(Ljava/lang/String;)[Ljava/lang/String;",
+        (void*)CpcProperties_snapshot },
     { "native_add_prop_change_callback", "()V",
         (void*)CpcProperties_add_prop_change_callback },
     { "native_add_prop_change_monitor", "(Ljava/lang/String;)V",
         (void*)CpcProperties_add_prop_change_monitor },
     { "native_remove_prop_change_monitor", "(Ljava/lang/String;)V",
         (void*)CpcProperties_remove_prop_change_monitor },
+    { "native_find", "(Ljava/lang/String;)J",
+        (void*)CpcProperties_find },
+    { "native_handle_free_function", "()J",
+        (void*)CpcProperties_handle_free_function },
+    { "native_handle_size", "()J",
+        (void*)CpcProperties_handle_size },
+    { "native_handle_get", "(J)Ljava/lang/String;",
+        (void*)CpcProperties_handle_get },
+    { "native_handle_get_int", "(JI)I",
+        (void*)CpcProperties_handle_get_int },
+    { "native_handle_get_long", "(JJ)J",
+        (void*)CpcProperties_handle_get_long },
+    { "native_handle_get_boolean", "(JZ)Z",
+        (void*)CpcProperties_handle_get_boolean },
+    { "native_handle_get_serial", "(J)J",
+        (void*)CpcProperties_handle_get_serial },
 };
 
 } // namespace android
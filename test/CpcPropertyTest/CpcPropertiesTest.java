@@ -26,7 +26,14 @@ import static org.junit.Assert.fail;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -98,6 +105,29 @@ public class CpcPropertiesTest {
         assertEquals(true, handle.getBoolean(false));
         CpcProperties.set(KEY, "");
         assertEquals(12345, handle.getInt(12345));
+        CpcProperties.set(KEY, " 7x");
+        assertEquals(7, handle.getInt(-1));
+        assertEquals(CpcProperties.getLong(KEY, -1), handle.getLong(-1));
+
+        // The serial stays put until the property changes. The monitor
+        // notifications of the sets above move it too, let them land.
+        CpcProperties.set(KEY, "0x20");
+        Thread.sleep(100);
+        long serial = handle.getSerial();
+        assertEquals(32, handle.getInt(-1));
+        assertEquals(serial, handle.getSerial());
+        CpcProperties.set(KEY, "off");
+        assertTrue(serial != handle.getSerial());
+        assertEquals(false, handle.getBoolean(true));
+
+        // Handles of one key share its monitor and serial.
+        long moved = handle.getSerial();
+        CpcProperties.Handle other = CpcProperties.find(KEY);
+        assertTrue(other.getSerial() >= moved);
+        CpcProperties.set(KEY, "on");
+        assertTrue(other.getSerial() > moved);
+        assertTrue(handle.getSerial() > moved);
+        assertEquals(true, other.getBoolean(false));
     }
 
     public void testIntegralProperties() throws Exception {
@@ -209,6 +239,176 @@ public class CpcPropertiesTest {
         CpcProperties.removePropChangeCallback("abc", callback2);
     }
 
+    public void testGetAll() throws Exception {
+        CpcProperties.set(KEY, "SA");
+        CpcProperties.set(PERSIST_KEY, "1");
+
+        Map<String, String> values = CpcProperties.getAll(KEY, PERSIST_KEY, UNSET_KEY);
+        assertEquals(3, values.size());
+        assertEquals("SA", values.get(KEY));
+        assertEquals("1", values.get(PERSIST_KEY));
+        assertEquals("", values.get(UNSET_KEY));
+        assertTrue(CpcProperties.getAll().isEmpty());
+
+        Map<String, String> snapshot = CpcProperties.snapshot("persist.sys.");
+        assertEquals("1", snapshot.get(PERSIST_KEY));
+        assertFalse(snapshot.containsKey(KEY));
+        for (String key : snapshot.keySet()) {
+            assertTrue(key.startsWith("persist.sys."));
+        }
+    }
+
+    public void testSetAll() throws Exception {
+        int[] calls = new int[1];
+        Runnable callback = () -> {
+            synchronized (calls) {
+                calls[0]++;
+            }
+        };
+        CpcProperties.addChangeCallback(callback);
+        try {
+            Map<String, String> values = new HashMap<>();
+            values.put(KEY, "batch");
+            values.put(PERSIST_KEY, "2");
+            CpcProperties.setAll(values);
+            assertEquals("batch", CpcProperties.get(KEY));
+            assertEquals(2, CpcProperties.getInt(PERSIST_KEY, -1));
+
+            // Both changes end up in a single callback run.
+            Thread.sleep(500);
+            synchronized (calls) {
+                assertEquals(1, calls[0]);
+            }
+        } finally {
+            CpcProperties.removeChangeCallback(callback);
+        }
+
+        // Callbacks of keys outside the batch are not held with it.
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Runnable batched = () -> order.add(KEY);
+        Runnable other = () -> order.add(PERSIST_KEY);
+        CpcProperties.addPropChangeCallback(KEY, batched);
+        CpcProperties.addPropChangeCallback(PERSIST_KEY, other);
+        try {
+            Map<String, String> values = new HashMap<>();
+            values.put(KEY, "held");
+            CpcProperties.setAll(values);
+            CpcProperties.set(PERSIST_KEY, "3");
+            Thread.sleep(500);
+            assertEquals(Arrays.asList(PERSIST_KEY, KEY), order);
+        } finally {
+            CpcProperties.removePropChangeCallback(KEY, batched);
+            CpcProperties.removePropChangeCallback(PERSIST_KEY, other);
+        }
+
+        Map<String, String> tooLong = new HashMap<>();
+        tooLong.put(KEY, "ok");
+        tooLong.put(PERSIST_KEY, new String(new char[CpcProperties.PROP_VALUE_MAX + 1]));
+        try {
+            CpcProperties.setAll(tooLong);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException iae) {
+        }
+        // Validation runs before anything is set.
+        assertEquals("batch", CpcProperties.get(KEY));
+
+        Map<String, String> nullKey = new HashMap<>();
+        nullKey.put(KEY, "ok");
+        nullKey.put(null, "value");
+        try {
+            CpcProperties.setAll(nullKey);
+            fail("Expected NullPointerException");
+        } catch (NullPointerException npe) {
+        }
+        assertEquals("batch", CpcProperties.get(KEY));
+    }
+
+    public void testSetAsync() throws Exception {
+        CompletableFuture<Void> first = CpcProperties.setAsync(KEY, "a1");
+        CompletableFuture<Void> last = null;
+        for (int i = 2; i <= 100; i++) {
+            last = CpcProperties.setAsync(KEY, "a" + i);
+        }
+        last.get(5, TimeUnit.SECONDS);
+        assertTrue(first.isDone());
+        assertEquals("a100", CpcProperties.get(KEY));
+
+        try {
+            CpcProperties.setAsync(KEY, new String(new char[CpcProperties.PROP_VALUE_MAX + 1]));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException iae) {
+        }
+
+        try {
+            CpcProperties.setAsync(null, "value");
+            fail("Expected NullPointerException");
+        } catch (NullPointerException npe) {
+        }
+
+        // A writer that never goes idle must not hold callbacks back forever.
+        CountDownLatch called = new CountDownLatch(1);
+        Runnable callback = called::countDown;
+        CpcProperties.addPropChangeCallback(KEY, callback);
+        try {
+            long deadline = System.currentTimeMillis() + 3000;
+            int i = 0;
+            while (called.getCount() > 0 && System.currentTimeMillis() < deadline) {
+                CpcProperties.setAsync(KEY, "b" + i++);
+                Thread.sleep(1);
+            }
+            assertEquals(0, called.getCount());
+        } finally {
+            CpcProperties.removePropChangeCallback(KEY, callback);
+        }
+    }
+
+    public void testCache() throws Exception {
+        CpcProperties.set(KEY, "1");
+        CpcProperties.addCachedKey(KEY);
+        CpcProperties.addCachedKey("persist.sys.*");
+        try {
+            assertEquals("1", CpcProperties.get(KEY));
+            assertEquals(1, CpcProperties.getInt(KEY, -1));
+            assertEquals(1, CpcProperties.getLong(KEY, -1));
+            assertEquals(true, CpcProperties.getBoolean(KEY, false));
+
+            // set() in this process is seen at once.
+            CpcProperties.set(KEY, "0x10");
+            assertEquals("0x10", CpcProperties.get(KEY));
+            assertEquals(16, CpcProperties.getInt(KEY, -1));
+            assertEquals(false, CpcProperties.getBoolean(KEY, false));
+
+            // Parsed like kvdb's property_get_int32/64, as when uncached.
+            CpcProperties.set(KEY, " 12abc");
+            assertEquals(12, CpcProperties.getInt(KEY, -1));
+            CpcProperties.set(KEY, "010");
+            assertEquals(8, CpcProperties.getLong(KEY, -1));
+            CpcProperties.set(KEY, "abc");
+            assertEquals(-1, CpcProperties.getInt(KEY, -1));
+            CpcProperties.set(KEY, "2147483648");
+            assertEquals(-1, CpcProperties.getInt(KEY, -1));
+            assertEquals(2147483648L, CpcProperties.getLong(KEY, -1));
+            CpcProperties.set(KEY, "9223372036854775808");
+            assertEquals(-1, CpcProperties.getLong(KEY, -1));
+
+            CpcProperties.set(KEY, "");
+            assertEquals("default", CpcProperties.get(KEY, "default"));
+            assertEquals("", CpcProperties.get(KEY));
+            assertEquals(5, CpcProperties.getInt(KEY, 5));
+
+            CpcProperties.set(PERSIST_KEY, "on");
+            assertEquals(true, CpcProperties.getBoolean(PERSIST_KEY, false));
+            CpcProperties.set(PERSIST_KEY, "off");
+            assertEquals(false, CpcProperties.getBoolean(PERSIST_KEY, true));
+        } finally {
+            CpcProperties.removeCachedKey(KEY);
+            CpcProperties.removeCachedKey("persist.sys.*");
+        }
+
+        CpcProperties.set(KEY, "SA");
+        assertEquals("SA", CpcProperties.get(KEY));
+    }
+
     public static void main(String[] args) {
         CpcPropertiesTest test = new CpcPropertiesTest();
         try {
@@ -226,6 +426,14 @@ public class CpcPropertiesTest {
             test.testDigestOf();
             System.out.println("Test testCallbacks\n");
             test.testCallbacks();
+            System.out.println("Test testGetAll()\n");
+            test.testGetAll();
+            System.out.println("Test testSetAll()\n");
+            test.testSetAll();
+            System.out.println("Test testSetAsync()\n");
+            test.testSetAsync();
+            System.out.println("Test testCache()\n");
+            test.testCache();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,611 @@
+/*
+** Copyright (C) 2024 Xiaomi Corporation
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+package android.net;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Throughput and latency benchmarks for RpmsgSocket.
+ *
+ * Each benchmark runs warmup iterations followed by measured ones against
+ * an echo/sink server. With the local transport the server runs in this
+ * process, so the numbers need no remote core; with the rpmsg transport
+ * the server is another instance started in "server" mode on the remote
+ * endpoint. Syscalls are counted from /proc/self/io (syscr + syscw) over
+ * the measured iterations; in local mode that includes the server side.
+ *
+ * Usage: CpcSocketBench [options] [server]
+ *   --transport local|rpmsg   socket transport (default local)
+ *   --cpu NAME                remote cpu of the server (default ap)
+ *   --name NAME               server socket name (default cpcbench)
+ *   --sizes 1,64,...          message sizes in bytes
+ *   --threads 1,4,...         concurrent connections
+ *   --shared                  write benchmarks run all threads on one shared
+ *                             connection, to measure contention on the socket
+ *   --warmup N                warmup iterations (default 2)
+ *   --iterations N            measured iterations (default 5)
+ *   --bytes N                 bytes moved per throughput iteration (default 16M)
+ *   --roundtrips N            round trips per latency iteration (default 2000)
+ *   --filter PREFIX           only run benchmarks whose name starts with PREFIX
+ */
+public class CpcSocketBench {
+    /** the server reads size * count bytes or messages and replies with one byte */
+    private static final int OP_SINK = 1;
+    /** the server echoes count messages of size bytes */
+    private static final int OP_ECHO = 2;
+    private static final int HEADER_SIZE = 12;
+    /** largest datagram sent, rpmsg datagrams must fit one message */
+    private static final int MAX_DGRAM_SIZE = 4096;
+
+    private RpmsgTransport transport = RpmsgTransport.LOCAL;
+    private String cpu = "ap";
+    private String name = "cpcbench";
+    private int[] sizes = { 1, 64, 512, 4096, 65536 };
+    private int[] threads = { 1, 4 };
+    private int warmup = 2;
+    private int iterations = 5;
+    private long bytesPerIteration = 16 << 20;
+    private int roundtrips = 2000;
+    private String filter = "";
+    private boolean shared;
+
+    private interface Body {
+        /**
+         * Runs one iteration on the connection of one thread.
+         *
+         * @param latencies round trip times to fill, or null
+         * @return number of messages moved
+         */
+        long run(RpmsgSocket socket, long[] latencies) throws IOException;
+    }
+
+    /**
+     * A sink workload: a header announcing the messages, the messages, and
+     * the one byte reply once the server has consumed them all. Split up so
+     * that several threads can send their messages between a single header
+     * and reply on a shared connection.
+     */
+    private final class Sink {
+        final boolean dgram;
+        final int size;
+        final int count;
+        final Body messages;
+
+        Sink(boolean dgram, int size, int count, Body messages) {
+            this.dgram = dgram;
+            this.size = size;
+            this.count = count;
+            this.messages = messages;
+        }
+
+        void begin(RpmsgSocket s, int nThreads) throws IOException {
+            sendHeader(s, dgram, OP_SINK, size, count * nThreads);
+        }
+
+        void end(RpmsgSocket s) throws IOException {
+            if (dgram) {
+                s.receive(new byte[1], 0, 1);
+            } else if (s.getInputStream().read() < 0) {
+                throw new IOException("server closed");
+            }
+        }
+
+        /** the whole workload on a connection of its own */
+        Body body() {
+            return (s, latencies) -> {
+                begin(s, 1);
+                long n = messages.run(s, latencies);
+                end(s);
+                return n;
+            };
+        }
+    }
+
+    private static final class Result {
+        long nanos;
+        long messages;
+        long bytes;
+        long syscalls;
+        long[] latencies;
+    }
+
+    // ---- server side ----
+
+    private void startServer(int sockType, boolean daemon) throws IOException {
+        String socketName = sockType == RpmsgSocket.SOCKET_DGRAM ? name + "-dgram" : name;
+        RpmsgServerSocket ss = new RpmsgServerSocket(socketName, sockType, transport);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                RpmsgSocket s;
+                try {
+                    s = ss.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread handler = new Thread(() -> serve(s, sockType == RpmsgSocket.SOCKET_DGRAM),
+                        "CpcSocketBench-serve");
+                handler.setDaemon(true);
+                handler.start();
+            }
+        }, "CpcSocketBench-accept");
+        acceptor.setDaemon(daemon);
+        acceptor.start();
+    }
+
+    private static void serve(RpmsgSocket s, boolean dgram) {
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            byte[] buffer = null;
+            while (true) {
+                if (dgram) {
+                    if (s.receive(header, 0, HEADER_SIZE) <= 0) {
+                        break;
+                    }
+                } else if (!readFully(s.getInputStream(), header, HEADER_SIZE)) {
+                    break;
+                }
+                ByteBuffer hb = ByteBuffer.wrap(header);
+                int op = hb.getInt();
+                int size = hb.getInt();
+                int count = hb.getInt();
+                if (buffer == null || buffer.length < size) {
+                    buffer = new byte[Math.max(size, 65536)];
+                }
+
+                if (op == OP_SINK) {
+                    if (dgram) {
+                        for (int i = 0; i < count; i++) {
+                            s.receive(buffer, 0, size);
+                        }
+                        s.send(header, 0, 1);
+                    } else {
+                        long remaining = (long) size * count;
+                        InputStream in = s.getInputStream();
+                        while (remaining > 0) {
+                            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (n < 0) {
+                                return;
+                            }
+                            remaining -= n;
+                        }
+                        s.getOutputStream().write(0);
+                    }
+                } else if (op == OP_ECHO) {
+                    for (int i = 0; i < count; i++) {
+                        if (dgram) {
+                            int n = s.receive(buffer, 0, size);
+                            s.send(buffer, 0, n);
+                        } else {
+                            if (!readFully(s.getInputStream(), buffer, size)) {
+                                return;
+                            }
+                            s.getOutputStream().write(buffer, 0, size);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    private static boolean readFully(InputStream in, byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int n = in.read(b, off, len - off);
+            if (n < 0) {
+                return false;
+            }
+            off += n;
+        }
+        return true;
+    }
+
+    // ---- client side ----
+
+    private static byte[] header(int op, int size, int count) {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(op).putInt(size).putInt(count).array();
+    }
+
+    private static void sendHeader(RpmsgSocket s, boolean dgram, int op, int size, int count)
+            throws IOException {
+        byte[] h = header(op, size, count);
+        if (dgram) {
+            s.send(h, 0, h.length);
+        } else {
+            s.getOutputStream().write(h);
+        }
+    }
+
+    private int messagesFor(int size) {
+        return (int) Math.max(1, Math.min(bytesPerIteration / size, 1 << 20));
+    }
+
+    private Sink bulkWrite(int size) {
+        int count = messagesFor(size);
+        byte[] b = new byte[size];
+        return new Sink(false, size, count, (s, latencies) -> {
+            OutputStream out = s.getOutputStream();
+            for (int i = 0; i < count; i++) {
+                out.write(b, 0, size);
+            }
+            return count;
+        });
+    }
+
+    private Sink byteWrite() {
+        int count = (int) Math.min(bytesPerIteration / 64, 1 << 18);
+        return new Sink(false, 1, count, (s, latencies) -> {
+            OutputStream out = s.getOutputStream();
+            for (int i = 0; i < count; i++) {
+                out.write(i);
+            }
+            return count;
+        });
+    }
+
+    private Sink dgramWrite(int size) {
+        int count = messagesFor(size);
+        byte[] b = new byte[size];
+        return new Sink(true, size, count, (s, latencies) -> {
+            for (int i = 0; i < count; i++) {
+                s.send(b, 0, size);
+            }
+            return count;
+        });
+    }
+
+    private Body pingPong(int size, boolean dgram) {
+        byte[] b = new byte[size];
+        return (s, latencies) -> {
+            sendHeader(s, dgram, OP_ECHO, size, roundtrips);
+            InputStream in = dgram ? null : s.getInputStream();
+            OutputStream out = dgram ? null : s.getOutputStream();
+            for (int i = 0; i < roundtrips; i++) {
+                long start = System.nanoTime();
+                if (dgram) {
+                    s.send(b, 0, size);
+                    s.receive(b, 0, size);
+                } else {
+                    out.write(b, 0, size);
+                    if (!readFully(in, b, size)) {
+                        throw new IOException("server closed");
+                    }
+                }
+                latencies[i] = System.nanoTime() - start;
+            }
+            return roundtrips;
+        };
+    }
+
+    /**
+     * Runs the warmup and measured iterations of a benchmark.
+     *
+     * @param body what each thread runs per iteration
+     * @param sharedSink non-null to run all threads on one connection: the
+     * threads only send the messages of this sink, its header and reply are
+     * handled once per iteration around them
+     */
+    private Result measure(Body body, Sink sharedSink, int sockType, int nThreads, int size,
+            boolean latency) throws Exception {
+        String socketName = sockType == RpmsgSocket.SOCKET_DGRAM ? name + "-dgram" : name;
+        RpmsgSocket[] sockets = new RpmsgSocket[sharedSink != null ? 1 : nThreads];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = new RpmsgSocket(sockType, transport);
+            sockets[i].connect(new RpmsgSocketAddress(cpu, socketName));
+        }
+        if (sharedSink != null) {
+            body = sharedSink.messages;
+        }
+        final Body threadBody = body;
+
+        Result result = new Result();
+        List<long[]> latencies = new ArrayList<>();
+        try {
+            for (int iter = 0; iter < warmup + iterations; iter++) {
+                boolean measured = iter >= warmup;
+                long[] messages = new long[nThreads];
+                long[][] iterLatencies = new long[nThreads][];
+                IOException[] errors = new IOException[nThreads];
+                CyclicBarrier barrier = new CyclicBarrier(nThreads + 1);
+                Thread[] workers = new Thread[nThreads];
+                for (int t = 0; t < nThreads; t++) {
+                    final int id = t;
+                    iterLatencies[t] = latency ? new long[roundtrips] : null;
+                    workers[t] = new Thread(() -> {
+                        try {
+                            barrier.await();
+                            messages[id] = threadBody.run(sockets[id % sockets.length],
+                                    iterLatencies[id]);
+                        } catch (IOException e) {
+                            errors[id] = e;
+                        } catch (Exception e) {
+                            errors[id] = new IOException(e);
+                        }
+                    }, "CpcSocketBench-" + t);
+                    workers[t].start();
+                }
+
+                long syscallsBefore = readSyscalls();
+                long start = System.nanoTime();
+                if (sharedSink != null) {
+                    sharedSink.begin(sockets[0], nThreads);
+                }
+                barrier.await();
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                for (IOException e : errors) {
+                    if (e != null) {
+                        throw e;
+                    }
+                }
+                if (sharedSink != null) {
+                    sharedSink.end(sockets[0]);
+                }
+                long nanos = System.nanoTime() - start;
+                long syscallsAfter = readSyscalls();
+
+                if (measured) {
+                    result.nanos += nanos;
+                    if (syscallsBefore < 0 || syscallsAfter < 0 || result.syscalls < 0) {
+                        result.syscalls = -1;
+                    } else {
+                        result.syscalls += syscallsAfter - syscallsBefore;
+                    }
+                    for (int t = 0; t < nThreads; t++) {
+                        result.messages += messages[t];
+                        result.bytes += messages[t] * size;
+                        if (latency) {
+                            latencies.add(iterLatencies[t]);
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (RpmsgSocket s : sockets) {
+                s.close();
+            }
+        }
+
+        if (latency) {
+            int total = 0;
+            for (long[] l : latencies) {
+                total += l.length;
+            }
+            result.latencies = new long[total];
+            int pos = 0;
+            for (long[] l : latencies) {
+                System.arraycopy(l, 0, result.latencies, pos, l.length);
+                pos += l.length;
+            }
+            Arrays.sort(result.latencies);
+        }
+        return result;
+    }
+
+    /** read and write syscalls made by this process so far, -1 if unknown */
+    private static long readSyscalls() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/io"))) {
+            long count = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("syscr:") || line.startsWith("syscw:")) {
+                    count += Long.parseLong(line.substring(6).trim());
+                }
+            }
+            return count;
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private void report(String benchmark, int size, int nThreads, Result r) {
+        double seconds = r.nanos / 1e9;
+        String syscalls = r.syscalls < 0 ? "n/a"
+                : String.format("%.2f", (double) r.syscalls / r.messages);
+        StringBuilder sb = new StringBuilder(String.format("%-20s %7d %7d %12.0f %10.2f %10s",
+                benchmark, size, nThreads, r.messages / seconds, r.bytes / seconds / (1 << 20),
+                syscalls));
+        if (r.latencies != null) {
+            sb.append(String.format(" %9.1f %9.1f %9.1f %9.1f",
+                    percentile(r.latencies, 50) / 1e3, percentile(r.latencies, 90) / 1e3,
+                    percentile(r.latencies, 99) / 1e3, percentile(r.latencies, 99.9) / 1e3));
+        }
+        System.out.println(sb);
+    }
+
+    private boolean selected(String benchmark) {
+        return benchmark.startsWith(filter);
+    }
+
+    private void run(String benchmark, Body body, int sockType, int size, int nThreads,
+            boolean latency) {
+        run(benchmark, body, null, sockType, size, nThreads, latency);
+    }
+
+    /**
+     * Runs a sink benchmark, on one shared connection with --shared. Round
+     * trip benchmarks always get a connection per thread, replies could not
+     * be matched to their thread otherwise.
+     */
+    private void run(String benchmark, Sink sink, int sockType, int nThreads) {
+        if (shared) {
+            run(benchmark + ".shared", null, sink, sockType, sink.size, nThreads, false);
+        } else {
+            run(benchmark, sink.body(), null, sockType, sink.size, nThreads, false);
+        }
+    }
+
+    private void run(String benchmark, Body body, Sink sharedSink, int sockType, int size,
+            int nThreads, boolean latency) {
+        if (!selected(benchmark)) {
+            return;
+        }
+        try {
+            report(benchmark, size, nThreads,
+                    measure(body, sharedSink, sockType, nThreads, size, latency));
+        } catch (Exception e) {
+            System.out.println(benchmark + " size " + size + " threads " + nThreads
+                    + " failed: " + e);
+        }
+    }
+
+    private void runAll() throws IOException {
+        if (transport == RpmsgTransport.LOCAL) {
+            startServer(RpmsgSocket.SOCKET_STREAM, true);
+            startServer(RpmsgSocket.SOCKET_DGRAM, true);
+        }
+
+        System.out.println("transport " + transport + ", " + warmup + " warmup + "
+                + iterations + " measured iterations");
+        System.out.println(String.format("%-20s %7s %7s %12s %10s %10s %9s %9s %9s %9s",
+                "benchmark", "size", "threads", "msgs/s", "MiB/s", "syscall/msg",
+                "p50 us", "p90 us", "p99 us", "p99.9 us"));
+
+        for (int nThreads : threads) {
+            run("stream.write.byte", byteWrite(), RpmsgSocket.SOCKET_STREAM, nThreads);
+            for (int size : sizes) {
+                run("stream.write.bulk", bulkWrite(size), RpmsgSocket.SOCKET_STREAM, nThreads);
+            }
+            for (int size : sizes) {
+                run("stream.latency", pingPong(size, false), RpmsgSocket.SOCKET_STREAM, size,
+                        nThreads, true);
+            }
+            for (int size : sizes) {
+                if (size > MAX_DGRAM_SIZE) {
+                    continue;
+                }
+                run("dgram.write", dgramWrite(size), RpmsgSocket.SOCKET_DGRAM, nThreads);
+            }
+            for (int size : sizes) {
+                if (size > MAX_DGRAM_SIZE) {
+                    continue;
+                }
+                run("dgram.latency", pingPong(size, true), RpmsgSocket.SOCKET_DGRAM, size,
+                        nThreads, true);
+            }
+        }
+    }
+
+    private static int[] parseList(String value) {
+        String[] parts = value.split(",");
+        int[] list = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            list[i] = Integer.parseInt(parts[i].trim());
+        }
+        return list;
+    }
+
+    public static void main(String[] args) {
+        CpcSocketBench bench = new CpcSocketBench();
+        boolean server = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("server")) {
+                    server = true;
+                    continue;
+                }
+                if (arg.equals("--shared")) {
+                    bench.shared = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--transport":
+                        bench.transport = RpmsgTransport.forName(value);
+                        if (bench.transport == null) {
+                            throw new IllegalArgumentException("unknown transport " + value);
+                        }
+                        break;
+                    case "--cpu":
+                        bench.cpu = value;
+                        break;
+                    case "--name":
+                        bench.name = value;
+                        break;
+                    case "--sizes":
+                        bench.sizes = parseList(value);
+                        break;
+                    case "--threads":
+                        bench.threads = parseList(value);
+                        break;
+                    case "--warmup":
+                        bench.warmup = Integer.parseInt(value);
+                        break;
+                    case "--iterations":
+                        bench.iterations = Integer.parseInt(value);
+                        break;
+                    case "--bytes":
+                        bench.bytesPerIteration = Long.parseLong(value);
+                        break;
+                    case "--roundtrips":
+                        bench.roundtrips = Integer.parseInt(value);
+                        break;
+                    case "--filter":
+                        bench.filter = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: CpcSocketBench [--transport local|rpmsg] [--cpu NAME]"
+                    + " [--name NAME] [--sizes N,..] [--threads N,..] [--shared] [--warmup N]"
+                    + " [--iterations N] [--bytes N] [--roundtrips N] [--filter PREFIX]"
+                    + " [server]");
+            return;
+        }
+
+        try {
+            if (server) {
+                bench.startServer(RpmsgSocket.SOCKET_STREAM, false);
+                bench.startServer(RpmsgSocket.SOCKET_DGRAM, false);
+            } else {
+                bench.runAll();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -16,14 +16,36 @@
 
 package android.net;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.test.MoreAsserts;
 
 import androidx.test.filters.SmallTest;
 
 import junit.framework.TestCase;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
 
 public class CpcSocketTest {
 
@@ -73,18 +95,1272 @@ public class CpcSocketTest {
         ls.close();
     }
 
+    public void testConnectTimeout() throws Exception {
+        RpmsgSocket ls = new RpmsgSocket();
+        long start = System.currentTimeMillis();
+        try {
+            ls.connect(new RpmsgSocketAddress("ap", "nobody"), 500);
+            TestCase.fail("connected to an endpoint nobody listens on");
+        } catch (SocketTimeoutException e) {
+            TestCase.assertTrue(System.currentTimeMillis() - start < 5000);
+            TestCase.assertTrue(ls.isClosed());
+        }
+
+        ls = new RpmsgSocket();
+        try {
+            ls.connectAsync(new RpmsgSocketAddress("ap", "nobody"), 500).get();
+            TestCase.fail("connected to an endpoint nobody listens on");
+        } catch (ExecutionException e) {
+            TestCase.assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    public void testLoopback() throws Exception {
+        RpmsgServerSocket ss = new RpmsgServerSocket("hello", RpmsgTransport.LOCAL);
+        Thread server = new Thread(() -> {
+            try {
+                RpmsgSocket ls = ss.accept();
+                byte[] buffer = new byte[16];
+                int count = ls.getInputStream().read(buffer, 0, 16);
+                ls.getOutputStream().write(buffer, 0, count);
+                ls.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+
+        RpmsgSocket ls = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM, RpmsgTransport.LOCAL);
+        ls.connect(new RpmsgSocketAddress("ap", "hello"));
+
+        byte[] src_buffer = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            src_buffer[i] = (byte) i;
+        }
+        ls.getOutputStream().write(src_buffer, 0, 16);
+
+        byte[] dst_buffer = new byte[16];
+        int countRead = ls.getInputStream().read(dst_buffer, 0, 16);
+        TestCase.assertEquals(16, countRead);
+        MoreAsserts.assertEquals(dst_buffer, src_buffer);
+
+        RpmsgSocketMetrics metrics = ls.getMetrics();
+        TestCase.assertEquals(16, metrics.getBytesWritten());
+        TestCase.assertEquals(16, metrics.getBytesRead());
+        TestCase.assertTrue(RpmsgSocketMetrics.getAll().size() >= 2);
+
+        ls.close();
+        server.join();
+        ss.close();
+    }
+
+    /**
+     * Connects a stream socket to a fresh server socket in this process and
+     * accepts it; connect returns as soon as the connection is queued, so no
+     * server thread is needed.
+     *
+     * @return the connecting socket and the accepted one
+     */
+    private static RpmsgSocket[] connectPair(String name) throws IOException {
+        RpmsgServerSocket ss = new RpmsgServerSocket(name);
+        try {
+            RpmsgSocket client = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM);
+            client.connect(new RpmsgSocketAddress("ap", name));
+            return new RpmsgSocket[] { client, ss.accept() };
+        } finally {
+            ss.close();
+        }
+    }
+
+    public void testByteBuffer() throws Exception {
+        RpmsgSocket[] pair = connectPair("bytebuffer");
+        RpmsgSocket client = pair[0];
+        RpmsgSocket server = pair[1];
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        for (int i = 0; i < 16; i++) {
+            direct.put((byte) i);
+        }
+        direct.flip();
+        direct.position(4);
+        TestCase.assertEquals(12, client.write(direct));
+        TestCase.assertFalse(direct.hasRemaining());
+
+        // A heap buffer with an array offset, and a read-only one.
+        ByteBuffer heap = ByteBuffer.wrap(new byte[] { 0, 16, 17, 18 }, 1, 3).slice();
+        TestCase.assertEquals(3, client.write(heap));
+        ByteBuffer readOnly = ByteBuffer.wrap(new byte[] { 19 }).asReadOnlyBuffer();
+        TestCase.assertEquals(1, client.write(readOnly));
+        TestCase.assertEquals(1, readOnly.position());
+
+        ByteBuffer in = ByteBuffer.allocateDirect(16);
+        int total = 0;
+        while (total < 16) {
+            total += server.read(in);
+        }
+        in.flip();
+        for (int i = 4; i < 20; i++) {
+            TestCase.assertEquals(i, in.get());
+        }
+
+        // Only the remaining space is filled.
+        client.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        ByteBuffer small = ByteBuffer.allocate(8);
+        small.position(6);
+        TestCase.assertEquals(2, server.read(small));
+        TestCase.assertEquals(8, small.position());
+        TestCase.assertEquals(1, small.get(6));
+
+        try {
+            server.read(ByteBuffer.allocate(1).asReadOnlyBuffer());
+            TestCase.fail("read into a read-only buffer");
+        } catch (ReadOnlyBufferException e) {
+            // expected
+        }
+
+        client.close();
+        ByteBuffer rest = ByteBuffer.allocate(8);
+        TestCase.assertEquals(1, server.read(rest));
+        TestCase.assertEquals(-1, server.read(rest));
+        server.close();
+    }
+
+    public void testSelector() throws Exception {
+        RpmsgSocket[] pair = connectPair("selector");
+        RpmsgSocketChannel client = new RpmsgSocketChannel(pair[0]);
+        RpmsgSocketChannel server = new RpmsgSocketChannel(pair[1]);
+        server.configureBlocking(false);
+
+        // Nothing queued: the channel reports zero bytes, the stream a timeout.
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        TestCase.assertEquals(0, server.read(buffer));
+        try {
+            server.socket().getInputStream().read();
+            TestCase.fail("non-blocking read returned without data");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+
+        RpmsgSelector selector = RpmsgSelector.open();
+        RpmsgSelectionKey key = server.register(selector, RpmsgSelectionKey.OP_READ, null);
+        TestCase.assertEquals(0, selector.selectNow());
+
+        client.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        TestCase.assertEquals(1, selector.select(1000));
+        TestCase.assertTrue(selector.selectedKeys().contains(key));
+        TestCase.assertTrue(key.isReadable());
+        TestCase.assertEquals(3, server.read(buffer));
+        selector.selectedKeys().clear();
+
+        // Closing wakes a thread blocked in select and waits for it.
+        CountDownLatch selecting = new CountDownLatch(1);
+        Thread selector_thread = new Thread(() -> {
+            try {
+                selecting.countDown();
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        selector_thread.start();
+        selecting.await();
+        Thread.sleep(100);
+        selector.close();
+        selector_thread.join(1000);
+        TestCase.assertFalse(selector_thread.isAlive());
+        TestCase.assertFalse(key.isValid());
+        TestCase.assertFalse(selector.isOpen());
+        TestCase.assertTrue(server.isOpen());
+
+        client.close();
+        server.close();
+    }
+
+    public void testAcceptBackoff() throws Exception {
+        RpmsgEventLoopGroup group = new RpmsgEventLoopGroup(1);
+        CountDownLatch accepted = new CountDownLatch(1);
+        RpmsgEventServer server = new RpmsgEventServer(
+                new RpmsgServerSocketChannel(
+                        new RpmsgServerSocket("backoff")),
+                group, new RpmsgEventServer.Handler() {
+                    @Override
+                    public void onAccepted(RpmsgEventServer.Connection connection) {
+                        accepted.countDown();
+                    }
+
+                    @Override
+                    public void onReadable(RpmsgEventServer.Connection connection) {
+                    }
+                });
+        // Open the client's descriptor now, connect() then needs none and
+        // only the server's accept runs into the full table.
+        RpmsgSocket ls = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM);
+        ls.getOutputStream();
+
+        // Use up the descriptor table so that accept fails with EMFILE. The
+        // whole process is short of descriptors meanwhile, so the table is
+        // given back soon after the first failure.
+        ArrayList<FileInputStream> hogs = new ArrayList<>();
+        try {
+            for (;;) {
+                hogs.add(new FileInputStream("/dev/null"));
+            }
+        } catch (IOException e) {
+            // table full
+        }
+        try {
+            ls.connect(new RpmsgSocketAddress("ap", "backoff"));
+            long deadline = System.currentTimeMillis() + 2000;
+            while (server.getAcceptFailures() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // Long enough for a spinning accept loop to show.
+            Thread.sleep(300);
+        } finally {
+            for (int i = 0; i < hogs.size(); i++) {
+                hogs.get(i).close();
+            }
+        }
+
+        // A handful of retries, not a loop spinning on the readable socket.
+        int failures = server.getAcceptFailures();
+        TestCase.assertTrue(failures >= 1);
+        TestCase.assertTrue("accept retried " + failures + " times", failures < 10);
+
+        // Accepting resumes once descriptors are available again.
+        TestCase.assertTrue(accepted.await(5, TimeUnit.SECONDS));
+        TestCase.assertEquals(1, server.getConnectionCount());
+
+        ls.close();
+        server.close();
+        group.close();
+    }
+
+    public void testVectored() throws Exception {
+        RpmsgSocket[] pair = connectPair("vectored");
+        RpmsgSocket client = pair[0];
+        RpmsgSocket server = pair[1];
+
+        // Heap, direct and read-only sources, only the middle three are used.
+        ByteBuffer skipped = ByteBuffer.wrap(new byte[] { 9, 9 });
+        ByteBuffer header = ByteBuffer.wrap(new byte[] { 0, 1, 2, 3 });
+        ByteBuffer body = ByteBuffer.allocateDirect(6);
+        for (int i = 0; i < 6; i++) {
+            body.put((byte) (4 + i));
+        }
+        body.flip();
+        ByteBuffer trailer = ByteBuffer.wrap(new byte[] { 10, 11 }).asReadOnlyBuffer();
+        ByteBuffer[] srcs = { skipped, header, body, trailer, skipped };
+        TestCase.assertEquals(12, client.write(srcs, 1, 3));
+        TestCase.assertFalse(header.hasRemaining());
+        TestCase.assertFalse(body.hasRemaining());
+        TestCase.assertFalse(trailer.hasRemaining());
+        TestCase.assertEquals(2, skipped.remaining());
+
+        // Scattered in order, the partly filled first buffer keeps its head.
+        ByteBuffer first = ByteBuffer.allocate(5);
+        first.put((byte) 42);
+        ByteBuffer second = ByteBuffer.allocateDirect(3);
+        ByteBuffer third = ByteBuffer.allocate(16);
+        long count = 0;
+        while (count < 12) {
+            count += server.read(new ByteBuffer[] { first, second, third });
+        }
+        TestCase.assertEquals(12, count);
+        TestCase.assertEquals(5, first.position());
+        TestCase.assertEquals(3, second.position());
+        TestCase.assertEquals(5, third.position());
+        byte[] received = new byte[12];
+        first.flip();
+        first.get();
+        first.get(received, 0, 4);
+        second.flip();
+        second.get(received, 4, 3);
+        third.flip();
+        third.get(received, 7, 5);
+        for (int i = 0; i < 12; i++) {
+            TestCase.assertEquals(i, received[i]);
+        }
+
+        // No room left reads nothing, it is not end of stream.
+        TestCase.assertEquals(0, server.read(new ByteBuffer[] { ByteBuffer.allocate(0), first }));
+
+        try {
+            server.read(new ByteBuffer[] { ByteBuffer.allocate(1).asReadOnlyBuffer() });
+            TestCase.fail("read into a read-only buffer");
+        } catch (ReadOnlyBufferException e) {
+            // expected
+        }
+        try {
+            client.write(srcs, 4, 2);
+            TestCase.fail("wrote past the end of the array");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+
+        client.shutdownOutput();
+        TestCase.assertEquals(-1, server.read(new ByteBuffer[] { ByteBuffer.allocate(4) }));
+
+        client.close();
+        server.close();
+    }
+
+    public void testDatagram() throws Exception {
+        RpmsgServerSocket ss = new RpmsgServerSocket("dgram", RpmsgSocket.SOCKET_DGRAM);
+        RpmsgSocket client = new RpmsgSocket(RpmsgSocket.SOCKET_DGRAM);
+        client.connect(new RpmsgSocketAddress("ap", "dgram"));
+        RpmsgSocket server = ss.accept();
+        ss.close();
+
+        byte[] message = new byte[10];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+
+        // A short buffer gets the head, the return value the full length.
+        TestCase.assertEquals(10, client.send(message, 0, 10));
+        byte[] head = new byte[4];
+        TestCase.assertEquals(10, server.receive(head, 0, 4));
+        MoreAsserts.assertEquals(Arrays.copyOf(message, 4), head);
+
+        TestCase.assertEquals(8, client.send(ByteBuffer.wrap(message, 0, 8)));
+        ByteBuffer dst = ByteBuffer.allocateDirect(5);
+        TestCase.assertEquals(8, server.receive(dst));
+        TestCase.assertEquals(5, dst.position());
+
+        // Boundaries are kept, the tail of a truncated datagram is gone.
+        client.send(message, 0, 3);
+        client.send(message, 3, 3);
+        byte[] whole = new byte[16];
+        TestCase.assertEquals(3, server.receive(whole, 0, whole.length));
+        TestCase.assertEquals(3, server.receive(whole, 3, whole.length - 3));
+        MoreAsserts.assertEquals(Arrays.copyOf(message, 6), Arrays.copyOf(whole, 6));
+
+        // Would-block is zero, not end of stream.
+        RpmsgSocketChannel channel = new RpmsgSocketChannel(server);
+        channel.configureBlocking(false);
+        TestCase.assertEquals(0, server.receive(whole, 0, whole.length));
+        TestCase.assertEquals(0, server.receive(ByteBuffer.allocate(4)));
+
+        // Empty datagrams are refused, the peer would take them for end of stream.
+        try {
+            client.send(message, 0, 0);
+            TestCase.fail("sent an empty datagram");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        RpmsgSocket stream = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM);
+        try {
+            stream.receive(whole, 0, 1);
+            TestCase.fail("received on a stream socket");
+        } catch (IOException e) {
+            // expected
+        }
+        stream.close();
+
+        // The peer closing ends a blocked receive with end of stream.
+        channel.configureBlocking(true);
+        int[] received = new int[1];
+        Thread receiver = new Thread(() -> {
+            try {
+                received[0] = server.receive(whole, 0, whole.length);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        receiver.start();
+        Thread.sleep(100);
+        client.close();
+        receiver.join(5000);
+        TestCase.assertFalse(receiver.isAlive());
+        TestCase.assertEquals(-1, received[0]);
+        TestCase.assertEquals(-1, server.receive(ByteBuffer.allocate(4)));
+
+        server.close();
+    }
+
+    /**
+     * Reads exactly {@code len} bytes from a blocking socket.
+     */
+    private static byte[] readFully(RpmsgSocket socket, int len) throws IOException {
+        byte[] b = new byte[len];
+        int off = 0;
+        while (off < len) {
+            int count = socket.getInputStream().read(b, off, len - off);
+            if (count < 0) {
+                throw new IOException("end of stream after " + off + " bytes");
+            }
+            off += count;
+        }
+        return b;
+    }
+
+    public void testCoalescing() throws Exception {
+        RpmsgSocket[] pair = connectPair("coalesce");
+        RpmsgSocket client = pair[0];
+        RpmsgSocket server = pair[1];
+        RpmsgSocketChannel peer = new RpmsgSocketChannel(server);
+        ByteBuffer probe = ByteBuffer.allocate(256);
+        OutputStream out = client.getOutputStream();
+
+        // Small writes stay in the buffer and leave in one write(2) on flush.
+        client.setWriteBufferSize(64);
+        for (int i = 0; i < 10; i++) {
+            out.write(i);
+        }
+        peer.configureBlocking(false);
+        TestCase.assertEquals(0, peer.read(probe));
+        long writeCalls = client.getMetrics().getWriteCalls();
+        out.flush();
+        TestCase.assertEquals(writeCalls + 1, client.getMetrics().getWriteCalls());
+        peer.configureBlocking(true);
+        byte[] received = readFully(server, 10);
+        for (int i = 0; i < 10; i++) {
+            TestCase.assertEquals(i, received[i]);
+        }
+
+        // Reaching the threshold flushes.
+        client.setWriteFlushThreshold(8);
+        out.write(new byte[4]);
+        peer.configureBlocking(false);
+        TestCase.assertEquals(0, peer.read(probe));
+        out.write(new byte[4]);
+        peer.configureBlocking(true);
+        readFully(server, 8);
+
+        // Corked, the threshold is ignored until uncork.
+        client.cork();
+        out.write(new byte[16]);
+        peer.configureBlocking(false);
+        TestCase.assertEquals(0, peer.read(probe));
+        client.uncork();
+        peer.configureBlocking(true);
+        readFully(server, 16);
+
+        // A write that does not fit pushes out the buffer, even while corked.
+        client.cork();
+        out.write(new byte[40]);
+        out.write(new byte[40]);
+        readFully(server, 40);
+        peer.configureBlocking(false);
+        TestCase.assertEquals(0, peer.read(probe));
+        client.uncork();
+        peer.configureBlocking(true);
+        readFully(server, 40);
+
+        // Without a threshold, the delay bounds how long bytes wait.
+        client.setWriteFlushThreshold(0);
+        client.setWriteFlushDelay(50);
+        out.write(new byte[3]);
+        server.setSoTimeout(2000);
+        readFully(server, 3);
+
+        // Turning coalescing off flushes what is left.
+        client.setWriteFlushDelay(0);
+        out.write(new byte[5]);
+        client.setWriteBufferSize(0);
+        readFully(server, 5);
+
+        client.close();
+        server.close();
+    }
+
+    public void testReadAhead() throws Exception {
+        RpmsgSocket[] pair = connectPair("readahead");
+        RpmsgSocket client = pair[0];
+        RpmsgSocket server = pair[1];
+        InputStream in = server.getInputStream();
+        server.setReadAheadBufferSize(16);
+        server.setSoTimeout(1000);
+
+        // An empty read returns at once, even with nothing to read.
+        TestCase.assertEquals(0, in.read(new byte[4], 0, 0));
+
+        byte[] message = new byte[10];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        client.getOutputStream().write(message);
+
+        // The first byte pulls the whole message into the buffer.
+        TestCase.assertEquals(0, in.read());
+        long readCalls = server.getMetrics().getReadCalls();
+        TestCase.assertEquals(9, in.available());
+        byte[] b = new byte[32];
+        TestCase.assertEquals(3, in.read(b, 0, 3));
+        TestCase.assertEquals(0, in.read(b, 3, 0));
+        TestCase.assertEquals(readCalls, server.getMetrics().getReadCalls());
+
+        // A read larger than the refill size still drains the buffer first.
+        TestCase.assertEquals(6, in.read(b, 3, 29));
+        MoreAsserts.assertEquals(Arrays.copyOfRange(message, 1, 10), Arrays.copyOf(b, 9));
+
+        // Resizing or turning it off keeps what is buffered.
+        client.getOutputStream().write(message);
+        TestCase.assertEquals(0, in.read());
+        server.setReadAheadBufferSize(4);
+        TestCase.assertEquals(9, in.available());
+        server.setReadAheadBufferSize(0);
+        TestCase.assertEquals(1, in.read());
+        TestCase.assertEquals(8, in.read(b, 0, 32));
+        MoreAsserts.assertEquals(Arrays.copyOfRange(message, 2, 10), Arrays.copyOf(b, 8));
+        TestCase.assertEquals(0, in.available());
+
+        // End of stream through an empty buffer.
+        server.setReadAheadBufferSize(16);
+        client.shutdownOutput();
+        TestCase.assertEquals(-1, in.read());
+        TestCase.assertEquals(-1, in.read(b, 0, 4));
+
+        client.close();
+        server.close();
+    }
+
+    public void testConnectionPool() throws Exception {
+        RpmsgSocketAddress address = new RpmsgSocketAddress("ap", "pool");
+        TestCase.assertEquals(address, new RpmsgSocketAddress("ap", "pool"));
+        TestCase.assertEquals(address.hashCode(), new RpmsgSocketAddress("ap", "pool").hashCode());
+        TestCase.assertFalse(address.equals(new RpmsgSocketAddress("cp", "pool")));
+        TestCase.assertFalse(address.equals(new RpmsgSocketAddress("ap", "pool2")));
+        TestCase.assertEquals(new RpmsgSocketAddress("", "pool"), new RpmsgSocketAddress("pool"));
+
+        RpmsgServerSocket ss = new RpmsgServerSocket("pool");
+        List<RpmsgSocket> accepted = Collections.synchronizedList(new ArrayList<>());
+        // first, second, third, fourth and fifth below
+        Thread acceptor = new Thread(() -> {
+            try {
+                for (int i = 0; i < 5; i++) {
+                    accepted.add(ss.accept());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.start();
+
+        RpmsgConnectionPool pool = new RpmsgConnectionPool(1, 2, 100);
+
+        // A released connection is handed out again.
+        RpmsgSocket first = pool.acquire(address);
+        TestCase.assertEquals(1, pool.getActiveCount(address));
+        pool.release(first);
+        TestCase.assertEquals(0, pool.getActiveCount(address));
+        TestCase.assertEquals(1, pool.getIdleCount(address));
+        TestCase.assertSame(first, pool.acquire(address));
+
+        // The endpoint limit makes a bounded acquire time out.
+        RpmsgSocket second = pool.acquire(address);
+        TestCase.assertNotSame(first, second);
+        try {
+            pool.acquire(address, 100);
+            TestCase.fail("acquired past the endpoint limit");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // Only one idle connection is kept, the surplus is closed.
+        pool.release(first);
+        pool.release(second);
+        TestCase.assertEquals(1, pool.getIdleCount(address));
+        TestCase.assertTrue(second.isClosed());
+
+        // Leftover input from the peer fails the health check on borrow.
+        while (accepted.size() < 2) {
+            Thread.sleep(10);
+        }
+        accepted.get(0).getOutputStream().write(1);
+        Thread.sleep(50);
+        RpmsgSocket third = pool.acquire(address);
+        TestCase.assertNotSame(first, third);
+        TestCase.assertTrue(first.isClosed());
+
+        // Idle connections past the timeout are evicted.
+        pool.release(third);
+        Thread.sleep(150);
+        pool.evictIdle();
+        TestCase.assertEquals(0, pool.getIdleCount(address));
+        TestCase.assertTrue(third.isClosed());
+
+        // An invalidated connection is closed and frees its slot.
+        RpmsgSocket fourth = pool.acquire(address);
+        pool.invalidate(fourth);
+        TestCase.assertTrue(fourth.isClosed());
+        TestCase.assertEquals(0, pool.getActiveCount(address));
+
+        // SO_TIMEOUT is reset on release, a connection left coalescing is
+        // not pooled.
+        RpmsgSocket fifth = pool.acquire(address);
+        fifth.setSoTimeout(500);
+        pool.release(fifth);
+        TestCase.assertSame(fifth, pool.acquire(address));
+        TestCase.assertEquals(0, fifth.getSoTimeout());
+        fifth.setWriteBufferSize(64);
+        pool.release(fifth);
+        TestCase.assertTrue(fifth.isClosed());
+        TestCase.assertEquals(0, pool.getIdleCount(address));
+
+        pool.close();
+        try {
+            pool.acquire(address);
+            TestCase.fail("acquired from a closed pool");
+        } catch (IOException e) {
+            // expected
+        }
+
+        acceptor.join();
+        ss.close();
+        for (RpmsgSocket s : accepted) {
+            s.close();
+        }
+    }
+
+    /**
+     * Waits until {@code t} parks, so that a poller-mode call is known to be
+     * waiting on the poller rather than blocked in the kernel.
+     */
+    private static void awaitParked(Thread t) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (t.getState() != Thread.State.WAITING
+                && t.getState() != Thread.State.TIMED_WAITING) {
+            TestCase.assertTrue("thread never parked", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    public void testPollerMode() throws Exception {
+        RpmsgServerSocket ss = new RpmsgServerSocket("poller");
+        ss.setPollerMode(true);
+        RpmsgSocket[] accepted = new RpmsgSocket[1];
+        Thread acceptor = new Thread(() -> {
+            try {
+                accepted[0] = ss.accept();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.start();
+        awaitParked(acceptor);
+
+        // connect parks on the poller too, and leaves the socket blocking.
+        RpmsgSocket client = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM);
+        client.setPollerMode(true);
+        client.connect(new RpmsgSocketAddress("ap", "poller"), 1000);
+        TestCase.assertTrue(client.isConnected());
+        acceptor.join();
+        RpmsgSocket server = accepted[0];
+        TestCase.assertTrue(server.isPollerMode());
+
+        // A read with nothing to read parks until the peer writes.
+        byte[] received = new byte[4];
+        int[] count = new int[1];
+        Thread reader = new Thread(() -> {
+            try {
+                count[0] = server.getInputStream().read(received, 0, 4);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        reader.start();
+        awaitParked(reader);
+        client.getOutputStream().write(new byte[] { 1, 2, 3, 4 });
+        reader.join();
+        TestCase.assertEquals(4, count[0]);
+        MoreAsserts.assertEquals(new byte[] { 1, 2, 3, 4 }, received);
+
+        // SO_TIMEOUT bounds the whole call, not each park.
+        server.setSoTimeout(300);
+        long start = System.currentTimeMillis();
+        try {
+            server.getInputStream().read();
+            TestCase.fail("read returned without data");
+        } catch (SocketTimeoutException e) {
+            long elapsed = System.currentTimeMillis() - start;
+            TestCase.assertTrue("timed out after " + elapsed + "ms",
+                    elapsed >= 250 && elapsed < 2000);
+        }
+        server.setSoTimeout(0);
+
+        // A write into a full send buffer parks until the peer drains it.
+        final int size = 1024 * 1024;
+        client.setSendBufferSize(4096);
+        Thread writer = new Thread(() -> {
+            try {
+                client.getOutputStream().write(new byte[size]);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+        awaitParked(writer);
+        readFully(server, size);
+        writer.join();
+
+        client.close();
+        server.close();
+        ss.close();
+    }
+
+    public void testSendQueue() throws Exception {
+        final int producers = 4;
+        final int frames = 256;
+        final int frameSize = 64;
+        RpmsgServerSocket ss = new RpmsgServerSocket("sendq", RpmsgTransport.LOCAL);
+        int[] received = new int[1];
+        Thread server = new Thread(() -> {
+            try {
+                RpmsgSocket ls = ss.accept();
+                byte[] buffer = new byte[4096];
+                int count;
+                while ((count = ls.getInputStream().read(buffer, 0, buffer.length)) > 0) {
+                    received[0] += count;
+                }
+                ls.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+
+        RpmsgSocket ls = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM, RpmsgTransport.LOCAL);
+        ls.connect(new RpmsgSocketAddress("ap", "sendq"));
+        TestCase.assertNotNull(ls.setSendQueueEnabled(true));
+
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    byte[] frame = new byte[frameSize];
+                    for (int j = 0; j < frames; j++) {
+                        ls.getOutputStream().write(frame, 0, frameSize);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        ls.getOutputStream().flush();
+        RpmsgSendQueue queue = ls.getSendQueue();
+        TestCase.assertEquals(0, queue.getPendingFrames());
+        TestCase.assertNull(ls.setSendQueueEnabled(false));
+        // A producer still holding the old queue can't slip frames in.
+        try {
+            queue.enqueue(new byte[1], 0, 1);
+            TestCase.fail("enqueued into a disabled queue");
+        } catch (IOException e) {
+            // expected
+        }
+
+        ls.shutdownOutput();
+        server.join();
+        TestCase.assertEquals(producers * frames * frameSize, received[0]);
+        ls.close();
+        ss.close();
+
+        // A datagram queue refuses empty frames rather than spin on them.
+        RpmsgServerSocket dss = new RpmsgServerSocket("sendqdgram", RpmsgSocket.SOCKET_DGRAM,
+                RpmsgTransport.LOCAL);
+        RpmsgSocket client = new RpmsgSocket(RpmsgSocket.SOCKET_DGRAM, RpmsgTransport.LOCAL);
+        client.connect(new RpmsgSocketAddress("ap", "sendqdgram"));
+        RpmsgSocket peer = dss.accept();
+        RpmsgSendQueue dqueue = client.setSendQueueEnabled(true);
+        try {
+            dqueue.enqueue(ByteBuffer.allocate(0));
+            TestCase.fail("enqueued an empty datagram");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        dqueue.enqueue(new byte[3], 0, 3);
+        dqueue.flush();
+        TestCase.assertEquals(0, dqueue.getPendingFrames());
+        TestCase.assertEquals(3, peer.receive(new byte[8], 0, 8));
+        client.close();
+        peer.close();
+        dss.close();
+    }
+
+    public void testBackpressure() throws Exception {
+        final int frameSize = 4096;
+        final int frames = 64;
+        RpmsgServerSocket ss = new RpmsgServerSocket("backpressure", RpmsgTransport.LOCAL);
+        CountDownLatch drain = new CountDownLatch(1);
+        int[] received = new int[1];
+        Thread server = new Thread(() -> {
+            try {
+                RpmsgSocket ls = ss.accept();
+                drain.await();
+                byte[] buffer = new byte[frameSize];
+                int count;
+                while ((count = ls.getInputStream().read(buffer, 0, buffer.length)) > 0) {
+                    received[0] += count;
+                }
+                ls.close();
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+
+        RpmsgSocket ls = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM, RpmsgTransport.LOCAL);
+        ls.connect(new RpmsgSocketAddress("ap", "backpressure"));
+        ls.setSendBufferSize(frameSize);
+        TestCase.assertTrue(ls.getSendBufferSize() >= frameSize);
+        ls.setReceiveBufferSize(frameSize);
+        TestCase.assertTrue(ls.getReceiveBufferSize() >= frameSize);
+
+        RpmsgSendQueue queue = ls.setSendQueueEnabled(true);
+        queue.setWaterMarks(4 * frameSize, 8 * frameSize);
+        List<Boolean> changes = Collections.synchronizedList(new ArrayList<>());
+        queue.setWritabilityListener(Runnable::run, (q, writable) -> changes.add(writable));
+
+        byte[] frame = new byte[frameSize];
+        for (int i = 0; i < frames; i++) {
+            ls.getOutputStream().write(frame, 0, frameSize);
+        }
+        TestCase.assertFalse(queue.isWritable());
+        TestCase.assertFalse(queue.awaitWritable(10));
+
+        drain.countDown();
+        TestCase.assertTrue(queue.awaitWritable(5000));
+        ls.getOutputStream().flush();
+        TestCase.assertTrue(queue.isWritable());
+        TestCase.assertEquals(Arrays.asList(false, true), changes);
+
+        ls.setBufferAutoTuning(4 * frameSize);
+        ls.setBufferAutoTuning(0);
+        ls.shutdownOutput();
+        server.join();
+        TestCase.assertEquals(frames * frameSize, received[0]);
+        ls.close();
+        ss.close();
+    }
+
+    public void testFlow() throws Exception {
+        final int items = 64;
+        final int itemSize = 1024;
+        RpmsgServerSocket ss = new RpmsgServerSocket("flow", RpmsgTransport.LOCAL);
+        Thread server = new Thread(() -> {
+            try {
+                RpmsgSocket ls = ss.accept();
+                RpmsgSocketSubscriber subscriber = new RpmsgSocketSubscriber(ls);
+                try (SubmissionPublisher<ByteBuffer> source = new SubmissionPublisher<>()) {
+                    source.subscribe(subscriber);
+                    for (int i = 0; i < items; i++) {
+                        source.submit(ByteBuffer.allocate(itemSize));
+                    }
+                }
+                subscriber.getCompletion().get();
+                ls.close();
+            } catch (IOException | InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+
+        RpmsgSocket ls = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM, RpmsgTransport.LOCAL);
+        ls.connect(new RpmsgSocketAddress("ap", "flow"));
+        RpmsgSocketPublisher publisher = new RpmsgSocketPublisher(ls);
+        CompletableFuture<Long> total = new CompletableFuture<>();
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            private Flow.Subscription subscription;
+            private long received;
+
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription = s;
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                received += item.remaining();
+                publisher.release(item);
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                total.completeExceptionally(t);
+            }
+
+            @Override
+            public void onComplete() {
+                total.complete(received);
+            }
+        });
+        TestCase.assertEquals(items * itemSize, total.get().longValue());
+        server.join();
+
+        CompletableFuture<Throwable> second = new CompletableFuture<>();
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                second.complete(t);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        TestCase.assertTrue(second.get() instanceof IllegalStateException);
+        ls.close();
+        ss.close();
+    }
+
+    public void testFraming() throws Exception {
+        final int frames = 64;
+        RpmsgServerSocket ss = new RpmsgServerSocket("frames", RpmsgTransport.LOCAL);
+        Thread server = new Thread(() -> {
+            try {
+                RpmsgSocket ls = ss.accept();
+                RpmsgFrameCodec codec = new RpmsgFrameCodec(ls);
+                ByteBuffer frame;
+                while ((frame = codec.readFrame()) != null) {
+                    codec.writeFrame(frame);
+                    codec.release(frame);
+                }
+                ls.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+
+        RpmsgSocket ls = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM, RpmsgTransport.LOCAL);
+        ls.connect(new RpmsgSocketAddress("ap", "frames"));
+        RpmsgFrameCodec codec = new RpmsgFrameCodec(ls);
+
+        // Sizes straddle the receive buffer, so both the copy and the
+        // scatter paths are taken.
+        for (int i = 0; i < frames; i++) {
+            byte[] payload = new byte[i * 257];
+            for (int j = 0; j < payload.length; j++) {
+                payload[j] = (byte) (i + j);
+            }
+            codec.writeFrame(payload, 0, payload.length);
+
+            ByteBuffer echo = codec.readFrame();
+            TestCase.assertNotNull(echo);
+            byte[] received = new byte[echo.remaining()];
+            echo.get(received);
+            codec.release(echo);
+            MoreAsserts.assertEquals(payload, received);
+        }
+        TestCase.assertEquals(frames, codec.getFramesRead());
+        TestCase.assertEquals(frames, codec.getFramesWritten());
+        TestCase.assertEquals(codec.getPayloadBytesRead(), codec.getPayloadBytesWritten());
+        TestCase.assertEquals((frames - 1) * 257, codec.getLargestFrameRead());
+
+        try {
+            codec.writeFrame(new byte[codec.getMaxFrameSize() + 1], 0,
+                    codec.getMaxFrameSize() + 1);
+            TestCase.fail("oversized frame written");
+        } catch (IllegalArgumentException e) {
+            TestCase.assertEquals(1, codec.getOversizedFrames());
+        }
+
+        ls.shutdownOutput();
+        TestCase.assertNull(codec.readFrame());
+        server.join();
+        ls.close();
+        ss.close();
+    }
+
+    public void testTransfer() throws Exception {
+        final int size = 1024 * 1024 + 17;
+        File in = File.createTempFile("rpmsg", ".in");
+        File out = File.createTempFile("rpmsg", ".out");
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        try (FileOutputStream fos = new FileOutputStream(in)) {
+            fos.write(content);
+        }
+
+        RpmsgServerSocket ss = new RpmsgServerSocket("transfer", RpmsgTransport.LOCAL);
+        long[] received = new long[1];
+        Thread server = new Thread(() -> {
+            try (RandomAccessFile raf = new RandomAccessFile(out, "rw")) {
+                RpmsgSocket ls = ss.accept();
+                received[0] = ls.transferTo(raf.getFD(), 0, size + 1);
+                ls.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+
+        RpmsgSocket ls = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM, RpmsgTransport.LOCAL);
+        ls.connect(new RpmsgSocketAddress("ap", "transfer"));
+        try (FileInputStream fis = new FileInputStream(in)) {
+            TestCase.assertEquals(size, ls.transferFrom(fis.getFD(), 0, size + 1));
+        }
+        ls.shutdownOutput();
+        server.join();
+
+        // The peer ended the stream before count, only the file was sent.
+        TestCase.assertEquals(size, received[0]);
+        byte[] copy = new byte[size];
+        try (FileInputStream fis = new FileInputStream(out)) {
+            int off = 0;
+            while (off < size) {
+                off += fis.read(copy, off, size - off);
+            }
+        }
+        MoreAsserts.assertEquals(content, copy);
+
+        ls.close();
+        ss.close();
+        in.delete();
+        out.delete();
+    }
+
+    public void testRing() throws Exception {
+        final int size = 8 * 1024 * 1024;
+        final int capacity = 64 * 1024;
+        RpmsgServerSocket ss = new RpmsgServerSocket("ring", RpmsgTransport.LOCAL);
+        RpmsgSocket[] accepted = new RpmsgSocket[1];
+        Thread acceptor = new Thread(() -> {
+            try {
+                accepted[0] = ss.accept();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.start();
+        RpmsgSocket ls = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM, RpmsgTransport.LOCAL);
+        ls.connect(new RpmsgSocketAddress("ap", "ring"));
+        acceptor.join();
+
+        // Both ends live in this process, the peer gets its own descriptor.
+        RpmsgRingChannel writer = RpmsgRingChannel.create(ls, capacity);
+        RpmsgRingChannel reader = RpmsgRingChannel.attach(accepted[0],
+                Os.dup(writer.getSharedMemory()), RpmsgRingChannel.regionSize(capacity));
+        TestCase.assertEquals(capacity, reader.getCapacity());
+
+        // The region is sealed, neither peer can shrink it under the other.
+        try {
+            Os.ftruncate(writer.getSharedMemory(), 0);
+            TestCase.fail("sealed region shrunk");
+        } catch (ErrnoException e) {
+            TestCase.assertEquals(OsConstants.EPERM, e.errno);
+        }
+        // A region without rings laid out is refused.
+        File plain = File.createTempFile("rpmsg", ".ring");
+        try (RandomAccessFile raf = new RandomAccessFile(plain, "rw")) {
+            raf.setLength(RpmsgRingChannel.regionSize(capacity));
+            RpmsgRingChannel.attach(accepted[0], raf.getFD(),
+                    RpmsgRingChannel.regionSize(capacity));
+            TestCase.fail("empty region attached");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            plain.delete();
+        }
+
+        Thread producer = new Thread(() -> {
+            try {
+                byte[] chunk = new byte[3000];
+                for (int sent = 0; sent < size; sent += chunk.length) {
+                    int len = Math.min(chunk.length, size - sent);
+                    for (int i = 0; i < len; i++) {
+                        chunk[i] = (byte) (sent + i);
+                    }
+                    writer.getOutputStream().write(chunk, 0, len);
+                }
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        producer.start();
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(5000);
+        long received = 0;
+        int count;
+        while ((count = reader.read(dst)) >= 0) {
+            dst.flip();
+            for (int i = 0; i < count; i++) {
+                TestCase.assertEquals((byte) (received + i), dst.get(i));
+            }
+            received += count;
+            dst.clear();
+        }
+        producer.join();
+        TestCase.assertEquals(size, received);
+
+        reader.close();
+        ss.close();
+    }
+
+    public void testPassFileDescriptors() throws Exception {
+        File file = File.createTempFile("rpmsg", ".fd");
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write("passed".getBytes());
+        }
+
+        RpmsgServerSocket ss = new RpmsgServerSocket("fdpass", RpmsgTransport.LOCAL);
+        String[] content = new String[1];
+        int[] ringByte = new int[1];
+        Thread server = new Thread(() -> {
+            try {
+                RpmsgSocket ls = ss.accept();
+                // Two sets arrive before they are fetched, neither is lost.
+                byte[] buffer = new byte[2];
+                int received = 0;
+                while (received < buffer.length) {
+                    received += ls.getInputStream().read(buffer, received,
+                            buffer.length - received);
+                }
+                FileDescriptor[] fds = ls.getAncillaryFileDescriptors();
+                TestCase.assertEquals(2, fds.length);
+                TestCase.assertNull(ls.getAncillaryFileDescriptors());
+                try (FileInputStream fis = new FileInputStream(fds[0])) {
+                    byte[] b = new byte[16];
+                    content[0] = new String(b, 0, fis.read(b));
+                }
+                Os.close(fds[1]);
+
+                // ByteBuffer reads pick them up as well.
+                TestCase.assertEquals(1, ls.read(ByteBuffer.allocateDirect(1)));
+                fds = ls.getAncillaryFileDescriptors();
+                TestCase.assertEquals(1, fds.length);
+                Os.close(fds[0]);
+
+                // The peer can't make accept() map anything but a sealed memfd.
+                try {
+                    RpmsgRingChannel.accept(ls);
+                    TestCase.fail("plain file accepted as ring region");
+                } catch (IOException e) {
+                    // expected
+                }
+
+                RpmsgRingChannel ring = RpmsgRingChannel.accept(ls);
+                ringByte[0] = ring.getInputStream().read();
+                ring.close();
+            } catch (IOException | ErrnoException e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+
+        RpmsgSocket ls = new RpmsgSocket(RpmsgSocket.SOCKET_STREAM, RpmsgTransport.LOCAL);
+        ls.connect(new RpmsgSocketAddress("ap", "fdpass"));
+        try (FileInputStream fis = new FileInputStream(file)) {
+            ls.setFileDescriptorsForSend(new FileDescriptor[] { fis.getFD() });
+            ls.getOutputStream().write(1);
+            ls.setFileDescriptorsForSend(new FileDescriptor[] { fis.getFD() });
+            ls.getOutputStream().write(2);
+            ls.setFileDescriptorsForSend(new FileDescriptor[] { fis.getFD() });
+            ls.getOutputStream().write(3);
+        }
+
+        // A plain file laid out as a ring, in place of the memfd open() sends.
+        long regionSize = RpmsgRingChannel.regionSize(RpmsgRingChannel.MIN_CAPACITY);
+        File plain = File.createTempFile("rpmsg", ".ring");
+        try (RandomAccessFile raf = new RandomAccessFile(plain, "rw")) {
+            raf.setLength(regionSize);
+            RpmsgSocket[] pair = connectPair("fdpassring");
+            RpmsgRingChannel.create(pair[0], Os.dup(raf.getFD()),
+                    RpmsgRingChannel.MIN_CAPACITY).close();
+            pair[1].close();
+
+            byte[] hello = new byte[8];
+            ByteBuffer.wrap(hello).putLong(regionSize);
+            ls.setFileDescriptorsForSend(new FileDescriptor[] { raf.getFD() });
+            ls.getOutputStream().write(hello);
+        } finally {
+            plain.delete();
+        }
+
+        RpmsgRingChannel ring = RpmsgRingChannel.open(ls, RpmsgRingChannel.MIN_CAPACITY);
+        ring.getOutputStream().write(42);
+        server.join();
+        TestCase.assertEquals("passed", content[0]);
+        TestCase.assertEquals(42, ringByte[0]);
+
+        ring.close();
+        ss.close();
+        file.delete();
+
+        RpmsgSocket rs = new RpmsgSocket();
+        if (!rs.getTransport().canPassFileDescriptors()) {
+            try {
+                rs.setFileDescriptorsForSend(new FileDescriptor[] { FileDescriptor.in });
+                TestCase.fail("descriptors accepted on " + rs.getTransport());
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        rs.close();
+    }
+
     public static void main(String[] args) {
         if (args.length != 1) {
-            System.out.println("Usage: CpcSocketTest <server|client>");
+            System.out.println("Usage: CpcSocketTest <server|client|timeout|loopback|bytebuffer|selector|acceptbackoff|vectored|datagram|coalescing|readahead|pool|poller|sendqueue|backpressure|flow|framing|transfer|ring|fdpass>");
             return;
         }
 
         CpcSocketTest test = new CpcSocketTest();
+        // Apart from the cross-core modes, both ends run in this process.
+        if (!args[0].equals("server") && !args[0].equals("client")
+                && !args[0].equals("timeout")) {
+            RpmsgTransport.setDefault(RpmsgTransport.LOCAL);
+        }
         try {
             if (args[0].equals("server")) {
                 test.testServer();
             } else if (args[0].equals("client")) {
                 test.testClient();
+            } else if (args[0].equals("timeout")) {
+                test.testConnectTimeout();
+            } else if (args[0].equals("loopback")) {
+                test.testLoopback();
+            } else if (args[0].equals("bytebuffer")) {
+                test.testByteBuffer();
+            } else if (args[0].equals("selector")) {
+                test.testSelector();
+            } else if (args[0].equals("acceptbackoff")) {
+                test.testAcceptBackoff();
+            } else if (args[0].equals("vectored")) {
+                test.testVectored();
+            } else if (args[0].equals("datagram")) {
+                test.testDatagram();
+            } else if (args[0].equals("coalescing")) {
+                test.testCoalescing();
+            } else if (args[0].equals("readahead")) {
+                test.testReadAhead();
+            } else if (args[0].equals("pool")) {
+                test.testConnectionPool();
+            } else if (args[0].equals("poller")) {
+                test.testPollerMode();
+            } else if (args[0].equals("sendqueue")) {
+                test.testSendQueue();
+            } else if (args[0].equals("backpressure")) {
+                test.testBackpressure();
+            } else if (args[0].equals("flow")) {
+                test.testFlow();
+            } else if (args[0].equals("framing")) {
+                test.testFraming();
+            } else if (args[0].equals("transfer")) {
+                test.testTransfer();
+            } else if (args[0].equals("ring")) {
+                test.testRing();
+            } else if (args[0].equals("fdpass")) {
+                test.testPassFileDescriptors();
             }
         } catch (Exception e) {
             e.printStackTrace();